@@ -1,6 +1,8 @@
 package schat;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import schat.client.*;
 import schat.server.*;
 
@@ -18,14 +20,166 @@ public class SChat
         + "Supported subcommands and their [h]otkeys:\n"
         + "[h]elp            Print this usage dialog\n"
         + "\n"
-        + "[s]erver   <port> Starts a new server instance listening to the given port\n"
+        + "[s]erver   <port>[,<port>...] [<options>] Starts a new server instance listening to the given ports\n"
         + "           <port> The port at which the server should listen for incoming client requests\n"
+        + "           --acceptors=<n> Acceptor threads per listening port (default 1)\n"
+        + "           --backlog=<n>   Pending connection queue length per listener (default 50)\n"
+        + "           --reuseport     Give every acceptor its own SO_REUSEPORT socket\n"
+        + "           --bind=<ip>     Local interface to listen on (default: all)\n"
+        + "           --drain-timeout=<ms> Time given to in-flight relays on shutdown (default 5000)\n"
+        + "           --presence-interval=<ms> Batching interval of join / leave updates (default 250)\n"
+        + "           --fanout-threshold=<n> Recipients at which delivery goes parallel (default 256)\n"
+        + "           --fanout-threads=<n> Parallel fan-out workers (default: number of cores)\n"
+        + "           --latency-slo=<ms> Delivery latency objective, violations are counted per route (default: none)\n"
+        + "           --ack-timeout=<ms> Time after which missing delivery acknowledgements count as lost (default 30000)\n"
+        + "           --jfr[=<file>]  Keep a flight recording of slow relays, written on shutdown (default file schat.jfr)\n"
+        + "           --resume-window=<ms> Time a dropped session can be resumed, 0 to disable (default 30000)\n"
+        + "           --replay-buffer=<n> Messages kept per session for replay on resume (default 256)\n"
+        + "           --history=<n>   Text messages kept searchable with /search, 0 to disable (default 100000)\n"
+        + "           --capture=<file> Record inbound traffic for replay with schat.bench.TrafficReplay\n"
+        + "           --sndbuf=<bytes> Socket send buffer of client connections (default: system)\n"
+        + "           --rcvbuf=<bytes> Socket receive buffer of client connections (default: system)\n"
+        + "           --multicast=<group>:<port> Publish text broadcasts on a multicast group (default: off)\n"
+        + "           --multicast-if=<name> Interface to publish multicast on (default: system)\n"
+        + "           --conn-budget=<bytes> Messages a connection may hold queued and in its stream (default: 1048576)\n"
         + "\n"
         + "[c]lient   <username> <port> [<ip>] Starts a new client instance with the chosen username\n"
         + "           <username> Username choice of client, subject to change based on server side availability\n"
         + "           <port> Server's listening port to connect to\n"
         + "\n";
 
+    /**
+     * Collects trailing --name=value (or bare --name) options
+     *
+     * @param args the command line arguments
+     * @param from Index of the first argument that may be an option
+     * @return Option names mapped to their values, "true" for bare flags
+     */
+    private static Map<String, String> parseOptions(String[] args, int from)
+    {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; ++i)
+        {
+            if (!args[i].startsWith("--"))
+            {
+                System.out.println(USAGE_TIP);
+                System.exit(1);
+            }
+            int eq = args[i].indexOf('=');
+            if (eq < 0)
+            {
+                options.put(args[i].substring(2), "true");
+            }
+            else
+            {
+                options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Builds the server configuration from the command line
+     *
+     * @param ports Comma separated list of listening ports
+     * @param options Options parsed by {@link #parseOptions(String[], int)}
+     * @return Configuration to start the server with
+     */
+    private static ServerConfig serverConfig(
+        String ports,
+        Map<String, String> options
+    )
+    {
+        ServerConfig config = new ServerConfig();
+        for (String port : ports.split(","))
+        {
+            config.addPort(Integer.parseInt(port));
+        }
+        if (options.containsKey("acceptors"))
+        {
+            config.setAcceptors(Integer.parseInt(options.get("acceptors")));
+        }
+        if (options.containsKey("backlog"))
+        {
+            config.setBacklog(Integer.parseInt(options.get("backlog")));
+        }
+        if (options.containsKey("bind"))
+        {
+            config.setBindAddress(options.get("bind"));
+        }
+        if (options.containsKey("drain-timeout"))
+        {
+            config.setDrainTimeout(Long.parseLong(options.get("drain-timeout")));
+        }
+        if (options.containsKey("presence-interval"))
+        {
+            config.setPresenceInterval(
+                Long.parseLong(options.get("presence-interval"))
+            );
+        }
+        if (options.containsKey("fanout-threshold"))
+        {
+            config.setFanoutThreshold(
+                Integer.parseInt(options.get("fanout-threshold"))
+            );
+        }
+        if (options.containsKey("fanout-threads"))
+        {
+            config.setFanoutThreads(Integer.parseInt(options.get("fanout-threads")));
+        }
+        if (options.containsKey("latency-slo"))
+        {
+            config.setLatencySlo(Long.parseLong(options.get("latency-slo")));
+        }
+        if (options.containsKey("ack-timeout"))
+        {
+            config.setAckTimeout(Long.parseLong(options.get("ack-timeout")));
+        }
+        if (options.containsKey("resume-window"))
+        {
+            config.setResumeWindow(Long.parseLong(options.get("resume-window")));
+        }
+        if (options.containsKey("replay-buffer"))
+        {
+            config.setReplayCapacity(Integer.parseInt(options.get("replay-buffer")));
+        }
+        if (options.containsKey("history"))
+        {
+            config.setHistoryCapacity(Integer.parseInt(options.get("history")));
+        }
+        if (options.containsKey("capture"))
+        {
+            config.setCapture(options.get("capture"));
+        }
+        if (options.containsKey("sndbuf"))
+        {
+            config.setSendBuffer(Integer.parseInt(options.get("sndbuf")));
+        }
+        if (options.containsKey("rcvbuf"))
+        {
+            config.setReceiveBuffer(Integer.parseInt(options.get("rcvbuf")));
+        }
+        if (options.containsKey("multicast"))
+        {
+            config.setMulticastGroup(options.get("multicast"));
+        }
+        if (options.containsKey("multicast-if"))
+        {
+            config.setMulticastInterface(options.get("multicast-if"));
+        }
+        if (options.containsKey("conn-budget"))
+        {
+            config.setConnectionBudget(Long.parseLong(options.get("conn-budget")));
+        }
+        if (options.containsKey("jfr"))
+        {
+            String jfr = options.get("jfr");
+            config.setFlightRecording(jfr.equals("true") ? "schat.jfr" : jfr);
+        }
+        config.setReusePort(options.containsKey("reuseport"));
+        return config;
+    }
+
     /**
      * @param args the command line arguments
      * @throws java.io.IOException
@@ -43,9 +197,13 @@ public class SChat
             {
                 case "s":
                 case "server":
-                    // Server instantiation
-                    // Add something for optional port too
-                    Server.getInstance(Integer.parseInt(args[1])).listen();
+                    // Server instantiation, drained on SIGTERM / SIGINT
+                    ServerConfig config = serverConfig(args[1], parseOptions(args, 2));
+                    Server server = Server.getInstance(config);
+                    Runtime.getRuntime().addShutdownHook(new Thread(
+                        () -> server.drain(config.getDrainTimeout())
+                    ));
+                    server.listen();
                     break;
                 case "c":
                 case "client":
@@ -0,0 +1,209 @@
+package schat.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import schat.client.ChatSession;
+import schat.client.MessageListener;
+import schat.client.SessionGroup;
+import schat.io.MemoryTransport;
+import schat.message.Message;
+import schat.server.Server;
+import schat.server.ServerConfig;
+
+/**
+ * Measures the heap a connection costs, server and client side together, at
+ * a given number of sessions. Sessions connect through an in-memory
+ * transport, so one JVM can host them all; the pipes standing in for the
+ * kernel's socket buffers are left out of the figures.
+ *
+ * Heap is measured once every session is connected and idle, and again
+ * after every session sent a number of messages to the next one and all of
+ * them were delivered. The second figure shows what traffic leaves behind:
+ * messages still queued, remembered by object streams or kept for replay.
+ * Presence frames are held back, so that every session costs the same
+ * however many others there are.
+ *
+ * Every session takes two threads (a reader and a writer on the server;
+ * client sessions take none), so large runs need the limits on threads raised,
+ * e.g. ulimit -u, kernel.threads-max and vm.max_map_count, and a small
+ * thread stack (-Xss).
+ *
+ * Usage: java schat.bench.ConnectionMemoryBenchmark [<sessions> ...]
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class ConnectionMemoryBenchmark
+{
+    private static final int[] DEFAULT_SESSIONS = {10000, 100000};
+    // Messages each session sends once everyone is connected
+    private static final int MESSAGES = 100;
+    // Small pipes, the figures are corrected for them anyway
+    private static final int PIPE_SIZE = 8 * 1024;
+    // Sessions per group, i.e. per pair of reader and writer pools
+    private static final int GROUP_SESSIONS = 64;
+    private static final long TIMEOUT_SECONDS = 600;
+    private static final long KIB = 1024;
+
+    public static void main(String[] args) throws Exception
+    {
+        int[] runs = DEFAULT_SESSIONS;
+        if (args.length > 0)
+        {
+            runs = new int[args.length];
+            for (int i = 0; i < args.length; ++i)
+            {
+                runs[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        PrintStream report = System.out;
+        // The server logs every join and every message it relays
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        MemoryTransport pipes = new MemoryTransport(PIPE_SIZE);
+        ServerConfig config = new ServerConfig(0);
+        config.setMemoryTransport(pipes);
+        config.setHistoryCapacity(0);
+        config.setPresenceInterval(TimeUnit.HOURS.toMillis(1));
+        Server server = Server.getInstance(config);
+        Thread listener = new Thread(() ->
+        {
+            try
+            {
+                server.listen();
+            }
+            catch (IOException ex)
+            {
+                System.err.println("[ERROR] " + ex.getMessage());
+            }
+        }, "bench-server");
+        listener.setDaemon(true);
+        listener.start();
+
+        String downloads = Files.createTempDirectory("schat-bench") + "/";
+        report.format("%10s %14s %14s %14s%n",
+            "sessions", "idle KiB/conn", "active KiB/conn", "accounted KiB");
+        try
+        {
+            int run = 0;
+            for (int sessions : runs)
+            {
+                measure(report, pipes, downloads, "r" + run++ + "-", sessions);
+            }
+        }
+        finally
+        {
+            server.drain(0);
+        }
+    }
+
+    private static void measure(
+        PrintStream report,
+        MemoryTransport pipes,
+        String downloads,
+        String prefix,
+        int sessions
+    ) throws Exception
+    {
+        long expected = (long) sessions * MESSAGES;
+        AtomicLong delivered = new AtomicLong();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        MessageListener counter = new MessageListener()
+        {
+            @Override
+            public void onMessage(ChatSession session, Message message)
+            {
+                if (message.isTextMessage() && delivered.incrementAndGet() == expected)
+                {
+                    done.complete(null);
+                }
+            }
+
+            @Override
+            public void onClose(ChatSession session, Exception cause)
+            {
+                if (cause != null)
+                {
+                    done.completeExceptionally(cause);
+                }
+            }
+        };
+
+        List<SessionGroup> groups = new ArrayList<>();
+        List<ChatSession> members = new ArrayList<>();
+        long baseline = usedHeap();
+        try
+        {
+            for (int i = 0; i < sessions; ++i)
+            {
+                if (i % GROUP_SESSIONS == 0)
+                {
+                    groups.add(new SessionGroup(downloads, pipes));
+                }
+                ChatSession session = groups.get(groups.size() - 1)
+                    .connect(prefix + i, Server.getLocalPort())
+                    .get(10, TimeUnit.SECONDS);
+                session.addListener(counter);
+                members.add(session);
+            }
+            long idle = usedHeap() - baseline;
+
+            for (int m = 0; m < MESSAGES; ++m)
+            {
+                for (int i = 0; i < sessions; ++i)
+                {
+                    members.get(i).send("/text @" + prefix + ((i + 1) % sessions)
+                        + " message " + m + " from " + prefix + i);
+                }
+            }
+            done.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            long active = usedHeap() - baseline;
+            long accounted = Server.getConnectionMemory();
+
+            // Both ends of both pipes of every connection
+            long pipeBytes = 2L * PIPE_SIZE * sessions;
+            report.format("%10d %14.1f %14.1f %14.1f%n", sessions,
+                (idle - pipeBytes) / (double) KIB / sessions,
+                (active - pipeBytes) / (double) KIB / sessions,
+                accounted / (double) KIB / sessions
+            );
+        }
+        finally
+        {
+            for (ChatSession session : members)
+            {
+                session.close();
+            }
+            for (SessionGroup group : groups)
+            {
+                group.close();
+            }
+        }
+    }
+
+    /**
+     * @return Heap in use once garbage collection has settled
+     */
+    private static long usedHeap() throws InterruptedException
+    {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        // Writers flush and go idle asynchronously; collect until it settles
+        for (int i = 0; i < 5; ++i)
+        {
+            Thread.sleep(200);
+            System.gc();
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
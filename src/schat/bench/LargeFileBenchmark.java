@@ -0,0 +1,152 @@
+package schat.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import schat.client.ChatSession;
+import schat.client.MessageListener;
+import schat.client.SessionGroup;
+import schat.message.Message;
+import schat.server.Server;
+import schat.server.ServerConfig;
+
+/**
+ * Relays one multi-gigabyte file between two sessions through an in-process
+ * server and reports throughput and heap usage. Heap is sampled throughout
+ * the transfer; with bounded streaming the peak stays flat no matter how
+ * large the file is, so run it with a small fixed heap (see the
+ * bench_large_file target of the Makefile) to prove the point.
+ *
+ * Usage: java schat.bench.LargeFileBenchmark [<size in MiB>] [<work dir>]
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class LargeFileBenchmark
+{
+    private static final long DEFAULT_SIZE_MIB = 3 * 1024;
+    private static final long SAMPLE_MILLIS = 100;
+    private static final long MIB = 1 << 20;
+
+    public static void main(String[] args) throws Exception
+    {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_SIZE_MIB) * MIB;
+        File work = args.length > 1
+            ? new File(args[1])
+            : Files.createTempDirectory("schat-bench").toFile();
+        File source = new File(work, "large.bin");
+        File downloads = new File(work, "download");
+
+        // Sparse, so creating it costs nothing
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw"))
+        {
+            raf.setLength(size);
+        }
+
+        Server server = Server.getInstance(new ServerConfig(0));
+        Thread listener = new Thread(() ->
+        {
+            try
+            {
+                server.listen();
+            }
+            catch (IOException ex)
+            {
+                System.err.println("[ERROR] " + ex.getMessage());
+            }
+        }, "bench-server");
+        listener.setDaemon(true);
+        listener.start();
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long baseline = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong peak = new AtomicLong(baseline);
+        Thread sampler = new Thread(() ->
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try
+                {
+                    Thread.sleep(SAMPLE_MILLIS);
+                }
+                catch (InterruptedException ex)
+                {
+                    return;
+                }
+            }
+        }, "bench-heap-sampler");
+        sampler.setDaemon(true);
+
+        try (SessionGroup group = new SessionGroup(downloads.getPath() + "/"))
+        {
+            ChatSession sender = group.connect("bench-tx", Server.getLocalPort())
+                .get(5, TimeUnit.SECONDS);
+            ChatSession receiver = group.connect("bench-rx", Server.getLocalPort())
+                .get(5, TimeUnit.SECONDS);
+            CompletableFuture<Message> received = new CompletableFuture<>();
+            receiver.addListener((session, message) ->
+            {
+                if (message.isFileMessage())
+                {
+                    received.complete(message);
+                }
+            });
+            AtomicLong lastReport = new AtomicLong();
+            sender.addListener(new MessageListener()
+            {
+                @Override
+                public void onMessage(ChatSession session, Message message)
+                {
+                }
+
+                @Override
+                public void onProgress(ChatSession session, Message file, long sent, long total)
+                {
+                    if (sent - lastReport.get() >= total / 10 || sent == total)
+                    {
+                        lastReport.set(sent);
+                        System.out.format("  uploaded %5.1f%%  heap %d MiB%n",
+                            sent * 100.0 / total,
+                            memory.getHeapMemoryUsage().getUsed() / MIB
+                        );
+                    }
+                }
+            });
+
+            sampler.start();
+            long start = System.nanoTime();
+            sender.send("/file @bench-rx " + source.getPath()).get();
+            received.get();
+            long nanos = System.nanoTime() - start;
+            sampler.interrupt();
+
+            File copy = new File(new File(downloads, "bench-rx"), source.getName());
+            System.gc();
+            System.out.format(
+                "Relayed %d MiB in %.1f s (%.1f MiB/s), received %d bytes%n"
+                + "Heap: max %d MiB, baseline %d MiB, peak %d MiB, "
+                + "after transfer %d MiB%n",
+                size / MIB, nanos / 1e9, size * 1e9 / nanos / MIB, copy.length(),
+                memory.getHeapMemoryUsage().getMax() / MIB, baseline / MIB,
+                peak.get() / MIB, memory.getHeapMemoryUsage().getUsed() / MIB
+            );
+            if (copy.length() != size)
+            {
+                System.err.println("[ERROR] Received file has the wrong size");
+            }
+            copy.delete();
+        }
+        finally
+        {
+            source.delete();
+            server.drain(0);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package schat.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import schat.client.ChatSession;
+import schat.client.MessageListener;
+import schat.client.SessionGroup;
+import schat.io.MemoryTransport;
+import schat.io.TcpTransport;
+import schat.io.Transport;
+import schat.message.Message;
+import schat.message.MessageType;
+import schat.server.Server;
+import schat.server.ServerConfig;
+
+/**
+ * Measures the cost of routing text messages: every session broadcasts a
+ * number of messages at once, and the run ends when every other session
+ * has received all of them. Reports deliveries per second and the wall time
+ * per delivery.
+ *
+ * With --memory server and clients talk through an in-memory transport, so
+ * the numbers are those of parsing, routing and dispatch alone, without the
+ * kernel's loopback path and its scheduling noise. Running both modes shows
+ * how much of the cost is the network stack.
+ *
+ * Usage: java schat.bench.RoutingBenchmark [--memory] [<sessions>] [<messages each>]
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class RoutingBenchmark
+{
+    private static final int DEFAULT_SESSIONS = 50;
+    private static final int DEFAULT_MESSAGES = 200;
+    // Sessions per group, i.e. per writing thread
+    private static final int GROUP_SESSIONS = 16;
+    private static final long TIMEOUT_SECONDS = 120;
+
+    public static void main(String[] args) throws Exception
+    {
+        boolean memory = args.length > 0 && args[0].equals("--memory");
+        int first = memory ? 1 : 0;
+        int sessions = args.length > first ? Integer.parseInt(args[first]) : DEFAULT_SESSIONS;
+        int messages = args.length > first + 1
+            ? Integer.parseInt(args[first + 1])
+            : DEFAULT_MESSAGES;
+
+        PrintStream report = System.out;
+        // The server logs every message it relays
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ServerConfig config = new ServerConfig(0);
+        config.setHistoryCapacity(0);
+        Transport transport = new TcpTransport();
+        if (memory)
+        {
+            MemoryTransport pipes = new MemoryTransport();
+            config.setMemoryTransport(pipes);
+            transport = pipes;
+        }
+        Server server = Server.getInstance(config);
+        Thread listener = new Thread(() ->
+        {
+            try
+            {
+                server.listen();
+            }
+            catch (IOException ex)
+            {
+                System.err.println("[ERROR] " + ex.getMessage());
+            }
+        }, "bench-server");
+        listener.setDaemon(true);
+        listener.start();
+
+        String downloads = Files.createTempDirectory("schat-bench") + "/";
+        long expected = (long) sessions * (sessions - 1) * messages;
+        AtomicLong delivered = new AtomicLong();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        MessageListener counter = new MessageListener()
+        {
+            @Override
+            public void onMessage(ChatSession session, Message message)
+            {
+                if (message.isTextMessage() && delivered.incrementAndGet() == expected)
+                {
+                    done.complete(null);
+                }
+            }
+
+            @Override
+            public void onClose(ChatSession session, Exception cause)
+            {
+                if (cause != null)
+                {
+                    done.completeExceptionally(cause);
+                }
+            }
+        };
+
+        List<SessionGroup> groups = new ArrayList<>();
+        List<ChatSession> members = new ArrayList<>();
+        try
+        {
+            for (int i = 0; i < sessions; ++i)
+            {
+                if (i % GROUP_SESSIONS == 0)
+                {
+                    groups.add(new SessionGroup(downloads, transport));
+                }
+                ChatSession session = groups.get(groups.size() - 1)
+                    .connect("bench" + i, Server.getLocalPort())
+                    .get(10, TimeUnit.SECONDS);
+                session.addListener(counter);
+                members.add(session);
+            }
+            // Let the presence updates of the joins go out first
+            Thread.sleep(500);
+
+            long start = System.nanoTime();
+            for (int m = 0; m < messages; ++m)
+            {
+                for (ChatSession session : members)
+                {
+                    session.send(new Message(
+                        MessageType.CLIENT_TEXT_BROADCAST,
+                        "message " + m, ""
+                    ));
+                }
+            }
+            done.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            long nanos = System.nanoTime() - start;
+
+            report.format(
+                "%s: %d sessions x %d broadcasts, %d deliveries in %.2f s%n"
+                + "%.0f deliveries/s, %.2f us per delivery%n",
+                memory ? "memory" : "tcp", sessions, messages, expected, nanos / 1e9,
+                expected * 1e9 / nanos, nanos / 1e3 / expected
+            );
+        }
+        finally
+        {
+            for (ChatSession session : members)
+            {
+                session.close();
+            }
+            for (SessionGroup group : groups)
+            {
+                group.close();
+            }
+            server.drain(0);
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package schat.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import schat.client.ChatSession;
+import schat.client.SessionGroup;
+import schat.io.CaptureFile;
+import schat.message.Message;
+import schat.server.LatencyHistogram;
+
+/**
+ * Plays a traffic capture (see the --capture server option) back against a
+ * running server and reports throughput and delivery latency, so that two
+ * builds can be compared on the same workload.
+ *
+ * Every captured connection becomes a synthetic client under the username
+ * it introduced itself with. Its frames are sent in captured order at the
+ * captured offsets, divided by the speed factor; at speed "max" they are
+ * sent as fast as the server takes them. Files are replaced by generated
+ * files of the captured size. Joins and leaves keep their place between the
+ * messages, so each message reaches the same recipients at any speed.
+ * Delivery latency is measured from send to receipt by another replayed
+ * client, all clients sharing this JVM's clock.
+ *
+ * Usage: java schat.bench.TrafficReplay <capture file> <port> [<speed>|max] [<ip>]
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class TrafficReplay
+{
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    // A name is free only once the server noticed its previous owner leave
+    private static final int CONNECT_RETRIES = 20;
+    private static final long RETRY_MILLIS = 50;
+    // Relays are over once no message arrived for this long
+    private static final long QUIET_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int JOIN = 1;
+    private static final int LEAVE = 2;
+    // Deliveries are over once none arrived for this long
+    private static final long SETTLE_MILLIS = 1000;
+    private static final long MAX_SETTLE_MILLIS = 30000;
+
+    /**
+     * Replay state of one captured connection. Its steps are chained so
+     * they reach the server in captured order.
+     */
+    private static final class Client
+    {
+        private CompletableFuture<ChatSession> session;
+        private CompletableFuture<?> tail;
+        private boolean closed = false;
+    }
+
+    private final PrintStream report;
+    private final int port;
+    private final String address;
+    private final double speed;
+    private final File work;
+    private final SessionGroup[] groups;
+    // Closes sessions and retries introductions off the session pools
+    private final ScheduledExecutorService workers;
+    private final Map<Integer, Client> clients = new HashMap<>();
+    // Completes once every join and leave replayed so far is done
+    private CompletableFuture<?> membership = CompletableFuture.completedFuture(null);
+    // Completes once every message replayed so far is written
+    private CompletableFuture<?> written = CompletableFuture.completedFuture(null);
+    private boolean sentSinceChange = false;
+    // Consecutive joins, or leaves, start together once this completes
+    private CompletableFuture<?> batch = this.membership;
+    private int batchKind = 0;
+    private final Map<Long, File> files = new HashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lastDelivery = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long sent = 0;
+    private long skipped = 0;
+    private long maxLag = 0;
+
+    /**
+     * @param report Stream the results are printed to
+     * @param port Server port
+     * @param address Server address
+     * @param speed Playback speed factor, 0 for as fast as possible
+     * @param work Directory for generated files and downloads
+     */
+    private TrafficReplay(PrintStream report, int port, String address, double speed, File work)
+    {
+        this.report = report;
+        this.port = port;
+        this.address = address;
+        this.speed = speed;
+        this.work = work;
+        this.groups = new SessionGroup[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < this.groups.length; ++i)
+        {
+            this.groups[i] = new SessionGroup(new File(work, "download").getPath() + "/");
+        }
+        this.workers = Executors.newScheduledThreadPool(this.groups.length, r ->
+        {
+            Thread t = new Thread(r, "replay-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.out.println(
+                "Usage: java schat.bench.TrafficReplay <capture file> <port> [<speed>|max] [<ip>]"
+            );
+            System.exit(1);
+        }
+        File capture = new File(args[0]);
+        int port = Integer.parseInt(args[1]);
+        double speed = args.length > 2
+            ? (args[2].equals("max") ? 0 : Double.parseDouble(args[2]))
+            : 1;
+        String address = args.length > 3 ? args[3] : "127.0.0.1";
+
+        // Read up front, so the disk does not pace the replay
+        List<CaptureFile.Record> records = new ArrayList<>();
+        try (CaptureFile.Reader reader = new CaptureFile.Reader(capture))
+        {
+            CaptureFile.Record record;
+            while ((record = reader.next()) != null)
+            {
+                records.add(record);
+            }
+        }
+
+        PrintStream report = System.out;
+        // Clients print every file they send or receive
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        File work = Files.createTempDirectory("schat-replay").toFile();
+        TrafficReplay replay = new TrafficReplay(report, port, address, speed, work);
+        try
+        {
+            replay.prepareFiles(records);
+            long nanos = replay.play(records);
+            replay.report(records, nanos);
+        }
+        finally
+        {
+            replay.close();
+        }
+    }
+
+    /**
+     * Generates a file for every file size announced in the capture, before
+     * the clock starts
+     */
+    private void prepareFiles(List<CaptureFile.Record> records) throws IOException
+    {
+        for (CaptureFile.Record record : records)
+        {
+            if (record.getKind() != CaptureFile.FRAME)
+            {
+                continue;
+            }
+            Message message = Message.decode(record.getFrame());
+            if (message.isFileMessage() && !this.files.containsKey(message.getPayloadSize()))
+            {
+                long size = message.getPayloadSize();
+                File file = new File(this.work, "replay-" + size + ".bin");
+                // Random content, so the server cannot tell it apart from
+                // a real upload of that size
+                byte[] block = new byte[64 * 1024];
+                new Random(size).nextBytes(block);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+                {
+                    for (long written = 0; written < size; written += block.length)
+                    {
+                        raf.write(block, 0, (int) Math.min(block.length, size - written));
+                    }
+                }
+                this.files.put(size, file);
+            }
+        }
+    }
+
+    /**
+     * Plays the records back on schedule
+     *
+     * @return Nanoseconds from the first send until every delivery arrived
+     */
+    private long play(List<CaptureFile.Record> records) throws Exception
+    {
+        long start = System.nanoTime();
+        // The capture starts with the server, not with the first client
+        long offset = records.isEmpty() ? 0 : records.get(0).getMicros();
+        for (CaptureFile.Record record : records)
+        {
+            if (this.speed > 0)
+            {
+                long due = start + (long) ((record.getMicros() - offset) * 1000 / this.speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                else
+                {
+                    this.maxLag = Math.max(this.maxLag, -wait);
+                }
+            }
+            if (record.getKind() == CaptureFile.CLOSE)
+            {
+                closeClient(this.clients.get(record.getConnection()));
+            }
+            else
+            {
+                replay(record.getConnection(), Message.decode(record.getFrame()));
+            }
+        }
+
+        for (Client client : this.clients.values())
+        {
+            try
+            {
+                client.tail.get();
+            }
+            catch (Exception ex)
+            {
+                // Counted where it happened
+            }
+        }
+        long sendsDone = System.nanoTime();
+        // Wait for the last relays to come through
+        long settleStart = System.currentTimeMillis();
+        long last;
+        do
+        {
+            last = this.delivered.get();
+            Thread.sleep(SETTLE_MILLIS);
+        }
+        while (this.delivered.get() != last
+            && System.currentTimeMillis() - settleStart < MAX_SETTLE_MILLIS);
+        return Math.max(this.lastDelivery.get(), sendsDone) - start;
+    }
+
+    private void replay(int connection, Message message)
+    {
+        Client client = this.clients.computeIfAbsent(connection, k -> new Client());
+        switch (message.getType())
+        {
+            case CLIENT_INTRODUCTION:
+                if (client.session == null)
+                {
+                    connect(connection, client, message.getFrom());
+                }
+                return;
+            case CLIENT_QUIT:
+                closeClient(client);
+                return;
+            case CLIENT_TEXT_BROADCAST:
+            case CLIENT_TEXT_BLOCKCAST:
+            case CLIENT_TEXT_UNICAST:
+            case CLIENT_SEARCH:
+            case CLIENT_FILE_BROADCAST:
+            case CLIENT_FILE_BLOCKCAST:
+            case CLIENT_FILE_UNICAST:
+                break;
+            default:
+                // Acknowledgements are regenerated by the receiving clients
+                return;
+        }
+        if (client.session == null || client.closed)
+        {
+            ++this.skipped;
+            return;
+        }
+
+        Message copy = new Message(
+            message.getType(),
+            message.isFileMessage()
+                ? this.files.get(message.getPayloadSize()).getPath()
+                : message.getBody(),
+            message.getFrom()
+        );
+        copy.setRecipients(message.getRecipients());
+        // Captured resends stay resends
+        copy.setClientId(message.getClientId());
+        boolean receipts = message.isAckRequested();
+        ++this.sent;
+        client.tail = client.tail.thenCombine(this.membership, (x, y) -> null).thenCompose(x ->
+        {
+            ChatSession session = client.session.join();
+            session.setDeliveryReceipts(receipts);
+            return session.send(copy);
+        }).exceptionally(ex ->
+        {
+            this.failed.incrementAndGet();
+            return null;
+        });
+        this.written = this.written.thenCombine(client.tail, (x, y) -> null);
+        this.sentSinceChange = true;
+    }
+
+    /**
+     * Orders joins and leaves with the messages around them, so every
+     * message reaches the same recipients however fast the replay runs.
+     * Messages wait for the joins and leaves before them; a join or leave
+     * waits for the messages before it to be written and, if there were any,
+     * for their relays to be over. A run of joins, or of leaves, with no
+     * message in between goes ahead all at once.
+     *
+     * @param kind JOIN or LEAVE
+     * @return Future completing once the join or leave may happen
+     */
+    private CompletableFuture<?> nextChange(int kind)
+    {
+        if (kind != this.batchKind || this.sentSinceChange)
+        {
+            this.batch = this.membership.thenCombine(this.written, (x, y) -> null);
+            if (this.sentSinceChange)
+            {
+                this.batch = this.batch.thenCompose(x -> quiet());
+            }
+            this.batchKind = kind;
+            this.sentSinceChange = false;
+        }
+        return this.batch;
+    }
+
+    /**
+     * @return Future completing once no message arrived for a while
+     */
+    private CompletableFuture<Void> quiet()
+    {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        awaitQuiet(done, System.nanoTime());
+        return done;
+    }
+
+    private void awaitQuiet(CompletableFuture<Void> done, long since)
+    {
+        long idle = System.nanoTime() - Math.max(this.lastDelivery.get(), since);
+        if (idle >= QUIET_NANOS)
+        {
+            done.complete(null);
+            return;
+        }
+        this.workers.schedule(
+            () -> awaitQuiet(done, since), QUIET_NANOS - idle, TimeUnit.NANOSECONDS
+        );
+    }
+
+    private void connect(int connection, Client client, String username)
+    {
+        SessionGroup group = this.groups[connection % this.groups.length];
+        client.session = new CompletableFuture<>();
+        nextChange(JOIN).thenRun(() -> attempt(group, username, CONNECT_RETRIES, client.session));
+        client.session.thenAccept(session -> session.addListener((s, message) ->
+        {
+            if (message.isTextMessage() || message.isFileMessage())
+            {
+                this.latency.record(
+                    (System.currentTimeMillis() - message.getSentAt()) * 1000
+                );
+                this.delivered.incrementAndGet();
+                this.lastDelivery.accumulateAndGet(System.nanoTime(), Math::max);
+            }
+        }));
+        client.tail = client.session.exceptionally(ex ->
+        {
+            this.report.println("[WARN] Could not replay " + username + ": " + ex.getMessage());
+            return null;
+        });
+        this.membership = this.membership.thenCombine(client.tail, (x, y) -> null);
+    }
+
+    private void attempt(
+        SessionGroup group, String username, int retries, CompletableFuture<ChatSession> result)
+    {
+        group.connect(username, this.port, this.address)
+            .orTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .whenComplete((session, ex) ->
+            {
+                if (ex == null)
+                {
+                    result.complete(session);
+                }
+                else if (retries > 0)
+                {
+                    this.workers.schedule(
+                        () -> attempt(group, username, retries - 1, result),
+                        RETRY_MILLIS, TimeUnit.MILLISECONDS
+                    );
+                }
+                else
+                {
+                    result.completeExceptionally(ex);
+                }
+            });
+    }
+
+    private void closeClient(Client client)
+    {
+        if (client == null || client.session == null || client.closed)
+        {
+            return;
+        }
+        client.closed = true;
+        // Closing waits for the server's goodbye, which must not hold up the
+        // reader that delivers it
+        client.tail = nextChange(LEAVE).thenRunAsync(() ->
+        {
+            ChatSession session = sessionOf(client);
+            if (session != null)
+            {
+                session.close();
+            }
+        }, this.workers);
+        this.membership = this.membership.thenCombine(client.tail, (x, y) -> null);
+    }
+
+    /**
+     * @return The client's session, null unless it connected by now
+     */
+    private static ChatSession sessionOf(Client client)
+    {
+        return client.session == null || client.session.isCompletedExceptionally()
+            ? null
+            : client.session.getNow(null);
+    }
+
+    private void report(List<CaptureFile.Record> records, long nanos)
+    {
+        long captured = records.isEmpty()
+            ? 0
+            : records.get(records.size() - 1).getMicros() - records.get(0).getMicros();
+        this.report.format(
+            "Replayed %d record(s) of %d connection(s), %.1f s of traffic at %s speed%n"
+            + "Sent %d message(s) in %.2f s (%.1f msg/s), %d failed, %d skipped%n"
+            + "Received %d message(s) (%.1f msg/s)%n"
+            + "Delivery latency: %s%n",
+            records.size(), this.clients.size(), captured / 1e6,
+            this.speed > 0 ? this.speed + "x" : "max",
+            this.sent, nanos / 1e9, this.sent * 1e9 / nanos, this.failed.get(), this.skipped,
+            this.delivered.get(), this.delivered.get() * 1e9 / nanos,
+            this.latency
+        );
+        if (this.speed > 0)
+        {
+            this.report.format("Fell behind schedule by up to %.2f ms%n", this.maxLag / 1e6);
+        }
+    }
+
+    private void close()
+    {
+        for (Client client : this.clients.values())
+        {
+            ChatSession session = sessionOf(client);
+            if (session != null)
+            {
+                session.close();
+            }
+        }
+        for (SessionGroup group : this.groups)
+        {
+            group.close();
+        }
+        this.workers.shutdown();
+        delete(this.work);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,681 @@
+package schat.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import schat.io.Connection;
+import schat.io.StreamBudget;
+import schat.message.*;
+
+/**
+ * A programmatic, non-interactive connection to a chat server. Sessions are
+ * created through {@link SessionGroup#connect(String, int, String)} and have
+ * no threads of their own: they read and write on the group's shared pools.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class ChatSession implements AutoCloseable
+{
+    private final SessionGroup group;
+    private final String username;
+    private final Downloads downloads;
+    private final Connection sock;
+    private final ObjectOutputStream sockOut;
+    private final ObjectInputStream sockIn;
+    // What sockIn reads from, filled as bytes arrive
+    private final FrameBuffer inbound;
+    // Writes of this session, in order, on the group's writer pool
+    private final SerialExecutor writer;
+    // Written by the writer only, like the stream
+    private final StreamBudget sockBudget;
+    // Messages handed to the writer and not written yet
+    private final AtomicInteger writesQueued = new AtomicInteger();
+    // Times the connection became readable since the reader last looked; a
+    // reader runs while this is not zero
+    private final AtomicInteger readable = new AtomicInteger();
+    // Owned by the reader: a FILE_CHUNK header whose bytes are still coming
+    private Message chunk;
+    private boolean stopped = false;
+    private volatile boolean reading = false;
+    private final List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile Thread reader;
+    private final BlockingQueue<Message> fileAcks = new LinkedBlockingQueue<>();
+    private final OnlineUsers onlineUsers = new OnlineUsers();
+    private volatile boolean deliveryReceipts = false;
+    private final int port;
+    private final String serverAddress;
+    // Issued by the server, null if it does not support resumption
+    private volatile String resumeToken;
+    // Text messages received, the point a resumed session continues from
+    private volatile long received = 0;
+    private final boolean resuming;
+    // Numbers the text and file messages of the session, across resumes
+    private final AtomicLong nextClientId;
+    // Text messages sent but not yet confirmed by an ACK_SEND, by client ID
+    private final ConcurrentSkipListMap<Long, Message> unconfirmed
+        = new ConcurrentSkipListMap<>();
+    // Receives broadcasts from the server's multicast group once subscribed
+    private volatile MulticastReceiver multicast;
+    // Broadcast a resumed session's receiver takes over from, -1 for none
+    private final long multicastFrom;
+    // Broadcasts numbered below this are delivered directly: published
+    // before the offer, they only ever reach a new subscriber over TCP
+    private volatile long multicastFloor = 0;
+
+    // How long closing waits for the goodbye to be written
+    private static final long QUIT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * @param dropped Session being resumed, null for a new session
+     */
+    ChatSession(
+        SessionGroup group,
+        String username,
+        int port,
+        String serverAddress,
+        String downloadPath,
+        ChatSession dropped
+    ) throws IOException
+    {
+        this.group = group;
+        this.username = username;
+        this.port = port;
+        this.serverAddress = serverAddress;
+        this.downloads = new Downloads(downloadPath);
+        this.resuming = dropped != null;
+        this.nextClientId = new AtomicLong(
+            dropped == null ? 0 : dropped.nextClientId.get()
+        );
+        MulticastReceiver previous = dropped == null ? null : dropped.multicast;
+        this.multicastFrom = previous == null ? -1 : previous.getExpected();
+        if (dropped != null)
+        {
+            this.listeners.addAll(dropped.listeners);
+            this.deliveryReceipts = dropped.deliveryReceipts;
+            this.resumeToken = dropped.resumeToken;
+            this.received = dropped.received;
+        }
+        this.sock = group.transport().connect(serverAddress, port);
+        this.sockOut = new ObjectOutputStream(this.sock.getOutputStream());
+        this.sockOut.flush();
+        this.inbound = new FrameBuffer(this.sock);
+        this.sockIn = new ObjectInputStream(this.inbound);
+        this.writer = new SerialExecutor(group.writers());
+        this.sockBudget = new StreamBudget(this.sockOut);
+    }
+
+    /**
+     * Accessor method for the username this session is registered under
+     *
+     * @return username string associated with the current session
+     */
+    public String getUsername()
+    {
+        return this.username;
+    }
+
+    /**
+     * Accessor method for the server port the session is connected to
+     *
+     * @return Server port number
+     */
+    public int getPort()
+    {
+        return this.port;
+    }
+
+    /**
+     * Accessor method for the server address the session is connected to
+     *
+     * @return Server IP address or host name
+     */
+    public String getServerAddress()
+    {
+        return this.serverAddress;
+    }
+
+    /**
+     * Checks if the server issued a resume token, see
+     * {@link SessionGroup#resume(ChatSession)}
+     *
+     * @return true if the session can be resumed after its connection drops
+     */
+    public boolean isResumable()
+    {
+        return this.resumeToken != null;
+    }
+
+    /**
+     * Registers a listener for inbound messages and session closure
+     *
+     * @param listener Listener to be notified
+     */
+    public void addListener(MessageListener listener)
+    {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a previously added listener
+     *
+     * @param listener Listener to be removed
+     */
+    public void removeListener(MessageListener listener)
+    {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Returns who is online, as last pushed by the server
+     *
+     * @return Roster maintained from presence frames
+     */
+    public OnlineUsers getOnlineUsers()
+    {
+        return this.onlineUsers;
+    }
+
+    /**
+     * Checks if the session is still connected
+     *
+     * @return true until the session has been closed
+     */
+    public boolean isOpen()
+    {
+        return !this.closed.get();
+    }
+
+    /**
+     * Sends a message asynchronously on the group's writer pool, after the
+     * messages sent before it. The sender is
+     * always set to this session's username. File messages are expected to
+     * carry the path of the file to upload in their body.
+     *
+     * Text and file messages are given a client message ID unless they
+     * already have one, so sending the same message again is safe: the
+     * server relays it only once. Text messages the server has not confirmed
+     * when the connection drops are resent by {@link SessionGroup#resume}.
+     *
+     * @param message Message to be sent
+     * @return Future completed once the message has been written to the
+     * socket, or failed with the I/O error that prevented it, also when the
+     * group was closed
+     */
+    public CompletableFuture<Void> send(Message message)
+    {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (this.closed.get())
+        {
+            result.completeExceptionally(
+                new IOException("Session is closed: " + this.username)
+            );
+            return result;
+        }
+        message.setFrom(this.username);
+        if (message.isTextMessage() || message.isFileMessage())
+        {
+            message.setSentAt(System.currentTimeMillis());
+            message.setAckRequested(this.deliveryReceipts);
+            if (message.getClientId() < 0)
+            {
+                message.setClientId(this.nextClientId.getAndIncrement());
+            }
+            if (message.isTextMessage())
+            {
+                this.unconfirmed.put(message.getClientId(), message);
+            }
+        }
+        if (message.getRecipientIdCount() < 0 && message.getRecipientCount() > 0)
+        {
+            // Address by session ID when the roster knows everyone listed
+            message.setRecipientIds(
+                this.onlineUsers.idsOf(message.getRecipients())
+            );
+        }
+        // Uploads wait on the server, so they leave the shared writers free
+        Executor pool = message.isFileMessage()
+            ? this.group.blocking()
+            : this.group.writers();
+        this.writesQueued.incrementAndGet();
+        try
+        {
+            this.writer.execute(() ->
+            {
+                try
+                {
+                    write(message, this.writesQueued.decrementAndGet() == 0);
+                    result.complete(null);
+                }
+                catch (IOException ex)
+                {
+                    result.completeExceptionally(ex);
+                    closeWith(ex);
+                }
+            }, pool);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            this.writesQueued.decrementAndGet();
+            result.completeExceptionally(
+                new IOException("Session group is closed: " + this.username, ex)
+            );
+        }
+        return result;
+    }
+
+    /**
+     * Asks recipients of messages sent from now on to acknowledge delivery.
+     * Acknowledgements come back to the listeners as
+     * {@link MessageType#ACK_DELIVERY} messages from the recipient, carrying
+     * the message ID and send, relay and delivery timestamps.
+     *
+     * @param deliveryReceipts true to request acknowledgements
+     */
+    public void setDeliveryReceipts(boolean deliveryReceipts)
+    {
+        this.deliveryReceipts = deliveryReceipts;
+    }
+
+    /**
+     * Parses a line in the interactive client syntax and sends it
+     *
+     * @param line Command or text, as typed into the interactive client
+     * @return Future completed once the message has been written
+     * @throws IllegalMessageException if the line cannot be parsed
+     */
+    public CompletableFuture<Void> send(String line)
+        throws IllegalMessageException
+    {
+        return send(Message.parseMessage(line));
+    }
+
+    /**
+     * Writes a message on the session's writer. Once the last queued message is
+     * written the stream forgets what it sent, so neither end of an idle
+     * session holds on to old messages.
+     *
+     * @param message Message to be written
+     * @param last true if no other message of the session is queued
+     */
+    private void write(Message message, boolean last) throws IOException
+    {
+        if (message.isFileMessage())
+        {
+            SocketOutputThread.sendFile(
+                this.sock, this.sockOut, message, this.fileAcks,
+                (file, sent, total) ->
+                {
+                    for (MessageListener listener : this.listeners)
+                    {
+                        listener.onProgress(this, file, sent, total);
+                    }
+                }
+            );
+        }
+        else
+        {
+            this.sockOut.writeObject(message);
+        }
+        this.sockBudget.wrote(message.getWireSize());
+        if (last)
+        {
+            this.sockBudget.idle();
+        }
+        this.sockOut.flush();
+    }
+
+    /**
+     * Sends again the text messages the server had not confirmed when the
+     * connection of a dropped session was lost, in their original order.
+     * They keep their client message IDs, so the ones the server did relay
+     * are not relayed twice.
+     *
+     * @param dropped Session this one resumed
+     */
+    void resend(ChatSession dropped)
+    {
+        for (Message message : dropped.unconfirmed.values())
+        {
+            send(message);
+        }
+    }
+
+    /**
+     * Performs the introduction handshake. Runs before the session is handed
+     * out, so no locking against {@link #send(Message)} is needed.
+     */
+    void negotiateUsername() throws IOException, ClassNotFoundException
+    {
+        Message message = new Message(
+            MessageType.CLIENT_INTRODUCTION, "", this.username
+        );
+        // An empty token asks the server to issue one
+        message.setResumeToken(this.resuming ? this.resumeToken : "");
+        message.setResumeFrom(this.received);
+        this.sockOut.writeObject(message);
+        // Nothing else was written yet, so the server need not remember it
+        this.sockOut.reset();
+        this.sockOut.flush();
+        while (true)
+        {
+            message = (Message) this.sockIn.readObject();
+            if (MessageType.ACK_INTRO == message.getType())
+            {
+                if (message.getBody().equals("Y"))
+                {
+                    this.resumeToken = message.getResumeToken();
+                    return;
+                }
+                throw new IOException(this.resuming
+                    ? "Session can no longer be resumed: " + this.username
+                    : "Chosen username is unavailable: " + this.username
+                );
+            }
+        }
+    }
+
+    /**
+     * Starts reading messages as they arrive, notifying listeners. The
+     * session holds no thread while nothing arrives.
+     */
+    void startReading() throws IOException
+    {
+        this.inbound.readAsync();
+        this.reading = true;
+        this.sock.readAsync(this::readable);
+    }
+
+    /**
+     * Runs a reader unless one is running, which then looks again
+     */
+    private void readable()
+    {
+        if (this.readable.getAndIncrement() == 0)
+        {
+            this.group.readers().execute(this::read);
+        }
+    }
+
+    private void read()
+    {
+        int seen = this.readable.get();
+        do
+        {
+            this.reader = Thread.currentThread();
+            pump();
+            this.reader = null;
+        }
+        while ((seen = this.readable.addAndGet(-seen)) != 0);
+    }
+
+    /**
+     * Reads what has arrived and handles every whole message in it
+     */
+    private void pump()
+    {
+        try
+        {
+            int state = 1;
+            while (state > 0 && !this.closed.get())
+            {
+                state = this.inbound.fill();
+                dispatch();
+            }
+            if (state < 0)
+            {
+                throw new EOFException();
+            }
+            this.inbound.trim();
+        }
+        catch (IOException | ClassNotFoundException | RuntimeException ex)
+        {
+            closeWith(ex);
+        }
+        if (this.closed.get() && !this.stopped)
+        {
+            this.stopped = true;
+            this.inbound.release();
+            this.downloads.abandonAll();
+        }
+    }
+
+    private void dispatch() throws IOException, ClassNotFoundException
+    {
+        while (!this.closed.get())
+        {
+            if (this.chunk != null)
+            {
+                if (!this.inbound.hasBlockData(this.chunk.getPayloadSize()))
+                {
+                    return;
+                }
+                Message message = this.chunk;
+                this.chunk = null;
+                receive(message);
+                continue;
+            }
+            if (!this.inbound.hasObject())
+            {
+                return;
+            }
+            Message message = (Message) this.sockIn.readObject();
+            if (message.getType() == MessageType.FILE_CHUNK)
+            {
+                // Its bytes follow, wait until all of them are here
+                this.chunk = message;
+                continue;
+            }
+            receive(message);
+        }
+    }
+
+    /**
+     * Handles a message read off the connection, a FILE_CHUNK only once
+     * its bytes are buffered
+     */
+    private void receive(Message message) throws IOException
+    {
+        if (message.getType() == MessageType.ACK_FILE)
+        {
+            this.fileAcks.offer(message);
+            return;
+        }
+        if (message.getType() == MessageType.ACK_SEND)
+        {
+            this.unconfirmed.remove(message.getClientId());
+            return;
+        }
+        if (message.getType() == MessageType.MULTICAST_OFFER)
+        {
+            subscribe(message);
+            return;
+        }
+        if (message.getType() == MessageType.MULTICAST_GAP)
+        {
+            if (this.multicast != null)
+            {
+                this.multicast.skip(message);
+            }
+            return;
+        }
+        if (OnlineUsers.isPresence(message))
+        {
+            this.onlineUsers.apply(message);
+        }
+        if (Downloads.isTransfer(message))
+        {
+            // Listeners hear about a file once all of it is stored
+            message = this.downloads.accept(message, this.sockIn);
+            if (message == null)
+            {
+                return;
+            }
+        }
+        if (message.isTextMessage())
+        {
+            ++this.received;
+        }
+        MulticastReceiver receiver = this.multicast;
+        if (receiver != null && message.getSequence() >= this.multicastFloor)
+        {
+            // Numbered broadcasts are delivered in number order, once
+            receiver.accept(message);
+            return;
+        }
+        deliver(message);
+        if (message.getType() == MessageType.ACK_QUIT)
+        {
+            // The server is draining, or saw us quit, and closes the
+            // connection next
+            closeWith(null);
+        }
+    }
+
+    /**
+     * Hands an inbound message to the listeners, acknowledging it first if
+     * the sender asked for it
+     *
+     * @param message Message read from the connection or the multicast group
+     */
+    void deliver(Message message)
+    {
+        if (message.isAckRequested())
+        {
+            send(Message.deliveryAck(message, this.username));
+        }
+        for (MessageListener listener : this.listeners)
+        {
+            listener.onMessage(this, message);
+        }
+    }
+
+    /**
+     * Joins the multicast group a server offered, if the group asks for it,
+     * and tells the server to stop sending broadcasts over TCP. A resumed
+     * session picks up where the dropped one's receiver stopped; broadcasts
+     * in between are asked for again.
+     *
+     * @param offer MULTICAST_OFFER with the group and the next broadcast
+     */
+    private void subscribe(Message offer)
+    {
+        if (!this.group.isMulticast() || this.multicast != null)
+        {
+            return;
+        }
+        long first = this.multicastFrom >= 0 ? this.multicastFrom : offer.getSequence();
+        // A resumed session may have had those before, from the group
+        this.multicastFloor = this.multicastFrom >= 0 ? 0 : first;
+        try
+        {
+            this.multicast = new MulticastReceiver(
+                this, offer.getBody(), first, this.sock.getLocalAddress()
+            );
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            System.err.println("[WARN] Staying on TCP for broadcasts: " + ex.getMessage());
+            return;
+        }
+        if (this.closed.get())
+        {
+            this.multicast.close();
+            return;
+        }
+        send(new Message(MessageType.MULTICAST_JOIN, "", this.username));
+    }
+
+    /**
+     * Closes the socket once and notifies listeners
+     *
+     * @param cause Exception that caused closure, null if requested
+     */
+    void closeWith(Exception cause)
+    {
+        if (!this.closed.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            this.sock.close();
+        }
+        catch (IOException ex)
+        {
+            System.err.println("[ERROR] " + ex.getMessage());
+        }
+        MulticastReceiver receiver = this.multicast;
+        if (receiver != null)
+        {
+            receiver.close();
+        }
+        // An upload waiting for the server's answer gives up
+        this.fileAcks.offer(SocketOutputThread.CONNECTION_LOST);
+        if (this.reading)
+        {
+            // Lets the reader clean up
+            readable();
+        }
+        this.finished.countDown();
+        for (MessageListener listener : this.listeners)
+        {
+            listener.onClose(this, cause);
+        }
+    }
+
+    /**
+     * Closes the session. Messages already queued on the writer will fail.
+     * A resumable session says goodbye first, so that the server lets go of
+     * it at once instead of holding it for a resume. The server answers with
+     * ACK_QUIT; reading up to it keeps unread data from turning our close
+     * into a reset that could swallow the goodbye.
+     */
+    @Override
+    public void close()
+    {
+        if (this.closed.get())
+        {
+            return;
+        }
+        if (this.resumeToken != null)
+        {
+            try
+            {
+                send(new Message(MessageType.CLIENT_QUIT, "", this.username))
+                    .get(QUIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (Thread.currentThread() != this.reader)
+                {
+                    this.finished.await(QUIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException | TimeoutException ex)
+            {
+                // Closing anyway, the server releases the session once its
+                // resume window has passed
+            }
+        }
+        closeWith(null);
+    }
+}
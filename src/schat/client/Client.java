@@ -5,9 +5,11 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import schat.message.*;
 
 /**
@@ -35,7 +37,10 @@ public class Client implements Runnable
     public Client(String username, int port, String serverAddress) throws IOException
     {
         this.username = username;
-        this.sock = new Socket(serverAddress, port);
+        // Opened through a channel so that uploads can use transferTo
+        this.sock = SocketChannel.open(
+            new InetSocketAddress(serverAddress, port)
+        ).socket();
         this.stdIn = new BufferedReader(new InputStreamReader(System.in));
         this.introduction = new Message(MessageType.CLIENT_INTRODUCTION, "", username);
     }
@@ -116,12 +121,13 @@ public class Client implements Runnable
      * First: The client sends what is called an "introduction" message with
      * it's username, that is checked by the server for availability.
      *
-     * Next: the read / write threads are started.
+     * Next: the write thread is started, and this thread reads until the
+     * connection ends or the server says goodbye. The write thread waits on
+     * the console and cannot be stopped, so it does not keep the JVM alive.
      */
     @Override
     public void run()
     {
-        ExecutorService ioThreadPool = Executors.newFixedThreadPool(2);
         try
         {
             Message message;
@@ -131,14 +137,23 @@ public class Client implements Runnable
 
             negotiateUsername(sockIn, sockOut);
 
-            ioThreadPool.execute(
+            // Replies to file announcements arrive on the reader's stream but
+            // are awaited by the writer
+            BlockingQueue<Message> fileAcks = new LinkedBlockingQueue<>();
+
+            Thread writer = new Thread(
                 new SocketOutputThread(
-                    this.username, this.sock, this.sockOut, System.in
-                )
-            );
-            ioThreadPool.execute(
-                new SocketInputThread(this.username, this.sock, this.sockIn)
+                    this.username, this.sock, this.sockOut, System.in,
+                    fileAcks
+                ),
+                "schat-console"
             );
+            writer.setDaemon(true);
+            writer.start();
+            new SocketInputThread(
+                this.username, this.sock, this.sockIn, this.sockOut,
+                fileAcks
+            ).run();
         }
         catch (IOException | ClassNotFoundException ex)
         {
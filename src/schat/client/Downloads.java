@@ -0,0 +1,352 @@
+package schat.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import schat.io.BufferPool;
+import schat.message.Message;
+import schat.message.MessageType;
+
+/**
+ * Reassembles incoming files. The server announces a file with a file
+ * message and then sends its bytes as FILE_CHUNK frames carrying the same
+ * transfer ID. Chunks of several files may interleave with each other and
+ * with ordinary messages, so every open transfer is tracked until its last
+ * byte has arrived.
+ *
+ * The reader only copies chunks off the socket. Disk writes happen
+ * on a writer thread of their own, started with the first download, so that
+ * they overlap with reading the next chunks. Target files are preallocated
+ * to their final size and written through a {@link FileChannel}; files of at
+ * least MAP_THRESHOLD bytes are written through memory mapped windows instead
+ * when the system property {@code schat.downloads.mmap} is set.
+ *
+ * Not thread safe, meant to be driven by one reader of the connection at a
+ * time.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+class Downloads
+{
+    private static final boolean MMAP = Boolean.getBoolean("schat.downloads.mmap");
+    private static final long MAP_THRESHOLD = 16L << 20;
+    // Size of the region mapped at a time, keeps address space use bounded
+    private static final long MAP_WINDOW = 64L << 20;
+    // Chunks read but not yet written, bounds the memory a slow disk can use
+    private static final int MAX_PENDING_CHUNKS = 64;
+    // Largest chunk accepted, anything bigger means the stream is corrupt
+    private static final int MAX_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * State of one transfer. The reader owns remaining, the writer owns the
+     * channel, position and window.
+     */
+    private static final class Download
+    {
+        private final Message header;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final boolean mapped;
+        private long remaining;
+        private long position = 0;
+        private MappedByteBuffer window;
+        private long windowEnd = 0;
+        private volatile IOException failure;
+
+        private Download(Message header, File target) throws IOException
+        {
+            this.header = header;
+            this.remaining = header.getPayloadSize();
+            this.file = new RandomAccessFile(target, "rw");
+            try
+            {
+                // Reserve the space up front, the file never grows piecemeal
+                this.file.setLength(Math.max(this.remaining, 0));
+            }
+            catch (IOException ex)
+            {
+                this.file.close();
+                throw ex;
+            }
+            this.channel = this.file.getChannel();
+            this.mapped = MMAP && this.remaining >= MAP_THRESHOLD;
+        }
+
+        /**
+         * Writes the next bytes of the file, on the writer thread
+         */
+        private void write(ByteBuffer data) throws IOException
+        {
+            if (!this.mapped)
+            {
+                while (data.hasRemaining())
+                {
+                    this.position += this.channel.write(data, this.position);
+                }
+                return;
+            }
+            while (data.hasRemaining())
+            {
+                if (this.window == null || !this.window.hasRemaining())
+                {
+                    long size = Math.min(
+                        MAP_WINDOW, this.header.getPayloadSize() - this.windowEnd
+                    );
+                    this.window = this.channel.map(
+                        FileChannel.MapMode.READ_WRITE, this.windowEnd, size
+                    );
+                    this.windowEnd += size;
+                }
+                int n = Math.min(data.remaining(), this.window.remaining());
+                ByteBuffer slice = data.duplicate();
+                slice.limit(slice.position() + n);
+                this.window.put(slice);
+                data.position(data.position() + n);
+                this.position += n;
+            }
+        }
+
+        private void close() throws IOException
+        {
+            if (this.window != null)
+            {
+                this.window.force();
+                this.window = null;
+            }
+            this.file.close();
+        }
+    }
+
+    private final String downloadPath;
+    private final Map<Long, Download> open = new HashMap<>();
+    private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+    private ExecutorService writer;
+
+    /**
+     * @param downloadPath Directory in which received files are stored
+     */
+    Downloads(String downloadPath)
+    {
+        this.downloadPath = downloadPath;
+    }
+
+    /**
+     * Checks if a message belongs to a file transfer
+     *
+     * @param message Message read off the connection
+     * @return true for file announcements and chunks
+     */
+    static boolean isTransfer(Message message)
+    {
+        return message.isFileMessage()
+            || message.getType() == MessageType.FILE_CHUNK;
+    }
+
+    /**
+     * Handles a file announcement or chunk. The chunk's bytes are read from
+     * the stream right behind its header and handed to the writer thread.
+     *
+     * @param message File message or FILE_CHUNK header
+     * @param in Stream the message was read from
+     * @return The file announcement once the whole file is stored, null
+     * while the transfer is still in progress
+     * @throws IOException if the stream fails mid chunk
+     */
+    Message accept(Message message, ObjectInputStream in) throws IOException
+    {
+        if (message.isFileMessage())
+        {
+            return begin(message);
+        }
+
+        Download download = this.open.get(message.getTransferId());
+        if (message.getPayloadSize() < 0
+            || message.getPayloadSize() > MAX_CHUNK_SIZE)
+        {
+            throw new IOException(
+                "Malformed file chunk of " + message.getPayloadSize() + " bytes"
+            );
+        }
+        int length = (int) message.getPayloadSize();
+        BufferPool.Lease lease = BufferPool.shared().acquire(length);
+        try
+        {
+            // Always consume the chunk, even for an unknown transfer, or the
+            // stream falls out of step
+            in.readFully(lease.array(), 0, length);
+        }
+        catch (IOException ex)
+        {
+            lease.close();
+            throw ex;
+        }
+        if (download == null)
+        {
+            lease.close();
+            return null;
+        }
+
+        this.pendingChunks.acquireUninterruptibly();
+        writer().execute(() ->
+        {
+            try
+            {
+                if (download.failure == null)
+                {
+                    ByteBuffer data = lease.buffer();
+                    data.clear().limit(length);
+                    download.write(data);
+                }
+            }
+            catch (IOException ex)
+            {
+                download.failure = ex;
+            }
+            finally
+            {
+                lease.close();
+                this.pendingChunks.release();
+            }
+        });
+        download.remaining -= length;
+        return download.remaining <= 0 ? complete(download) : null;
+    }
+
+    private ExecutorService writer()
+    {
+        if (this.writer == null)
+        {
+            this.writer = Executors.newSingleThreadExecutor(r ->
+            {
+                Thread t = new Thread(r, "schat-downloads");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return this.writer;
+    }
+
+    private Message begin(Message message)
+    {
+        File downloadDir = new File(this.downloadPath);
+        if (!downloadDir.exists())
+        {
+            downloadDir.mkdirs();
+        }
+
+        System.out.format("Recieving file: %s (%d bytes) from user @%s%n",
+            message.getBody(), message.getPayloadSize(), message.getFrom()
+        );
+
+        Download download;
+        try
+        {
+            download = new Download(
+                message, new File(this.downloadPath + "/" + message.getBody())
+            );
+        }
+        catch (IOException ex)
+        {
+            // Chunks of this transfer are skipped when they arrive
+            System.err.println("[ERROR] " + ex.getMessage());
+            return null;
+        }
+        if (download.remaining <= 0)
+        {
+            return complete(download);
+        }
+        this.open.put(message.getTransferId(), download);
+        return null;
+    }
+
+    /**
+     * Waits for the writer to store everything queued for a download and
+     * closes its file
+     *
+     * @return The file announcement, null if the file could not be written
+     */
+    private Message complete(Download download)
+    {
+        this.open.remove(download.header.getTransferId());
+        IOException failure = finish(download);
+        if (failure != null)
+        {
+            System.err.println("[ERROR] " + failure.getMessage());
+            return null;
+        }
+        System.out.println("File recieved.");
+        return download.header;
+    }
+
+    /**
+     * Closes a download's file on the writer thread, after every chunk
+     * queued before
+     *
+     * @return The first error the download ran into, null if none
+     */
+    private IOException finish(Download download)
+    {
+        CompletableFuture<IOException> closed = new CompletableFuture<>();
+        writer().execute(() ->
+        {
+            try
+            {
+                download.close();
+            }
+            catch (IOException ex)
+            {
+                if (download.failure == null)
+                {
+                    download.failure = ex;
+                }
+            }
+            closed.complete(download.failure);
+        });
+        try
+        {
+            return closed.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return new IOException("Interrupted while storing " + download.header.getBody());
+        }
+        catch (ExecutionException ex)
+        {
+            return new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Closes the files of all unfinished transfers and stops the writer,
+     * e.g. when the connection drops
+     *
+     * @return Number of transfers abandoned
+     */
+    int abandonAll()
+    {
+        int abandoned = this.open.size();
+        for (Download download : this.open.values().toArray(new Download[0]))
+        {
+            this.open.remove(download.header.getTransferId());
+            finish(download);
+        }
+        if (this.writer != null)
+        {
+            this.writer.shutdown();
+            this.writer = null;
+        }
+        return abandoned;
+    }
+}
@@ -0,0 +1,461 @@
+package schat.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import schat.io.BufferPool;
+import schat.io.Connection;
+
+/**
+ * The stream a {@link ChatSession}'s object stream reads from. During the
+ * handshake it reads the connection directly, blocking. Once switched over
+ * with {@link #readAsync()} it only hands out bytes already read off the
+ * connection, and tells whether a whole frame is buffered, so that the
+ * object stream never has to wait for the rest of one.
+ *
+ * Frames are recognised from the serialization protocol, as far as the
+ * server writes it: messages are externalizable objects written as block
+ * data, or refer back to ones written before; file chunks are bare block
+ * data, and resets may come in between. Anything else means the stream is
+ * corrupt.
+ *
+ * The buffer is leased from the {@link BufferPool} for a burst of reads and
+ * given back once everything in it is consumed, so idle sessions hold no
+ * buffer and busy ones do not allocate. It only grows for a frame that does
+ * not fit, straight to the size the frame is known to need.
+ *
+ * Not thread safe, meant to be driven by one reader at a time.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+final class FrameBuffer extends InputStream implements ObjectStreamConstants
+{
+    // Leased for every burst of reads, and given back once all is consumed
+    // so that idle sessions hold no buffer
+    private static final int INITIAL_SIZE = 8 * 1024;
+    // Room for the largest frame: a file chunk with its block headers
+    private static final int MAX_SIZE = 2 << 20;
+    // Longest a block data record of an object stream gets, and the length of
+    // the header in front of a long one
+    private static final int MAX_BLOCK = 1024;
+    private static final int BLOCK_HEADER = 5;
+    // Left over bytes up to this many are kept without holding a lease, e.g.
+    // a reset the object stream only takes along with the next message
+    private static final int SPARE_BYTES = 64;
+
+    private final Connection connection;
+    private final InputStream blocking;
+    private boolean async = false;
+    // Unconsumed bytes are buffer[start, end). The buffer is the lease's
+    // array, or a small spare one while no lease is held.
+    private BufferPool.Lease lease;
+    private byte[] buffer;
+    private int start = 0;
+    private int end = 0;
+    // Bytes from start the frame in progress needs, 0 if not known
+    private int wanted = 0;
+
+    /**
+     * @param connection Connection read from
+     * @throws IOException if the connection is closed
+     */
+    FrameBuffer(Connection connection) throws IOException
+    {
+        this.connection = connection;
+        this.blocking = connection.getInputStream();
+    }
+
+    /**
+     * Stops reading the connection directly, see
+     * {@link Connection#readAsync(Runnable)}
+     */
+    void readAsync()
+    {
+        this.async = true;
+    }
+
+    /**
+     * Reads what has arrived, until the buffer is full
+     *
+     * @return -1 at end of stream, 0 once nothing more had arrived, which
+     * arms the connection's listener, 1 if the buffer filled up first
+     * @throws IOException if the connection is closed, or a frame does not
+     * fit into the largest buffer
+     */
+    int fill() throws IOException
+    {
+        if (this.lease == null)
+        {
+            lease(Math.max(INITIAL_SIZE, this.wanted));
+        }
+        else if (this.start > 0)
+        {
+            compact();
+        }
+        if (this.wanted > this.buffer.length)
+        {
+            lease(this.wanted);
+        }
+        else if (this.end == this.buffer.length)
+        {
+            // Not known how much more the frame needs
+            if (this.buffer.length >= MAX_SIZE)
+            {
+                throw new StreamCorruptedException("Frame exceeds " + MAX_SIZE + " bytes");
+            }
+            lease(Math.min(this.buffer.length * 2, MAX_SIZE));
+        }
+        while (this.end < this.buffer.length)
+        {
+            int n = this.connection.readAvailable(
+                this.buffer, this.end, this.buffer.length - this.end
+            );
+            if (n <= 0)
+            {
+                return n;
+            }
+            this.end += n;
+        }
+        return 1;
+    }
+
+    /**
+     * Gives the buffer back to the pool at the end of a burst of reads,
+     * unless it holds part of a frame still arriving. A few left over bytes
+     * are kept aside.
+     */
+    void trim()
+    {
+        int length = this.end - this.start;
+        if (this.lease == null || length > SPARE_BYTES)
+        {
+            return;
+        }
+        byte[] spare = length == 0 ? null : new byte[length];
+        if (length > 0)
+        {
+            System.arraycopy(this.buffer, this.start, spare, 0, length);
+        }
+        release();
+        this.buffer = spare;
+        this.end = length;
+    }
+
+    /**
+     * Gives the buffer back to the pool, dropping whatever is in it. Called
+     * once the session stopped reading.
+     */
+    void release()
+    {
+        if (this.lease != null)
+        {
+            this.lease.close();
+            this.lease = null;
+        }
+        this.buffer = null;
+        this.start = 0;
+        this.end = 0;
+    }
+
+    /**
+     * Moves the unconsumed bytes to the start of a newly leased buffer of at
+     * least the given size, and gives the old one back
+     */
+    private void lease(int size)
+    {
+        int length = this.end - this.start;
+        BufferPool.Lease next = BufferPool.shared().acquire(size);
+        byte[] target = next.array();
+        if (length > 0)
+        {
+            System.arraycopy(this.buffer, this.start, target, 0, length);
+        }
+        if (this.lease != null)
+        {
+            this.lease.close();
+        }
+        this.lease = next;
+        this.buffer = target;
+        this.start = 0;
+        this.end = length;
+    }
+
+    /**
+     * Moves the unconsumed bytes to the start of the buffer
+     */
+    private void compact()
+    {
+        int length = this.end - this.start;
+        System.arraycopy(this.buffer, this.start, this.buffer, 0, length);
+        this.start = 0;
+        this.end = length;
+    }
+
+    /**
+     * @return true if a whole object, after any resets, is buffered
+     * @throws StreamCorruptedException if something else comes next
+     */
+    boolean hasObject() throws StreamCorruptedException
+    {
+        // An object's size is not known up front
+        this.wanted = 0;
+        int p = skipResets(this.start);
+        if (p >= this.end)
+        {
+            return false;
+        }
+        switch (this.buffer[p])
+        {
+            case TC_OBJECT:
+                break;
+            case TC_REFERENCE:
+                // A message written again before the stream was reset
+                return p + 5 <= this.end;
+            case TC_NULL:
+                return true;
+            default:
+                throw corrupt(p);
+        }
+        p = classDesc(p + 1);
+        return p >= 0 && blockData(p) >= 0;
+    }
+
+    /**
+     * @param length Bytes of block data wanted, a file chunk's payload
+     * @return true if that many bytes of block data, in whole records, are
+     * buffered
+     * @throws StreamCorruptedException if something else comes first
+     */
+    boolean hasBlockData(long length) throws StreamCorruptedException
+    {
+        if (length > MAX_SIZE)
+        {
+            throw new StreamCorruptedException("Block data exceeds " + MAX_SIZE + " bytes");
+        }
+        int p = this.start;
+        long got = 0;
+        while (got < length)
+        {
+            p = skipResets(p);
+            int header = blockHeader(p);
+            if (header <= 0 || p + header + (long) blockSize(p) > this.end)
+            {
+                // The rest arrives in records of at most MAX_BLOCK bytes
+                long remaining = length - got;
+                this.wanted = (int) Math.min(
+                    p - this.start + remaining + BLOCK_HEADER * (remaining / MAX_BLOCK + 2),
+                    MAX_SIZE
+                );
+                return false;
+            }
+            int size = blockSize(p);
+            p += header + size;
+            got += size;
+        }
+        this.wanted = 0;
+        return true;
+    }
+
+    private int skipResets(int p)
+    {
+        while (p < this.end && this.buffer[p] == TC_RESET)
+        {
+            ++p;
+        }
+        return p;
+    }
+
+    /**
+     * @return Length of the header of the block data record at p, 0 if it
+     * is not buffered yet
+     */
+    private int blockHeader(int p) throws StreamCorruptedException
+    {
+        if (p >= this.end)
+        {
+            return 0;
+        }
+        switch (this.buffer[p])
+        {
+            case TC_BLOCKDATA:
+                return p + 2 <= this.end ? 2 : 0;
+            case TC_BLOCKDATALONG:
+                return p + 5 <= this.end ? 5 : 0;
+            default:
+                throw corrupt(p);
+        }
+    }
+
+    private int blockSize(int p) throws StreamCorruptedException
+    {
+        int size = this.buffer[p] == TC_BLOCKDATA
+            ? this.buffer[p + 1] & 0xff
+            : readInt(p + 1);
+        if (size < 0)
+        {
+            throw corrupt(p);
+        }
+        return size;
+    }
+
+    /**
+     * @return Position past block data records and their TC_ENDBLOCKDATA
+     * starting at p, -1 if not all of them are buffered
+     */
+    private int blockData(int p) throws StreamCorruptedException
+    {
+        while (p < this.end && this.buffer[p] != TC_ENDBLOCKDATA)
+        {
+            int header = blockHeader(p);
+            if (header == 0)
+            {
+                return -1;
+            }
+            long next = p + header + (long) blockSize(p);
+            if (next >= this.end)
+            {
+                return -1;
+            }
+            p = (int) next;
+        }
+        return p < this.end ? p + 1 : -1;
+    }
+
+    /**
+     * @return Position past the class descriptor at p, with its super class
+     * descriptors, -1 if not all of it is buffered
+     */
+    private int classDesc(int p) throws StreamCorruptedException
+    {
+        if (p >= this.end)
+        {
+            return -1;
+        }
+        switch (this.buffer[p])
+        {
+            case TC_NULL:
+                return p + 1;
+            case TC_REFERENCE:
+                return p + 5 <= this.end ? p + 5 : -1;
+            case TC_CLASSDESC:
+                break;
+            default:
+                throw corrupt(p);
+        }
+        // Name, serialVersionUID and flags
+        p = utf(p + 1);
+        if (p < 0 || p + 11 > this.end)
+        {
+            return -1;
+        }
+        p += 9;
+        int fields = readShort(p);
+        p += 2;
+        for (int i = 0; i < fields; ++i)
+        {
+            if (p >= this.end)
+            {
+                return -1;
+            }
+            byte type = this.buffer[p];
+            p = utf(p + 1);
+            if (p >= 0 && (type == 'L' || type == '['))
+            {
+                p = typeString(p);
+            }
+            if (p < 0)
+            {
+                return -1;
+            }
+        }
+        // Class annotation, then the super class
+        p = blockData(p);
+        return p < 0 ? -1 : classDesc(p);
+    }
+
+    private int typeString(int p) throws StreamCorruptedException
+    {
+        if (p >= this.end)
+        {
+            return -1;
+        }
+        switch (this.buffer[p])
+        {
+            case TC_STRING:
+                return utf(p + 1);
+            case TC_REFERENCE:
+                return p + 5 <= this.end ? p + 5 : -1;
+            default:
+                throw corrupt(p);
+        }
+    }
+
+    private int utf(int p)
+    {
+        if (p + 2 > this.end)
+        {
+            return -1;
+        }
+        p += 2 + readShort(p);
+        return p <= this.end ? p : -1;
+    }
+
+    private int readShort(int p)
+    {
+        return (this.buffer[p] & 0xff) << 8 | this.buffer[p + 1] & 0xff;
+    }
+
+    private int readInt(int p)
+    {
+        return readShort(p) << 16 | readShort(p + 2);
+    }
+
+    private StreamCorruptedException corrupt(int p)
+    {
+        return new StreamCorruptedException(String.format(
+            "Unexpected type code 0x%02x", this.buffer[p] & 0xff
+        ));
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!this.async)
+        {
+            return this.blocking.read();
+        }
+        if (this.start == this.end)
+        {
+            throw new StreamCorruptedException("Frame ended early");
+        }
+        return this.buffer[this.start++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (!this.async)
+        {
+            return this.blocking.read(b, off, len);
+        }
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (this.start == this.end)
+        {
+            throw new StreamCorruptedException("Frame ended early");
+        }
+        int n = Math.min(len, this.end - this.start);
+        System.arraycopy(this.buffer, this.start, b, off, n);
+        this.start += n;
+        return n;
+    }
+
+    @Override
+    public int available()
+    {
+        return this.async ? this.end - this.start : 0;
+    }
+}
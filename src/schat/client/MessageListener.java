@@ -0,0 +1,52 @@
+package schat.client;
+
+import schat.message.Message;
+
+/**
+ * Callback interface for consumers of a {@link ChatSession}. Callbacks are
+ * made from the session's reader, on the group's shared reader pool, so
+ * implementations should hand off any long running work instead of blocking
+ * it.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public interface MessageListener
+{
+    /**
+     * Called for every message the server relays to the session. File
+     * messages are delivered after their payload has been stored.
+     *
+     * @param session Session that received the message
+     * @param message Message received from the server
+     */
+    void onMessage(ChatSession session, Message message);
+
+    /**
+     * Called once when the session's connection is closed, either on request
+     * or because of an error.
+     *
+     * @param session Session that was closed
+     * @param cause Exception that closed the session, null on a clean close
+     */
+    default void onClose(ChatSession session, Exception cause)
+    {
+    }
+
+    /**
+     * Called while a file sent through the session is being uploaded, see
+     * {@link TransferProgress}. Made from the session's writer.
+     *
+     * @param session Session sending the file
+     * @param file Message announcing the file
+     * @param transferred Bytes sent so far
+     * @param total Size of the file in bytes
+     */
+    default void onProgress(
+        ChatSession session,
+        Message file,
+        long transferred,
+        long total
+    )
+    {
+    }
+}
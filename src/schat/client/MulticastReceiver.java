@@ -0,0 +1,231 @@
+package schat.client;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.TreeMap;
+import schat.message.Message;
+import schat.message.MessageType;
+import schat.message.MulticastDatagram;
+
+/**
+ * Receives the text broadcasts a server publishes on a multicast group, on
+ * behalf of one {@link ChatSession}, and hands them to it in number order.
+ *
+ * Broadcasts reach a subscriber on the group, over TCP before the server saw
+ * its subscription, and over TCP again when repaired; each number is
+ * delivered once. Gaps in the numbers, found from later broadcasts or the
+ * server's heartbeats, are asked for with a {@link MessageType#MULTICAST_NAK}.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+class MulticastReceiver
+{
+    // Wakes the receiving thread to ask again for what is still missing
+    private static final int RECEIVE_TIMEOUT_MILLIS = 100;
+    private static final long NAK_RETRY_MILLIS = 200;
+    // Room for a burst of broadcasts while listeners are busy; whatever
+    // overflows has to be repaired over TCP
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+    private final ChatSession session;
+    private final MulticastSocket socket;
+    private final InetSocketAddress group;
+    private final NetworkInterface nif;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    // Guarded by this: next number to deliver, broadcasts received ahead of
+    // it, the next number the server is known to give out, and the last NAK
+    private long expected;
+    private final TreeMap<Long, Message> pending = new TreeMap<>();
+    private long known;
+    private long nakFrom = -1;
+    private long nakAt = 0;
+
+    /**
+     * Joins the group and starts receiving
+     *
+     * @param session Session broadcasts are delivered to
+     * @param group Group as address:port, from the server's offer
+     * @param first Number of the first broadcast to deliver
+     * @param local Local address of the session's connection, picks the
+     * interface facing the server
+     * @throws IOException if the group cannot be joined
+     */
+    MulticastReceiver(ChatSession session, String group, long first, InetAddress local)
+        throws IOException
+    {
+        int colon = group.lastIndexOf(':');
+        this.session = session;
+        this.group = new InetSocketAddress(
+            InetAddress.getByName(group.substring(0, colon)),
+            Integer.parseInt(group.substring(colon + 1))
+        );
+        this.expected = first;
+        this.known = first;
+        this.nif = NetworkInterface.getByInetAddress(local);
+        this.socket = new MulticastSocket(this.group.getPort());
+        try
+        {
+            this.socket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+            this.socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            this.socket.joinGroup(this.group, this.nif);
+        }
+        catch (IOException ex)
+        {
+            this.socket.close();
+            throw ex;
+        }
+        this.thread = new Thread(this::receive, "schat-multicast-" + session.getUsername());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void receive()
+    {
+        byte[] buffer = new byte[MulticastDatagram.MAX_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!this.closed)
+        {
+            try
+            {
+                packet.setLength(buffer.length);
+                this.socket.receive(packet);
+                MulticastDatagram datagram = MulticastDatagram.parse(buffer, packet.getLength());
+                if (datagram == null)
+                {
+                    continue;
+                }
+                if (datagram.getKind() == MulticastDatagram.HEARTBEAT)
+                {
+                    heard(datagram.getSequence());
+                }
+                else
+                {
+                    accept(datagram.getMessage());
+                }
+            }
+            catch (SocketTimeoutException ex)
+            {
+                heard(-1);
+            }
+            catch (SocketException ex)
+            {
+                // Closed
+                return;
+            }
+            catch (IOException ex)
+            {
+                System.err.println("[ERROR] Multicast: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Takes a numbered broadcast, from the group or over TCP
+     *
+     * @param message Broadcast carrying its sequence number
+     */
+    synchronized void accept(Message message)
+    {
+        long sequence = message.getSequence();
+        if (sequence < this.expected || this.pending.containsKey(sequence))
+        {
+            return;
+        }
+        this.pending.put(sequence, message);
+        this.known = Math.max(this.known, sequence + 1);
+        deliverReady();
+        requestMissing();
+    }
+
+    /**
+     * Gives up on broadcasts the server no longer keeps. Numbers from the
+     * server's next one on were never published, whatever a stray datagram
+     * on the group claimed: they are forgotten and no longer asked for.
+     *
+     * @param gap MULTICAST_GAP with the first lost and one past the last lost
+     * number in its body, optionally followed by the number of the server's
+     * next broadcast
+     */
+    synchronized void skip(Message gap)
+    {
+        String[] range = gap.getBody().split(" ");
+        long to = Long.parseLong(range[1]);
+        if (range.length > 2)
+        {
+            long next = Long.parseLong(range[2]);
+            this.pending.tailMap(next).clear();
+            this.known = Math.max(Math.min(this.known, next), this.expected);
+        }
+        if (to > this.expected)
+        {
+            System.err.println("[WARN] " + (to - this.expected) + " broadcast(s) to "
+                + this.session.getUsername() + " were lost");
+            this.expected = to;
+            this.pending.headMap(to).clear();
+            deliverReady();
+        }
+    }
+
+    /**
+     * @return Number of the next broadcast to deliver, where a resumed
+     * session's receiver takes over
+     */
+    synchronized long getExpected()
+    {
+        return this.expected;
+    }
+
+    private synchronized void heard(long next)
+    {
+        this.known = Math.max(this.known, next);
+        requestMissing();
+    }
+
+    private void deliverReady()
+    {
+        Map.Entry<Long, Message> head;
+        while ((head = this.pending.firstEntry()) != null && head.getKey() == this.expected)
+        {
+            this.pending.pollFirstEntry();
+            ++this.expected;
+            // Our own broadcasts come back on the group, but were never
+            // delivered to us over TCP either
+            if (!this.session.getUsername().equals(head.getValue().getFrom()))
+            {
+                this.session.deliver(head.getValue());
+            }
+        }
+    }
+
+    private void requestMissing()
+    {
+        long end = this.pending.isEmpty() ? this.known : this.pending.firstKey();
+        long now = System.currentTimeMillis();
+        if (end <= this.expected
+            || (this.nakFrom == this.expected && now - this.nakAt < NAK_RETRY_MILLIS))
+        {
+            return;
+        }
+        this.nakFrom = this.expected;
+        this.nakAt = now;
+        this.session.send(new Message(MessageType.MULTICAST_NAK, this.expected + " " + end, ""));
+    }
+
+    /**
+     * Leaves the group and stops receiving
+     */
+    void close()
+    {
+        this.closed = true;
+        this.socket.close();
+    }
+}
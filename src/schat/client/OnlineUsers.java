@@ -0,0 +1,123 @@
+package schat.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import schat.message.Message;
+import schat.message.MessageType;
+
+/**
+ * Client side copy of the server's presence roster, kept up to date from
+ * PRESENCE_SNAPSHOT and PRESENCE_DELTA frames.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class OnlineUsers
+{
+    // Username to session ID
+    private final TreeMap<String, Integer> users = new TreeMap<>();
+    private long version = -1;
+
+    /**
+     * Checks if a message is a presence frame
+     *
+     * @param message Message received from the server
+     * @return true if the message should be passed to {@link #apply(Message)}
+     */
+    public static boolean isPresence(Message message)
+    {
+        return message.getType() == MessageType.PRESENCE_SNAPSHOT
+            || message.getType() == MessageType.PRESENCE_DELTA;
+    }
+
+    /**
+     * Applies a presence frame. Deltas are idempotent set operations, so a
+     * delta overlapping the snapshot is harmless; deltas older than the
+     * current version are ignored.
+     *
+     * @param message PRESENCE_SNAPSHOT or PRESENCE_DELTA frame
+     * @return Human readable changes, e.g. "+alice" and "-bob"; the whole
+     * roster for a snapshot
+     */
+    public synchronized List<String> apply(Message message)
+    {
+        List<String> changes = new ArrayList<>();
+        String[] entries = message.getRecipients();
+        int[] ids = message.getRecipientIds();
+        if (message.getType() == MessageType.PRESENCE_SNAPSHOT)
+        {
+            this.version = Long.parseLong(message.getBody());
+            this.users.clear();
+            for (int i = 0; i < entries.length; ++i)
+            {
+                this.users.put(entries[i], ids == null ? -1 : ids[i]);
+                changes.add(entries[i]);
+            }
+            return changes;
+        }
+
+        long toVersion = Long.parseLong(
+            message.getBody().substring(message.getBody().indexOf(' ') + 1)
+        );
+        if (toVersion <= this.version)
+        {
+            return changes;
+        }
+        this.version = toVersion;
+        String entry;
+        for (int i = 0; i < entries.length; ++i)
+        {
+            entry = entries[i];
+            boolean changed = entry.charAt(0) == '+'
+                ? this.users.put(entry.substring(1), ids == null ? -1 : ids[i]) == null
+                : this.users.remove(entry.substring(1)) != null;
+            if (changed)
+            {
+                changes.add(entry);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Returns the users currently known to be online
+     *
+     * @return Sorted usernames
+     */
+    public synchronized List<String> getUsers()
+    {
+        return new ArrayList<>(this.users.keySet());
+    }
+
+    /**
+     * Translates usernames to the session IDs the server assigned them
+     *
+     * @param usernames Usernames to be translated
+     * @return Session IDs in the same order, null if any user is unknown
+     */
+    public synchronized int[] idsOf(String[] usernames)
+    {
+        int[] ids = new int[usernames.length];
+        Integer id;
+        for (int i = 0; i < usernames.length; ++i)
+        {
+            id = this.users.get(usernames[i]);
+            if (id == null || id < 0)
+            {
+                return null;
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Accessor method for the roster version
+     *
+     * @return Server side version of the roster, -1 before the snapshot
+     */
+    public synchronized long getVersion()
+    {
+        return this.version;
+    }
+}
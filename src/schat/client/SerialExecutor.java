@@ -0,0 +1,130 @@
+package schat.client;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one at a time, in the order given, on threads of shared pools.
+ * Gives every {@link ChatSession} an ordered writer of its own without a
+ * thread of its own. A task may name the pool it runs on, so a write that
+ * is known to block for long can be moved off the pool the quick writes of
+ * all sessions share, without overtaking or being overtaken.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+final class SerialExecutor implements Executor
+{
+    private final Executor pool;
+    // Guarded by this: tasks not started yet with the pool each runs on, and
+    // whether a pool thread is working through them
+    private final Queue<Task> tasks = new ArrayDeque<>();
+    private boolean running = false;
+
+    private static final class Task
+    {
+        final Runnable runnable;
+        final Executor pool;
+
+        Task(Runnable runnable, Executor pool)
+        {
+            this.runnable = runnable;
+            this.pool = pool;
+        }
+    }
+
+    /**
+     * @param pool Pool the tasks run on unless they name another
+     */
+    SerialExecutor(Executor pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the pool is shut down and no
+     * earlier task is still running
+     */
+    @Override
+    public void execute(Runnable task)
+    {
+        execute(task, this.pool);
+    }
+
+    /**
+     * Runs a task on the given pool, after the tasks given before it
+     *
+     * @param task Task to be run
+     * @param pool Pool the task runs on
+     * @throws RejectedExecutionException if the pool is shut down and no
+     * earlier task is still running
+     */
+    synchronized void execute(Runnable task, Executor pool)
+    {
+        Task queued = new Task(task, pool);
+        this.tasks.add(queued);
+        if (this.running)
+        {
+            return;
+        }
+        try
+        {
+            pool.execute(() -> drain(pool));
+        }
+        catch (RejectedExecutionException ex)
+        {
+            this.tasks.remove(queued);
+            throw ex;
+        }
+        this.running = true;
+    }
+
+    private void drain(Executor current)
+    {
+        while (true)
+        {
+            Task task;
+            synchronized (this)
+            {
+                task = this.tasks.peek();
+                if (task == null)
+                {
+                    this.running = false;
+                    return;
+                }
+                if (task.pool != current && handOver(task.pool))
+                {
+                    return;
+                }
+                this.tasks.poll();
+            }
+            try
+            {
+                task.runnable.run();
+            }
+            catch (RuntimeException ex)
+            {
+                // Keep going, or every later task of the owner would hang
+                System.err.println("[ERROR] " + ex);
+            }
+        }
+    }
+
+    /**
+     * @return true if the pool took over draining, false if it is shut down
+     * and the task has to run where the drain is
+     */
+    private boolean handOver(Executor pool)
+    {
+        try
+        {
+            pool.execute(() -> drain(pool));
+            return true;
+        }
+        catch (RejectedExecutionException ex)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package schat.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import schat.io.TcpTransport;
+import schat.io.Transport;
+
+/**
+ * Owns the threads shared by any number of {@link ChatSession} instances,
+ * so a JVM hosting thousands of bot sessions does not need two dedicated
+ * threads per session like the interactive {@link Client} does.
+ *
+ * Inbound traffic of every session is watched without blocking, by one
+ * poller thread for TCP connections, and a session's messages are decoded
+ * on the shared reader pool once whole frames have arrived. Outbound traffic
+ * goes through a queue per session, drained on the shared writer pool.
+ * Both pools have one thread per core, whatever the number of sessions.
+ *
+ * Work that waits on the server runs on a separate pool of
+ * {@value #BLOCKING_THREADS} threads: the introduction handshake, and file
+ * uploads, which wait for the server's answer before streaming the file.
+ * A session's upload still holds up the messages it sent after the file,
+ * and beyond {@value #BLOCKING_THREADS} concurrent uploads or handshakes the
+ * rest wait their turn. A write to a server that stops reading holds a
+ * writer thread, and with it a share of the other sessions' writes, until
+ * the connection fails.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class SessionGroup implements AutoCloseable
+{
+    private static final int BLOCKING_THREADS = 8;
+    private static final long IDLE_SECONDS = 60;
+
+    private final ExecutorService writers;
+    private final ExecutorService readers;
+    private final ExecutorService blocking;
+    private final String downloadPath;
+    private final Transport transport;
+    private volatile boolean multicast = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a session group storing received files under ./download/
+     */
+    public SessionGroup()
+    {
+        this("./download/");
+    }
+
+    /**
+     * Creates a session group storing received files under the given path
+     *
+     * @param downloadPath Directory under which each session gets its own
+     * download folder, named after its username
+     */
+    public SessionGroup(String downloadPath)
+    {
+        this(downloadPath, new TcpTransport());
+    }
+
+    /**
+     * Creates a session group connecting through the given transport, e.g. a
+     * {@link schat.io.MemoryTransport} a server in the same JVM listens on
+     *
+     * @param downloadPath Directory under which each session gets its own
+     * download folder, named after its username
+     * @param transport Transport sessions connect through
+     */
+    public SessionGroup(String downloadPath, Transport transport)
+    {
+        this.downloadPath = downloadPath;
+        this.transport = transport;
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.writers = pool(cores, "schat-session-writer");
+        this.readers = pool(cores, "schat-session-reader");
+        this.blocking = pool(BLOCKING_THREADS, "schat-session-blocking");
+    }
+
+    /**
+     * @return Pool of up to the given number of daemon threads, which expire
+     * once idle
+     */
+    private static ExecutorService pool(int threads, String prefix)
+    {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r ->
+            {
+                Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Opens a new session to 127.0.0.1. Alias for
+     * connect(username, port, "127.0.0.1")
+     *
+     * @param username Username to register with the server
+     * @param port Server port number to connect to
+     * @return Future completed with the session once the server accepted the
+     * username
+     */
+    public CompletableFuture<ChatSession> connect(String username, int port)
+    {
+        return connect(username, port, "127.0.0.1");
+    }
+
+    /**
+     * Opens a new session and registers the username with the server. Unlike
+     * {@link Client}, a rejected username is not renegotiated interactively,
+     * the future fails instead.
+     *
+     * @param username Username to register with the server
+     * @param port Server port number to connect to
+     * @param serverAddress Server IP address or host name
+     * @return Future completed with the session once the server accepted the
+     * username
+     */
+    public CompletableFuture<ChatSession> connect(
+        String username,
+        int port,
+        String serverAddress
+    )
+    {
+        return open(username, port, serverAddress, null);
+    }
+
+    /**
+     * Picks up a session whose connection dropped, on a new connection. The
+     * server held on to the session's name, so nobody else could claim it,
+     * and replays the text messages sent to it in the meantime. The new
+     * session keeps the listeners and settings of the dropped one, and
+     * resends the text messages the server had not confirmed.
+     *
+     * @param dropped Session whose connection was lost
+     * @return Future completed with the resumed session, failed if the server
+     * no longer holds the session
+     */
+    public CompletableFuture<ChatSession> resume(ChatSession dropped)
+    {
+        if (!dropped.isResumable())
+        {
+            CompletableFuture<ChatSession> result = new CompletableFuture<>();
+            result.completeExceptionally(new IOException(
+                "Session cannot be resumed: " + dropped.getUsername()
+            ));
+            return result;
+        }
+        return open(
+            dropped.getUsername(), dropped.getPort(), dropped.getServerAddress(),
+            dropped
+        );
+    }
+
+    private CompletableFuture<ChatSession> open(
+        String username,
+        int port,
+        String serverAddress,
+        ChatSession dropped
+    )
+    {
+        CompletableFuture<ChatSession> result = new CompletableFuture<>();
+        if (this.closed)
+        {
+            result.completeExceptionally(new IOException("Session group is closed"));
+            return result;
+        }
+        try
+        {
+            this.blocking.execute(
+                () -> handshake(result, username, port, serverAddress, dropped)
+            );
+        }
+        catch (RejectedExecutionException ex)
+        {
+            result.completeExceptionally(
+                new IOException("Session group is closed", ex)
+            );
+        }
+        return result;
+    }
+
+    /**
+     * Connects and introduces a session, on the blocking pool
+     */
+    private void handshake(
+        CompletableFuture<ChatSession> result,
+        String username,
+        int port,
+        String serverAddress,
+        ChatSession dropped
+    )
+    {
+        ChatSession session = null;
+        try
+        {
+            session = new ChatSession(
+                this, username, port, serverAddress,
+                this.downloadPath + username, dropped
+            );
+            session.negotiateUsername();
+            if (dropped != null)
+            {
+                // Queued ahead of anything sent on the resumed session
+                session.resend(dropped);
+            }
+            result.complete(session);
+            session.startReading();
+        }
+        catch (IOException | ClassNotFoundException ex)
+        {
+            if (!result.completeExceptionally(ex))
+            {
+                session.closeWith(ex);
+            }
+            else if (session != null)
+            {
+                session.closeWith(null);
+            }
+        }
+    }
+
+    /**
+     * Lets sessions opened from now on take text broadcasts from the
+     * multicast group their server offers, instead of over their own
+     * connection. Needs the server to run with --multicast and the group to
+     * be reachable from this host.
+     *
+     * @param multicast true to subscribe to offered groups
+     */
+    public void setMulticast(boolean multicast)
+    {
+        this.multicast = multicast;
+    }
+
+    /**
+     * @return true if sessions subscribe to offered multicast groups
+     */
+    public boolean isMulticast()
+    {
+        return this.multicast;
+    }
+
+    /**
+     * The transport sessions of this group connect through
+     *
+     * @return Transport given on construction, TCP by default
+     */
+    Transport transport()
+    {
+        return this.transport;
+    }
+
+    /**
+     * The pool the sessions of this group write on, each through its own
+     * {@link SerialExecutor}
+     *
+     * @return Executor shared by the writers of this group
+     */
+    ExecutorService writers()
+    {
+        return this.writers;
+    }
+
+    /**
+     * The pool the sessions of this group upload files on, in the order of
+     * their other writes
+     *
+     * @return Executor shared by the uploads and handshakes of this group
+     */
+    ExecutorService blocking()
+    {
+        return this.blocking;
+    }
+
+    /**
+     * The pool the sessions of this group decode inbound messages on
+     *
+     * @return Executor shared by the readers of this group
+     */
+    ExecutorService readers()
+    {
+        return this.readers;
+    }
+
+    /**
+     * Stops the group's writers. Sessions still open are not closed, and
+     * keep receiving, but will no longer be able to send. Reader threads
+     * are left to expire once idle.
+     */
+    @Override
+    public void close()
+    {
+        this.closed = true;
+        // No interrupts: sockets opened through channels would be closed by
+        // them
+        this.writers.shutdown();
+        this.blocking.shutdown();
+    }
+}
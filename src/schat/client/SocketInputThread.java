@@ -1,13 +1,15 @@
 package schat.client;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import schat.message.Message;
+import schat.message.MessageType;
 
 /**
  * @author Vaibhav Yenamandra (vyenman@ufl.edu)
@@ -17,19 +19,36 @@ public class SocketInputThread implements Runnable
     private final ObjectInputStream input;
     private final Socket sock;
     private final String username;
+    private final BlockingQueue<Message> fileAcks;
+    private final ObjectOutputStream output;
+    // Writes acknowledgements off the reading thread, which must never wait
+    // for an upload in progress on the output stream to finish
+    private final ExecutorService ackWriter = Executors.newSingleThreadExecutor(r ->
+    {
+        Thread t = new Thread(r, "schat-acks");
+        t.setDaemon(true);
+        return t;
+    });
+    private final OnlineUsers onlineUsers = new OnlineUsers();
+    private final Downloads downloads;
 
     private String downloadPath = "./download/";
 
     public SocketInputThread(
         String username,
         Socket sock,
-        ObjectInputStream input
+        ObjectInputStream input,
+        ObjectOutputStream output,
+        BlockingQueue<Message> fileAcks
     )
     {
+        this.output = output;
+        this.fileAcks = fileAcks;
         this.username = username;
         this.sock = sock;
         this.input = input;
         this.downloadPath = downloadPath.concat(this.username);
+        this.downloads = new Downloads(this.downloadPath);
     }
 
     /**
@@ -46,56 +65,85 @@ public class SocketInputThread implements Runnable
     }
 
     /**
-     * Helper method for processing inbound file transfers
+     * Helper method for printing presence updates
      *
-     * @param msg Message with file to be read from stream
+     * @param msg PRESENCE_SNAPSHOT or PRESENCE_DELTA frame
      */
-    private void processInboundFileMessage(Message msg)
+    private void processPresenceMessage(Message msg)
     {
-        File downloadDir = new File(downloadPath);
-
-        if (!downloadDir.exists())
+        List<String> changes = this.onlineUsers.apply(msg);
+        if (msg.getType() == MessageType.PRESENCE_SNAPSHOT)
         {
-            downloadDir.mkdirs();
+            System.out.println("[INFO] Online: " + String.join(", ", changes));
+            return;
         }
-
-        String fileOutputPath = downloadPath + "/" + msg.getBody();
-        File outFile = new File(fileOutputPath);
-        BufferedOutputStream fileOutStream = null;
-        BufferedInputStream in = null;
-        int size, currentPos, bytesRead;
-        byte[] buffer;
-
-        System.out.format("Recieving file: %s (%d bytes) from user @%s%n",
-            msg.getBody(), msg.getPayloadSize(), msg.getFrom()
-        );
-
-        try
+        for (String change : changes)
         {
-            outFile.createNewFile();
-            in = new BufferedInputStream(this.sock.getInputStream());
-            fileOutStream = new BufferedOutputStream(
-                new FileOutputStream(outFile)
-            );
-            size = (int) msg.getPayloadSize();
-            buffer = new byte[Message.MAX_PAYLOAD_SIZE];
-            currentPos = 0;
-            do
+            String user = change.substring(1);
+            if (!user.equals(this.username))
             {
-                bytesRead = in.read(buffer, 0, buffer.length);
-                fileOutStream.write(buffer, 0, bytesRead);
-                currentPos += bytesRead;
-            } while (bytesRead != -1 && currentPos < size);
-            fileOutStream.flush();
-            fileOutStream.close();
-            System.out.println("File recieved.");
+                System.out.format("[INFO] %s %s%n",
+                    user, change.charAt(0) == '+' ? "joined" : "left"
+                );
+            }
         }
-        catch (IOException ex)
+    }
+
+    /**
+     * Helper method for printing a page of search results
+     *
+     * @param msg SEARCH_RESULTS message, hits newest first
+     */
+    private void processSearchResults(Message msg)
+    {
+        String[] pages = msg.getBody().split(" ");
+        String[] hits = msg.getRecipients();
+        if (hits.length == 0)
         {
-            System.err.println("[ERROR] " + ex.getMessage());
+            System.out.println("[INFO] No messages found");
+            return;
+        }
+        System.out.println("[INFO] Search results, page " + pages[0] + ":");
+        for (String hit : hits)
+        {
+            System.out.println(hit);
+        }
+        if (!pages[1].equals("0"))
+        {
+            System.out.println("[INFO] More results with /search #" + pages[1] + " ...");
         }
     }
 
+    /**
+     * Acknowledges delivery of a message whose sender asked for it
+     *
+     * @param msg Text message, or file message once the file is stored
+     */
+    private void acknowledge(Message msg)
+    {
+        Message ack = Message.deliveryAck(msg, this.username);
+        this.ackWriter.execute(() ->
+        {
+            try
+            {
+                synchronized (this.output)
+                {
+                    this.output.writeObject(ack);
+                    this.output.reset();
+                    this.output.flush();
+                }
+            }
+            catch (IOException ex)
+            {
+                System.err.println("[ERROR] " + ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Reads messages until the connection ends, or the server says goodbye
+     * with ACK_QUIT, then closes the connection
+     */
     @Override
     public void run()
     {
@@ -105,13 +153,36 @@ public class SocketInputThread implements Runnable
             try
             {
                 message = (Message) input.readObject();
+                if (message.getType() == MessageType.ACK_FILE)
+                {
+                    fileAcks.offer(message);
+                }
+                if (OnlineUsers.isPresence(message))
+                {
+                    processPresenceMessage(message);
+                }
+                if (message.getType() == MessageType.ACK_QUIT)
+                {
+                    // Nothing else will arrive, the server is going away
+                    System.out.println("[INFO] Server is shutting down. Connection closed.");
+                    break;
+                }
                 if (message.isTextMessage())
                 {
                     processInboundTextMessage(message);
                 }
-                if (message.isFileMessage())
+                if (message.getType() == MessageType.SEARCH_RESULTS)
+                {
+                    processSearchResults(message);
+                }
+                if (Downloads.isTransfer(message))
                 {
-                    processInboundFileMessage(message);
+                    // Non-null once the file is completely stored
+                    message = this.downloads.accept(message, this.input);
+                }
+                if (message != null && message.isAckRequested())
+                {
+                    acknowledge(message);
                 }
             }
             catch (IOException | ClassNotFoundException ex)
@@ -120,6 +191,16 @@ public class SocketInputThread implements Runnable
                 break;
             }
         }
+        this.downloads.abandonAll();
+        this.fileAcks.offer(SocketOutputThread.CONNECTION_LOST);
+        try
+        {
+            this.sock.close();
+        }
+        catch (IOException ex)
+        {
+            System.err.println("[ERROR] " + ex.getMessage());
+        }
     }
 
 }
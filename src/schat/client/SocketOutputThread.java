@@ -1,18 +1,26 @@
 package schat.client;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import schat.io.BufferPool;
+import schat.io.ChunkSizer;
+import schat.io.Connection;
+import schat.io.SocketConnection;
+import schat.message.ContentDigest;
 import schat.message.IllegalMessageException;
 import schat.message.Message;
+import schat.message.MessageType;
 
 /**
  * @author Vaibhav Yenamandra (vyenman@ufl.edu)
@@ -23,16 +31,29 @@ public class SocketOutputThread implements Runnable
     private final ObjectOutputStream output;
     private final BufferedReader input;
     private final Socket socket;
+    private final BlockingQueue<Message> fileAcks;
+
+    /**
+     * Put on the file acknowledgement queue by the reader once the connection
+     * is gone, so that an upload stops waiting for the server's answer
+     */
+    static final Message CONNECTION_LOST = new Message(MessageType.ACK_FILE, "", "");
+    // The console only reports the throughput once the upload is done
+    private static final TransferProgress QUIET = (file, sent, total) ->
+    {
+    };
 
     public SocketOutputThread(
         String username,
         Socket socket,
         ObjectOutputStream output,
-        InputStream input
+        InputStream input,
+        BlockingQueue<Message> fileAcks
     ) throws IOException
     {
         this.username = username;
         this.socket = socket;
+        this.fileAcks = fileAcks;
         this.output = output;
         this.input = new BufferedReader(new InputStreamReader(input));
     }
@@ -45,7 +66,15 @@ public class SocketOutputThread implements Runnable
     private void processOutboundTextMessage(Message msg)
         throws IOException
     {
-        this.output.writeObject(msg);
+        // The reader thread writes delivery acknowledgements concurrently
+        synchronized (this.output)
+        {
+            this.output.writeObject(msg);
+            // Typed by hand, so forgetting every message right away costs
+            // nothing noticeable and keeps the server from remembering it
+            this.output.reset();
+            this.output.flush();
+        }
 //        System.out.format("%s%n%n", msg.toString());
     }
 
@@ -57,64 +86,224 @@ public class SocketOutputThread implements Runnable
     private void processOutboundFileMessage(Message msg)
         throws IOException
     {
-        byte[] buffer;
-        int bytesRead;
+        sendFile(new SocketConnection(this.socket), this.output, msg, this.fileAcks, QUIET);
+        synchronized (this.output)
+        {
+            this.output.reset();
+            this.output.flush();
+        }
+    }
+
+    /**
+     * Announces the file named by the message body, along with its content
+     * digest if it is small enough for the server to cache, and streams its
+     * contents right behind the announcement unless the server replies that
+     * it already holds them. Shared with
+     * {@link ChatSession}. Holds the output stream's monitor for the whole
+     * transfer, so that nothing can be written between the announcement and
+     * the contents.
+     *
+     * @param socket Connection the file contents are written to
+     * @param output Object stream of the same socket, for the announcement
+     * @param msg Message with path of file to be dumped into network
+     * @param fileAcks Queue on which the socket's reader hands over the
+     * server's {@link MessageType#ACK_FILE} replies, and
+     * {@link #CONNECTION_LOST} once it stops
+     * @param progress Receives progress reports of the upload
+     * @throws IOException if the socket could not be written to
+     */
+    static void sendFile(
+        Connection socket,
+        ObjectOutputStream output,
+        Message msg,
+        BlockingQueue<Message> fileAcks,
+        TransferProgress progress
+    ) throws IOException
+    {
         File sendFile = new File(msg.getBody());
-        
+
         msg.setPayloadSize(sendFile.length());
         msg.setBody(sendFile.getName());
-        
-        BufferedInputStream fileReadStream = null;
-        BufferedOutputStream fileToSocket = new BufferedOutputStream(
-            this.socket.getOutputStream()
-        );
 
         if (sendFile.exists() && sendFile.isFile())
         {
-            System.out.format("Sending file: %s (%d bytes)%n", 
-                sendFile.getAbsolutePath(), 
+            System.out.format("Sending file: %s (%d bytes)%n",
+                sendFile.getAbsolutePath(),
                 sendFile.length()
             );
-            this.output.writeObject(msg);
-            buffer = new byte[Message.MAX_PAYLOAD_SIZE];
-            try
+            if (sendFile.length() <= ContentDigest.MAX_CACHED_SIZE)
             {
-                fileReadStream = new BufferedInputStream(
-                    new FileInputStream(sendFile)
-                );
+                // Lets the server skip the upload if it holds the file
+                msg.setDigest(ContentDigest.of(sendFile));
             }
-            catch (FileNotFoundException ex)
+            synchronized (output)
             {
-                System.err.println("[ERROR] " + ex.getMessage());
+                upload(socket, output, msg, sendFile, fileAcks, progress);
             }
+        }
+        else
+        {
+            System.out.format("[ERROR] Path not a file, or doesnt exist: %s%n", 
+                sendFile.getAbsolutePath()
+            );
+        }
+    }
+
+    /**
+     * Writes the announcement and, unless the server holds a copy, the file
+     * contents. Must be called holding the output stream's monitor.
+     */
+    private static void upload(
+        Connection socket,
+        ObjectOutputStream output,
+        Message msg,
+        File sendFile,
+        BlockingQueue<Message> fileAcks,
+        TransferProgress progress
+    ) throws IOException
+    {
+        long size = msg.getPayloadSize();
+        ChunkSizer sizer = new ChunkSizer(socket.getSendBufferSize());
+        fileAcks.removeIf(ack -> ack != CONNECTION_LOST);
+        long announced = System.nanoTime();
+        output.writeObject(msg);
+        output.flush();
+        boolean cached = isCachedByServer(fileAcks);
+        sizer.roundTrip(System.nanoTime() - announced);
+        if (cached)
+        {
+            progress.onProgress(msg, size, size);
+            System.out.println("File sent (server already had a copy).");
+            return;
+        }
+
+        long start = System.nanoTime();
+        long sent;
+        try (FileChannel fileChannel = FileChannel.open(
+            sendFile.toPath(), StandardOpenOption.READ))
+        {
+            sent = socket.getChannel() != null
+                ? transferTo(fileChannel, socket, msg, size, sizer, progress)
+                : copy(fileChannel, socket.getOutputStream(), msg, size, sizer, progress);
+        }
+        long nanos = Math.max(System.nanoTime() - start, 1);
+        if (sent < size)
+        {
+            throw new IOException("File shrank during upload: " + sendFile);
+        }
+        System.out.format("File sent: %d bytes in %d ms (%.1f MB/s)%n",
+            sent, nanos / 1000000, sent * 1000.0 / nanos
+        );
+    }
 
-            try
+    /**
+     * Sends a file with {@link FileChannel#transferTo}, which lets the kernel
+     * move the bytes from the page cache straight to the socket (sendfile on
+     * Linux) without copying them through the JVM. Each call moves one
+     * chunk, sized by the sizer from the throughput it measures.
+     *
+     * @return Number of bytes sent, less than size only if the file shrank
+     */
+    private static long transferTo(
+        FileChannel file,
+        Connection socket,
+        Message msg,
+        long size,
+        ChunkSizer sizer,
+        TransferProgress progress
+    ) throws IOException
+    {
+        long position = 0, n, start;
+        while (position < size)
+        {
+            start = System.nanoTime();
+            n = file.transferTo(
+                position, Math.min(sizer.size(), size - position), socket.getChannel()
+            );
+            if (n <= 0)
             {
-                while ((bytesRead = fileReadStream.read(buffer, 0, buffer.length)) != -1)
+                if (position >= file.size())
                 {
-                    fileToSocket.write(buffer, 0, bytesRead);
+                    break;
                 }
-                fileToSocket.flush();
+                // Socket buffer full, the channel does not block
+                socket.awaitWritable();
+                continue;
             }
-            catch (IOException ex)
-            {
-                System.err.println("[ERROR] " + ex.getMessage());
-            }
-            finally
+            sizer.moved((int) n, System.nanoTime() - start);
+            position += n;
+            progress.onProgress(msg, position, size);
+        }
+        return position;
+    }
+
+    /**
+     * Fallback for sockets without a channel: copies the file through a
+     * pooled buffer, one chunk as sized by the sizer at a time
+     *
+     * @return Number of bytes sent, less than size only if the file shrank
+     */
+    private static long copy(
+        FileChannel file,
+        OutputStream socket,
+        Message msg,
+        long size,
+        ChunkSizer sizer,
+        TransferProgress progress
+    ) throws IOException
+    {
+        long position = 0, start;
+        int n;
+        try (BufferPool.Lease lease = BufferPool.shared().acquire(ChunkSizer.MAX_CHUNK))
+        {
+            ByteBuffer buffer = lease.buffer();
+            while (position < size)
             {
-                if (fileReadStream != null)
+                start = System.nanoTime();
+                buffer.clear().limit((int) Math.min(sizer.size(), size - position));
+                if ((n = file.read(buffer, position)) <= 0)
                 {
-                    fileReadStream.close();
+                    break;
                 }
+                socket.write(lease.array(), 0, n);
+                sizer.moved(n, System.nanoTime() - start);
+                position += n;
+                progress.onProgress(msg, position, size);
             }
-            System.out.println("File sent.");
+            socket.flush();
         }
-        else
+        return position;
+    }
+
+    /**
+     * Waits for the server's reply to a file announcement, for as long as
+     * the connection is up. Guessing is not an option: the server reads the
+     * contents right behind the announcement only if it answers "N".
+     *
+     * @param fileAcks Queue receiving ACK_FILE replies
+     * @return true if the server holds the file and no upload is needed
+     * @throws IOException if the connection was lost before the reply came
+     */
+    private static boolean isCachedByServer(BlockingQueue<Message> fileAcks)
+        throws IOException
+    {
+        Message ack;
+        try
         {
-            System.out.format("[ERROR] Path not a file, or doesnt exist: %s%n", 
-                sendFile.getAbsolutePath()
-            );
+            ack = fileAcks.take();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the server to answer");
+        }
+        if (ack == CONNECTION_LOST)
+        {
+            // Later uploads must not wait either
+            fileAcks.offer(ack);
+            throw new IOException("Connection lost before the server answered");
         }
+        return ack.getBody().equals("Y");
     }
 
     @Override
@@ -135,7 +324,8 @@ public class SocketOutputThread implements Runnable
                     // Process if not blank
                     if (!message.isBlank())
                     {
-                        if (message.isTextMessage())
+                        if (message.isTextMessage()
+                            || message.getType() == MessageType.CLIENT_SEARCH)
                         {
                             processOutboundTextMessage(message);
                         }
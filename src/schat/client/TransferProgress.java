@@ -0,0 +1,22 @@
+package schat.client;
+
+import schat.message.Message;
+
+/**
+ * Receives progress reports of a file upload
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+@FunctionalInterface
+public interface TransferProgress
+{
+    /**
+     * Called after every piece of the file has been handed to the socket,
+     * and once more with transferred equal to total when the upload is done
+     *
+     * @param file Message announcing the file
+     * @param transferred Bytes sent so far
+     * @param total Size of the file in bytes
+     */
+    void onProgress(Message file, long transferred, long total);
+}
@@ -0,0 +1,240 @@
+package schat.io;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide pool of I/O buffers shared by the server and client.
+ *
+ * Buffers come in a few power-of-two size classes; a request is served from
+ * the smallest class that fits and returned to it on release, so moving files
+ * does not allocate. Requests larger than the biggest class are allocated
+ * and dropped on release. Buffers are array backed: every path that moves
+ * bytes through one also needs them as an array, for a stream or for
+ * parsing, and uploads skip buffers altogether with
+ * {@link java.nio.channels.FileChannel#transferTo}.
+ *
+ * Leak detection: every lease registers with a {@link Cleaner}. A lease that
+ * becomes unreachable without having been closed is reported on stderr,
+ * together with the stack of its acquisition when the system property
+ * {@code schat.buffers.trace} is set.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class BufferPool
+{
+    // Size classes, smallest first. The largest holds a whole file chunk
+    // along with the stream's framing, as sessions buffer it.
+    private static final int[] SIZE_CLASSES = {
+        8 * 1024, 64 * 1024, 1024 * 1024, 2 * 1024 * 1024
+    };
+    // Free buffers kept per size class
+    private static final int MAX_RETAINED = 64;
+
+    private static final BufferPool SHARED = new BufferPool();
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final boolean TRACE = Boolean.getBoolean("schat.buffers.trace");
+
+    private final SizeClass[] classes = new SizeClass[SIZE_CLASSES.length];
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    private static final class SizeClass
+    {
+        private final ConcurrentLinkedDeque<ByteBuffer> free
+            = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger retained = new AtomicInteger();
+    }
+
+    /**
+     * State shared between a lease and its cleaner. Must not reference the
+     * lease itself, or the lease would never become unreachable.
+     */
+    private static final class State implements Runnable
+    {
+        private final BufferPool pool;
+        private final Throwable origin;
+        private volatile boolean released = false;
+
+        private State(BufferPool pool, Throwable origin)
+        {
+            this.pool = pool;
+            this.origin = origin;
+        }
+
+        @Override
+        public void run()
+        {
+            if (this.released)
+            {
+                return;
+            }
+            this.pool.leaked.incrementAndGet();
+            this.pool.outstanding.decrementAndGet();
+            System.err.println("[WARN] I/O buffer was never released"
+                + (this.origin == null
+                    ? ", run with -Dschat.buffers.trace=true to find out where"
+                    : ""));
+            if (this.origin != null)
+            {
+                this.origin.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A buffer borrowed from the pool. Close it, preferably with
+     * try-with-resources, to give the buffer back; the buffer must not be
+     * used afterwards.
+     */
+    public static final class Lease implements AutoCloseable
+    {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final int sizeClass;
+        private final State state;
+        private final Cleaner.Cleanable cleanable;
+
+        private Lease(BufferPool pool, ByteBuffer buffer, int sizeClass)
+        {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+            this.state = new State(pool, TRACE ? new Throwable("Acquired here") : null);
+            this.cleanable = CLEANER.register(this, this.state);
+        }
+
+        /**
+         * The leased buffer, cleared on acquisition
+         *
+         * @return Buffer with at least the requested capacity
+         */
+        public ByteBuffer buffer()
+        {
+            return this.buffer;
+        }
+
+        /**
+         * Backing array of the buffer, for stream I/O
+         *
+         * @return Array backing the buffer
+         */
+        public byte[] array()
+        {
+            return this.buffer.array();
+        }
+
+        @Override
+        public void close()
+        {
+            if (this.state.released)
+            {
+                return;
+            }
+            this.state.released = true;
+            this.cleanable.clean();
+            this.pool.release(this.buffer, this.sizeClass);
+        }
+    }
+
+    private BufferPool()
+    {
+        for (int i = 0; i < SIZE_CLASSES.length; ++i)
+        {
+            this.classes[i] = new SizeClass();
+        }
+    }
+
+    /**
+     * The pool shared by every I/O path of the process
+     *
+     * @return Shared buffer pool
+     */
+    public static BufferPool shared()
+    {
+        return SHARED;
+    }
+
+    /**
+     * Borrows an array backed buffer
+     *
+     * @param capacity Minimum capacity required
+     * @return Lease of a cleared heap buffer
+     */
+    public Lease acquire(int capacity)
+    {
+        int sizeClass = sizeClassOf(capacity);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0)
+        {
+            SizeClass pool = this.classes[sizeClass];
+            buffer = pool.free.pollFirst();
+            if (buffer != null)
+            {
+                pool.retained.decrementAndGet();
+            }
+            capacity = SIZE_CLASSES[sizeClass];
+        }
+        if (buffer == null)
+        {
+            this.allocated.incrementAndGet();
+            buffer = ByteBuffer.allocate(capacity);
+        }
+        buffer.clear();
+        this.outstanding.incrementAndGet();
+        return new Lease(this, buffer, sizeClass);
+    }
+
+    private void release(ByteBuffer buffer, int sizeClass)
+    {
+        this.outstanding.decrementAndGet();
+        if (sizeClass < 0)
+        {
+            return;
+        }
+        SizeClass pool = this.classes[sizeClass];
+        if (pool.retained.incrementAndGet() <= MAX_RETAINED)
+        {
+            pool.free.offerFirst(buffer);
+        }
+        else
+        {
+            pool.retained.decrementAndGet();
+        }
+    }
+
+    private static int sizeClassOf(int capacity)
+    {
+        for (int i = 0; i < SIZE_CLASSES.length; ++i)
+        {
+            if (capacity <= SIZE_CLASSES[i])
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of leases not yet closed
+     *
+     * @return Buffers currently borrowed
+     */
+    public int outstanding()
+    {
+        return this.outstanding.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(
+            "BufferPool{outstanding=%d, allocated=%d, leaked=%d}",
+            this.outstanding.get(), this.allocated.get(), this.leaked.get()
+        );
+    }
+}
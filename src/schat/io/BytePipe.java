@@ -0,0 +1,299 @@
+package schat.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One direction of an in-memory connection: a bounded ring buffer of bytes
+ * with a blocking writer and a blocking or polling reader, standing in for
+ * the kernel's socket buffers. Unlike {@link java.io.PipedInputStream} it is not tied to
+ * the threads that first used it and never polls.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+final class BytePipe
+{
+    private final byte[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // Index of the next byte to read, and bytes waiting from there on
+    private int head = 0;
+    private int count = 0;
+    // The writing side is done, the reader gets end of stream once empty
+    private boolean writerClosed = false;
+    // The reading side is gone, the writer gets an error
+    private boolean readerClosed = false;
+    // Told once when bytes or end of stream arrive after a poll found none
+    private Runnable readable;
+    private boolean armed = false;
+
+    /**
+     * @param capacity Bytes buffered before the writer blocks
+     */
+    BytePipe(int capacity)
+    {
+        this.ring = new byte[capacity];
+    }
+
+    /**
+     * @return Bytes buffered before the writer blocks
+     */
+    int capacity()
+    {
+        return this.ring.length;
+    }
+
+    /**
+     * Reads what is buffered, waiting for at least one byte
+     *
+     * @return Bytes read, -1 at end of stream
+     * @throws IOException if the reading side was closed
+     */
+    int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        this.lock.lock();
+        try
+        {
+            while (this.count == 0)
+            {
+                if (this.readerClosed)
+                {
+                    throw new IOException("Connection closed");
+                }
+                if (this.writerClosed)
+                {
+                    return -1;
+                }
+                await(this.notEmpty);
+            }
+            if (this.readerClosed)
+            {
+                throw new IOException("Connection closed");
+            }
+            return take(b, off, len);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Reads what is buffered without waiting. Finding nothing arms the
+     * listener given to {@link #watch(Runnable)}.
+     *
+     * @return Bytes read, 0 if none are buffered, -1 at end of stream
+     * @throws IOException if the reading side was closed
+     */
+    int poll(byte[] b, int off, int len) throws IOException
+    {
+        this.lock.lock();
+        try
+        {
+            if (this.readerClosed)
+            {
+                throw new IOException("Connection closed");
+            }
+            if (this.count == 0)
+            {
+                if (this.writerClosed)
+                {
+                    return -1;
+                }
+                this.armed = true;
+                return 0;
+            }
+            return take(b, off, len);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts telling a listener when a poll would find something, once right
+     * away. The listener runs on the writing or closing thread, so it must
+     * not block.
+     *
+     * @param readable Listener, told once per poll that found nothing
+     */
+    void watch(Runnable readable)
+    {
+        this.lock.lock();
+        try
+        {
+            this.readable = readable;
+            this.armed = false;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        readable.run();
+    }
+
+    /**
+     * Moves buffered bytes out, holding the lock with at least one buffered
+     */
+    private int take(byte[] b, int off, int len)
+    {
+        int n = Math.min(len, this.count);
+        int first = Math.min(n, this.ring.length - this.head);
+        System.arraycopy(this.ring, this.head, b, off, first);
+        System.arraycopy(this.ring, 0, b, off + first, n - first);
+        this.head = (this.head + n) % this.ring.length;
+        this.count -= n;
+        this.notFull.signalAll();
+        return n;
+    }
+
+    /**
+     * Disarms the listener, holding the lock
+     *
+     * @return The listener to tell once the lock is released, null if it
+     * was not armed
+     */
+    private Runnable disarm()
+    {
+        if (!this.armed)
+        {
+            return null;
+        }
+        this.armed = false;
+        return this.readable;
+    }
+
+    private static void tell(Runnable readable)
+    {
+        if (readable != null)
+        {
+            readable.run();
+        }
+    }
+
+    /**
+     * Writes all bytes, waiting for room as often as needed
+     *
+     * @throws IOException if either side was closed
+     */
+    void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            Runnable readable;
+            this.lock.lock();
+            try
+            {
+                while (this.count == this.ring.length
+                    && !this.readerClosed && !this.writerClosed)
+                {
+                    await(this.notFull);
+                }
+                if (this.writerClosed)
+                {
+                    throw new IOException("Connection closed");
+                }
+                if (this.readerClosed)
+                {
+                    throw new IOException("Connection reset by peer");
+                }
+                int tail = (this.head + this.count) % this.ring.length;
+                int n = Math.min(len, this.ring.length - this.count);
+                int first = Math.min(n, this.ring.length - tail);
+                System.arraycopy(b, off, this.ring, tail, first);
+                System.arraycopy(b, off + first, this.ring, 0, n - first);
+                this.count += n;
+                off += n;
+                len -= n;
+                this.notEmpty.signalAll();
+                readable = disarm();
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+            tell(readable);
+        }
+    }
+
+    /**
+     * @return Bytes that can be read without blocking
+     */
+    int available()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.count;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the stream, the reader sees end of stream once it has read what
+     * is buffered
+     */
+    void closeWriter()
+    {
+        Runnable readable;
+        this.lock.lock();
+        try
+        {
+            this.writerClosed = true;
+            this.notEmpty.signalAll();
+            this.notFull.signalAll();
+            readable = disarm();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        tell(readable);
+    }
+
+    /**
+     * Drops what is buffered, further reads and writes fail
+     */
+    void closeReader()
+    {
+        Runnable readable;
+        this.lock.lock();
+        try
+        {
+            this.readerClosed = true;
+            this.count = 0;
+            this.notEmpty.signalAll();
+            this.notFull.signalAll();
+            readable = disarm();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        tell(readable);
+    }
+
+    private static void await(Condition condition) throws InterruptedIOException
+    {
+        try
+        {
+            condition.await();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package schat.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * File format of a traffic capture: the frames a server received, in the
+ * order it received them, each with the connection it came in on and the
+ * time since the capture started.
+ *
+ * The file starts with a magic number, a version byte and the wall clock
+ * time the capture started at. Every record is then
+ * <pre>
+ *   varint  microseconds since the previous record
+ *   varint  connection number, in order of first appearance
+ *   byte    kind, {@link #FRAME} or {@link #CLOSE}
+ *   varint  frame length, followed by the encoded message (frames only)
+ * </pre>
+ * Varints are seven bits per byte, low bits first, so the steady trickle of
+ * small gaps and connection numbers mostly takes a byte each. Frames are
+ * encoded messages without object stream framing; file contents are not
+ * captured, only the announcement with the payload size.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class CaptureFile
+{
+    public static final byte FRAME = 0;
+    public static final byte CLOSE = 1;
+
+    private static final int MAGIC = 0x53434150;
+    private static final byte VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FRAME = 16 << 20;
+
+    private CaptureFile()
+    {
+    }
+
+    /**
+     * One captured event
+     */
+    public static final class Record
+    {
+        private final long micros;
+        private final int connection;
+        private final byte kind;
+        private final byte[] frame;
+
+        private Record(long micros, int connection, byte kind, byte[] frame)
+        {
+            this.micros = micros;
+            this.connection = connection;
+            this.kind = kind;
+            this.frame = frame;
+        }
+
+        /**
+         * @return Microseconds since the capture started
+         */
+        public long getMicros()
+        {
+            return this.micros;
+        }
+
+        /**
+         * @return Connection number, the same for every record of a connection
+         */
+        public int getConnection()
+        {
+            return this.connection;
+        }
+
+        /**
+         * @return {@link CaptureFile#FRAME} or {@link CaptureFile#CLOSE}
+         */
+        public byte getKind()
+        {
+            return this.kind;
+        }
+
+        /**
+         * @return Encoded message, null unless this is a frame
+         */
+        public byte[] getFrame()
+        {
+            return this.frame;
+        }
+    }
+
+    /**
+     * Appends records to a new capture file. Not thread safe.
+     */
+    public static final class Writer implements Closeable
+    {
+        private final DataOutputStream out;
+        private final long start = System.nanoTime();
+        private long last = 0;
+
+        /**
+         * Creates the file, replacing any existing one
+         *
+         * @param file Destination
+         * @throws IOException if the file cannot be written
+         */
+        public Writer(File file) throws IOException
+        {
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), BUFFER_SIZE
+            ));
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeLong(System.currentTimeMillis());
+        }
+
+        /**
+         * Appends a record
+         *
+         * @param nanos {@link System#nanoTime()} at which the event happened
+         * @param connection Connection number
+         * @param kind {@link CaptureFile#FRAME} or {@link CaptureFile#CLOSE}
+         * @param frame Encoded message for frames, ignored otherwise
+         * @throws IOException if the file cannot be written
+         */
+        public void append(long nanos, int connection, byte kind, byte[] frame)
+            throws IOException
+        {
+            // Events handed over from several threads may be a hair out of
+            // order, they are recorded as simultaneous
+            long micros = Math.max((nanos - this.start) / 1000, this.last);
+            writeVarLong(this.out, micros - this.last);
+            this.last = micros;
+            writeVarLong(this.out, connection);
+            this.out.writeByte(kind);
+            if (kind == FRAME)
+            {
+                writeVarLong(this.out, frame.length);
+                this.out.write(frame);
+            }
+        }
+
+        /**
+         * Pushes buffered records to the file
+         *
+         * @throws IOException if the file cannot be written
+         */
+        public void flush() throws IOException
+        {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.out.close();
+        }
+    }
+
+    /**
+     * Reads the records of a capture file in order
+     */
+    public static final class Reader implements Closeable
+    {
+        private final DataInputStream in;
+        private final long startedAt;
+        private long micros = 0;
+
+        /**
+         * @param file Capture file
+         * @throws IOException if the file cannot be read or is no capture
+         */
+        public Reader(File file) throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_SIZE
+            ));
+            if (this.in.readInt() != MAGIC)
+            {
+                this.in.close();
+                throw new StreamCorruptedException("Not a capture file: " + file);
+            }
+            byte version = this.in.readByte();
+            if (version != VERSION)
+            {
+                this.in.close();
+                throw new StreamCorruptedException("Unknown capture version " + version);
+            }
+            this.startedAt = this.in.readLong();
+        }
+
+        /**
+         * @return Wall clock time in milliseconds the capture started at
+         */
+        public long getStartedAt()
+        {
+            return this.startedAt;
+        }
+
+        /**
+         * Reads the next record
+         *
+         * @return The record, null at the end of the file
+         * @throws IOException if the file cannot be read or is corrupt
+         */
+        public Record next() throws IOException
+        {
+            int first = this.in.read();
+            if (first < 0)
+            {
+                return null;
+            }
+            try
+            {
+                this.micros += readVarLong(this.in, first);
+                int connection = (int) readVarLong(this.in, this.in.readUnsignedByte());
+                byte kind = this.in.readByte();
+                byte[] frame = null;
+                if (kind == FRAME)
+                {
+                    long length = readVarLong(this.in, this.in.readUnsignedByte());
+                    if (length > MAX_FRAME)
+                    {
+                        throw new StreamCorruptedException("Bad frame length " + length);
+                    }
+                    frame = new byte[(int) length];
+                    this.in.readFully(frame);
+                }
+                else if (kind != CLOSE)
+                {
+                    throw new StreamCorruptedException("Unknown record kind " + kind);
+                }
+                return new Record(this.micros, connection, kind, frame);
+            }
+            catch (EOFException ex)
+            {
+                // The server died mid-write, the last record is lost
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.in.close();
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in, int first) throws IOException
+    {
+        long value = first & 0x7f;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0)
+        {
+            if (shift > 63)
+            {
+                throw new StreamCorruptedException("Varint too long");
+            }
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
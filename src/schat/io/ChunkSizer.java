@@ -0,0 +1,130 @@
+package schat.io;
+
+/**
+ * Picks the chunk size of one file transfer. A transfer starts out at the
+ * size of the socket buffer it reads from or writes to, which is what the
+ * kernel can move per call anyway, and then adjusts to what it measures.
+ *
+ * Throughput is measured over windows of a few chunks. The sizer climbs:
+ * after doubling the chunk it keeps doubling while throughput improves,
+ * and halves again if throughput dropped. Once throughput stops responding
+ * it holds the size and probes upwards again every few windows, since the
+ * sender's or recipients' pace may change during a long transfer. A chunk
+ * never drops below one bandwidth-delay product, throughput times round
+ * trip time, once a round trip has been measured.
+ *
+ * Sizes are powers of two between {@link #MIN_CHUNK} and {@link #MAX_CHUNK}.
+ * Not thread safe; a transfer is driven by a single thread.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class ChunkSizer
+{
+    public static final int MIN_CHUNK = 8 * 1024;
+    public static final int MAX_CHUNK = 1024 * 1024;
+
+    // Chunks per measurement window
+    private static final int WINDOW_CHUNKS = 4;
+    // Windows held at one size before probing upwards again
+    private static final int HOLD_WINDOWS = 16;
+    // Throughput change that counts as a real difference
+    private static final double SIGNIFICANT = 0.1;
+
+    private int size;
+    // Whether the last change was a doubling that is still being judged
+    private boolean growing = true;
+    private int held = 0;
+    private long rttNanos = 0;
+    // Throughput of the last window in bytes per nanosecond, 0 if none
+    private double lastRate = 0;
+    private long windowBytes = 0;
+    private long windowNanos = 0;
+    private int windowChunks = 0;
+
+    /**
+     * @param socketBuffer Size of the socket buffer the transfer goes
+     * through, as reported by SO_SNDBUF or SO_RCVBUF
+     */
+    public ChunkSizer(int socketBuffer)
+    {
+        this.size = clamp(socketBuffer);
+    }
+
+    /**
+     * @return Bytes to move in the next chunk
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Records a round trip measured for the transfer, e.g. from the file
+     * announcement to its acknowledgement
+     *
+     * @param nanos Round trip time in nanoseconds
+     */
+    public void roundTrip(long nanos)
+    {
+        this.rttNanos = nanos;
+    }
+
+    /**
+     * Records a chunk that was moved
+     *
+     * @param bytes Bytes moved, possibly fewer than {@link #size()}
+     * @param nanos Time it took, including any wait for the other side
+     */
+    public void moved(int bytes, long nanos)
+    {
+        this.windowBytes += bytes;
+        this.windowNanos += nanos;
+        if (++this.windowChunks < WINDOW_CHUNKS)
+        {
+            return;
+        }
+        double rate = (double) this.windowBytes / Math.max(this.windowNanos, 1);
+        this.windowBytes = 0;
+        this.windowNanos = 0;
+        this.windowChunks = 0;
+
+        if (this.growing)
+        {
+            if (this.lastRate > 0 && rate < this.lastRate * (1 - SIGNIFICANT))
+            {
+                // Bigger did worse, go back
+                this.size = clamp(this.size / 2);
+                this.growing = false;
+            }
+            else if (this.lastRate == 0 || rate > this.lastRate * (1 + SIGNIFICANT))
+            {
+                this.size = clamp(this.size * 2);
+            }
+            else
+            {
+                this.growing = false;
+            }
+        }
+        else if (++this.held >= HOLD_WINDOWS)
+        {
+            this.held = 0;
+            this.growing = true;
+            this.size = clamp(this.size * 2);
+        }
+        this.lastRate = rate;
+
+        if (this.rttNanos > 0)
+        {
+            this.size = Math.max(this.size, clamp((long) (rate * this.rttNanos)));
+        }
+    }
+
+    /**
+     * Rounds down to a power of two within the allowed range
+     */
+    private static int clamp(long bytes)
+    {
+        long clamped = Math.min(Math.max(bytes, MIN_CHUNK), MAX_CHUNK);
+        return Integer.highestOneBit((int) clamped);
+    }
+}
@@ -0,0 +1,96 @@
+package schat.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A bidirectional byte stream between a client and the server, as handed out
+ * by a {@link Transport}. Mirrors the parts of {@link java.net.Socket} the
+ * chat uses, so that server and clients do not care whether the bytes cross
+ * the network or stay in the JVM.
+ *
+ * Closing the connection, or either of its streams, ends it for both sides:
+ * blocked reads on this side fail, asynchronous readers are told and fail
+ * next, the other side reads end of stream.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public interface Connection extends Closeable
+{
+    /**
+     * @return Stream of the bytes the other side writes, the same instance
+     * on every call
+     * @throws IOException if the connection is closed
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return Stream to the other side, the same instance on every call
+     * @throws IOException if the connection is closed
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return Bytes the connection buffers towards this side, SO_RCVBUF for
+     * sockets
+     * @throws IOException if the connection is closed
+     */
+    int getReceiveBufferSize() throws IOException;
+
+    /**
+     * @return Bytes the connection buffers away from this side, SO_SNDBUF
+     * for sockets
+     * @throws IOException if the connection is closed
+     */
+    int getSendBufferSize() throws IOException;
+
+    /**
+     * @return Local address of the connection, the loopback address for
+     * connections that stay in the JVM
+     */
+    InetAddress getLocalAddress();
+
+    /**
+     * @return Channel of a socket opened through one, for zero copy writes
+     * with {@link java.nio.channels.FileChannel#transferTo}; null if there
+     * is none
+     */
+    SocketChannel getChannel();
+
+    /**
+     * Switches the connection to reading without a thread blocked on it.
+     * From now on the listener is told, on some other thread, whenever bytes
+     * or end of stream may have arrived after
+     * {@link #readAvailable(byte[], int, int)} last found nothing to read;
+     * it must not block. The input stream must not be used afterwards.
+     *
+     * @param readable Told when the connection may have become readable,
+     * once right away
+     * @throws IOException if the connection cannot be read this way
+     */
+    void readAsync(Runnable readable) throws IOException;
+
+    /**
+     * Reads what has arrived without waiting, on a connection switched over
+     * with {@link #readAsync(Runnable)}. Finding nothing arms its listener.
+     *
+     * @return Bytes read, 0 if nothing had arrived, -1 at end of stream
+     * @throws IOException if the connection is closed
+     */
+    int readAvailable(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Waits until writes to the channel can make progress again. Only
+     * needed around {@link #getChannel()} once the connection reads with
+     * {@link #readAsync(Runnable)}, which puts the channel into non-blocking
+     * mode; the output stream waits on its own, and so does the channel of
+     * a blocking connection.
+     *
+     * @throws IOException if the connection was closed while waiting
+     */
+    void awaitWritable() throws IOException;
+}
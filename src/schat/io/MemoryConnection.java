@@ -0,0 +1,150 @@
+package schat.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One end of an in-memory connection made by {@link MemoryTransport}: reads
+ * from one {@link BytePipe} and writes to the other
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+final class MemoryConnection implements Connection
+{
+    private final BytePipe in;
+    private final BytePipe out;
+    private final String name;
+    private final InputStream input = new InputStream()
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return MemoryConnection.this.in.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return MemoryConnection.this.in.read(b, off, len);
+        }
+
+        @Override
+        public int available()
+        {
+            return MemoryConnection.this.in.available();
+        }
+
+        @Override
+        public void close()
+        {
+            MemoryConnection.this.close();
+        }
+    };
+    private final OutputStream output = new OutputStream()
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            MemoryConnection.this.out.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            MemoryConnection.this.out.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+        {
+            MemoryConnection.this.close();
+        }
+    };
+
+    /**
+     * @param in Pipe the other side writes to
+     * @param out Pipe the other side reads from
+     * @param name Shown by {@link #toString()}
+     */
+    MemoryConnection(BytePipe in, BytePipe out, String name)
+    {
+        this.in = in;
+        this.out = out;
+        this.name = name;
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return this.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return this.output;
+    }
+
+    @Override
+    public int getReceiveBufferSize()
+    {
+        return this.in.capacity();
+    }
+
+    @Override
+    public int getSendBufferSize()
+    {
+        return this.out.capacity();
+    }
+
+    @Override
+    public InetAddress getLocalAddress()
+    {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public SocketChannel getChannel()
+    {
+        return null;
+    }
+
+    @Override
+    public void readAsync(Runnable readable)
+    {
+        this.in.watch(readable);
+    }
+
+    @Override
+    public int readAvailable(byte[] b, int off, int len) throws IOException
+    {
+        return this.in.poll(b, off, len);
+    }
+
+    @Override
+    public void awaitWritable()
+    {
+        // No channel, the output stream waits for room on its own
+    }
+
+    /**
+     * Like closing a socket: the other side reads end of stream, and our
+     * own blocked reads fail
+     */
+    @Override
+    public void close()
+    {
+        this.out.closeWriter();
+        this.in.closeReader();
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name;
+    }
+}
@@ -0,0 +1,104 @@
+package schat.io;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Connects clients to a server in the same JVM through in-memory pipes, so
+ * that routing and dispatch can be measured without the kernel's network
+ * stack, and many clients can run against one server without any sockets.
+ *
+ * Servers listen on numbered ports of the transport; the address given to
+ * {@link #connect(String, int)} is ignored, every transport instance is a
+ * host of its own. A connection is a pair of bounded {@link BytePipe}s, so
+ * writers block on slow readers just as they would on a full socket buffer.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class MemoryTransport implements Transport
+{
+    // Same order as a loopback socket buffer
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    // Ports handed out for port 0, as the kernel would
+    private static final int FIRST_EPHEMERAL_PORT = 49152;
+
+    private final int bufferSize;
+    private final Map<Integer, Consumer<Connection>> listeners = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPort = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * Creates a transport with pipes of {@link #DEFAULT_BUFFER_SIZE}
+     */
+    public MemoryTransport()
+    {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize Bytes each direction of a connection buffers before
+     * the writer blocks
+     */
+    public MemoryTransport(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Starts listening on a port
+     *
+     * @param port Port to listen on, 0 picks a free one
+     * @param acceptor Receives the server end of every connection made to
+     * the port, on the connecting thread; must not block
+     * @return The port listened on
+     * @throws BindException if somebody already listens on the port
+     */
+    public int listen(int port, Consumer<Connection> acceptor) throws BindException
+    {
+        if (port == 0)
+        {
+            do
+            {
+                port = this.nextPort.getAndIncrement();
+            }
+            while (this.listeners.putIfAbsent(port, acceptor) != null);
+            return port;
+        }
+        if (this.listeners.putIfAbsent(port, acceptor) != null)
+        {
+            throw new BindException("Address already in use: mem://" + port);
+        }
+        return port;
+    }
+
+    /**
+     * Stops listening on a port. Connections already made stay open.
+     *
+     * @param port Port listened on
+     */
+    public void unlisten(int port)
+    {
+        this.listeners.remove(port);
+    }
+
+    @Override
+    public Connection connect(String address, int port) throws IOException
+    {
+        Consumer<Connection> acceptor = this.listeners.get(port);
+        if (acceptor == null)
+        {
+            throw new ConnectException("Connection refused: mem://" + port);
+        }
+        BytePipe up = new BytePipe(this.bufferSize);
+        BytePipe down = new BytePipe(this.bufferSize);
+        String name = "mem://" + port + "#" + this.connections.getAndIncrement();
+        MemoryConnection server = new MemoryConnection(up, down, name);
+        acceptor.accept(server);
+        return new MemoryConnection(down, up, name);
+    }
+}
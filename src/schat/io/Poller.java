@@ -0,0 +1,199 @@
+package schat.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One thread watching the sockets of every connection read with
+ * {@link Connection#readAsync(Runnable)}, so that idle connections cost no
+ * thread at all. Interest in an event is one shot: it is dropped once the
+ * event fired, and renewed by whoever consumed it.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+final class Poller
+{
+    // How often a writer waiting for room checks that its channel is open
+    private static final long CHECK_MILLIS = 100;
+
+    private static Poller shared;
+
+    private final Selector selector;
+
+    /**
+     * A channel being watched, attached to its selection key
+     */
+    final class Watch
+    {
+        private final Runnable readable;
+        private final SelectionKey key;
+        // Guarded by this: the channel took writes since awaitWritable asked
+        private boolean writable = false;
+
+        private Watch(SocketChannel channel, Runnable readable) throws IOException
+        {
+            this.readable = readable;
+            this.key = channel.register(Poller.this.selector, 0, this);
+        }
+
+        /**
+         * Asks to be told once more when the channel becomes readable
+         */
+        void armRead()
+        {
+            interest(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Waits until the channel has room for more bytes
+         *
+         * @throws IOException if the channel was closed meanwhile
+         */
+        void awaitWritable() throws IOException
+        {
+            synchronized (this)
+            {
+                this.writable = false;
+            }
+            interest(SelectionKey.OP_WRITE);
+            synchronized (this)
+            {
+                while (!this.writable)
+                {
+                    if (!this.key.isValid())
+                    {
+                        throw new ClosedChannelException();
+                    }
+                    try
+                    {
+                        wait(CHECK_MILLIS);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Lets the poller release the closed channel right away, instead of
+         * on its next wakeup, and tells the reader, whose next read fails
+         */
+        void closed()
+        {
+            this.key.cancel();
+            Poller.this.selector.wakeup();
+            this.readable.run();
+        }
+
+        private synchronized void wrote()
+        {
+            this.writable = true;
+            notifyAll();
+        }
+
+        private void interest(int op)
+        {
+            try
+            {
+                this.key.interestOpsOr(op);
+            }
+            catch (CancelledKeyException ex)
+            {
+                // Closed, the reader or writer finds out on its own
+                return;
+            }
+            Poller.this.selector.wakeup();
+        }
+    }
+
+    private Poller() throws IOException
+    {
+        this.selector = Selector.open();
+        Thread thread = new Thread(this::run, "schat-poller");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The poller shared by all connections of the JVM, started on
+     * first use
+     * @throws IOException if no selector could be opened
+     */
+    static synchronized Poller shared() throws IOException
+    {
+        if (shared == null)
+        {
+            shared = new Poller();
+        }
+        return shared;
+    }
+
+    /**
+     * Puts a channel into non-blocking mode and starts watching it
+     *
+     * @param channel Connected channel
+     * @param readable Told whenever the channel becomes readable after
+     * {@link Watch#armRead()}
+     * @return Handle to ask for the channel's events with, nothing is asked
+     * for yet
+     * @throws IOException if the channel is closed
+     */
+    Watch watch(SocketChannel channel, Runnable readable) throws IOException
+    {
+        channel.configureBlocking(false);
+        return new Watch(channel, readable);
+    }
+
+    private void run()
+    {
+        while (true)
+        {
+            try
+            {
+                this.selector.select(this::fire);
+            }
+            catch (IOException ex)
+            {
+                System.err.println("[ERROR] Poller: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void fire(SelectionKey key)
+    {
+        Watch watch = (Watch) key.attachment();
+        int ready;
+        try
+        {
+            ready = key.readyOps();
+            key.interestOpsAnd(~ready);
+        }
+        catch (CancelledKeyException ex)
+        {
+            return;
+        }
+        if ((ready & SelectionKey.OP_WRITE) != 0)
+        {
+            watch.wrote();
+        }
+        if ((ready & SelectionKey.OP_READ) != 0)
+        {
+            try
+            {
+                watch.readable.run();
+            }
+            catch (RuntimeException ex)
+            {
+                System.err.println("[ERROR] Poller: " + ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package schat.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link Connection} over a TCP socket. Sockets opened through a channel
+ * can be read with {@link #readAsync(Runnable)}, watched by the shared
+ * {@link Poller}; they are written through the channel, which keeps working
+ * once it no longer blocks.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class SocketConnection implements Connection
+{
+    private final Socket socket;
+    // Writes through the channel, null for sockets without one
+    private final OutputStream output;
+    // Set once reading asynchronously
+    private volatile Poller.Watch watch;
+
+    /**
+     * Writes all bytes to the channel, waiting for room whenever the
+     * channel no longer blocks
+     */
+    private final class ChannelOutput extends OutputStream
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining())
+            {
+                if (getChannel().write(buffer) == 0)
+                {
+                    awaitWritable();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            SocketConnection.this.close();
+        }
+    }
+
+    /**
+     * @param socket Connected socket
+     */
+    public SocketConnection(Socket socket)
+    {
+        this.socket = socket;
+        this.output = socket.getChannel() == null ? null : new ChannelOutput();
+    }
+
+    /**
+     * @return The underlying socket
+     */
+    public Socket getSocket()
+    {
+        return this.socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return this.socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        return this.output == null ? this.socket.getOutputStream() : this.output;
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws IOException
+    {
+        return this.socket.getReceiveBufferSize();
+    }
+
+    @Override
+    public int getSendBufferSize() throws IOException
+    {
+        return this.socket.getSendBufferSize();
+    }
+
+    @Override
+    public InetAddress getLocalAddress()
+    {
+        return this.socket.getLocalAddress();
+    }
+
+    @Override
+    public SocketChannel getChannel()
+    {
+        return this.socket.getChannel();
+    }
+
+    @Override
+    public void readAsync(Runnable readable) throws IOException
+    {
+        if (getChannel() == null)
+        {
+            throw new IOException("Socket has no channel: " + this);
+        }
+        this.watch = Poller.shared().watch(getChannel(), readable);
+        this.watch.armRead();
+    }
+
+    @Override
+    public int readAvailable(byte[] b, int off, int len) throws IOException
+    {
+        int n = getChannel().read(ByteBuffer.wrap(b, off, len));
+        if (n == 0)
+        {
+            this.watch.armRead();
+        }
+        return n;
+    }
+
+    @Override
+    public void awaitWritable() throws IOException
+    {
+        Poller.Watch watch = this.watch;
+        if (watch != null)
+        {
+            watch.awaitWritable();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.socket.close();
+        Poller.Watch watch = this.watch;
+        if (watch != null)
+        {
+            watch.closed();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "tcp://" + this.socket.getRemoteSocketAddress();
+    }
+}
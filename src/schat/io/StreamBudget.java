@@ -0,0 +1,104 @@
+package schat.io;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * Bounds what an object stream keeps alive. An {@link ObjectOutputStream}
+ * remembers every object it wrote, so it can send a back reference should
+ * the same object come again, and the {@link java.io.ObjectInputStream} on
+ * the other side remembers every object it read; both until the writer
+ * resets the stream. Over a long-lived connection that pins every message
+ * ever sent, on both ends.
+ *
+ * The writer reports what it writes here. The stream is reset once it
+ * remembers a number of objects or bytes, and whenever the writer runs out
+ * of things to write, so an idle connection remembers nothing. A reset costs
+ * a byte and the class descriptor written again after it.
+ *
+ * Not thread safe; to be used by whoever writes the stream, under the same
+ * lock, except for {@link #getPinnedBytes()}.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class StreamBudget
+{
+    public static final int DEFAULT_OBJECTS = 1024;
+    public static final long DEFAULT_BYTES = 64 * 1024;
+
+    private final ObjectOutputStream out;
+    private final int maxObjects;
+    private final long maxBytes;
+    private int objects = 0;
+    // Read by accounting on other threads
+    private volatile long bytes = 0;
+
+    /**
+     * Creates a budget of {@link #DEFAULT_OBJECTS} and
+     * {@link #DEFAULT_BYTES}
+     *
+     * @param out Stream to keep in check
+     */
+    public StreamBudget(ObjectOutputStream out)
+    {
+        this(out, DEFAULT_OBJECTS, DEFAULT_BYTES);
+    }
+
+    /**
+     * @param out Stream to keep in check
+     * @param maxObjects Objects remembered before a reset
+     * @param maxBytes Bytes of objects remembered before a reset
+     */
+    public StreamBudget(ObjectOutputStream out, int maxObjects, long maxBytes)
+    {
+        this.out = out;
+        this.maxObjects = Math.max(maxObjects, 1);
+        this.maxBytes = Math.max(maxBytes, 1);
+    }
+
+    /**
+     * Records an object written to the stream, resetting it if it now
+     * remembers too much
+     *
+     * @param size Bytes the object took on the wire
+     * @throws IOException if the reset cannot be written
+     */
+    public void wrote(long size) throws IOException
+    {
+        ++this.objects;
+        this.bytes += size;
+        if (this.objects >= this.maxObjects || this.bytes >= this.maxBytes)
+        {
+            reset();
+        }
+    }
+
+    /**
+     * Forgets everything written so far, if anything. To be called when the
+     * writer has nothing more to write, before it flushes.
+     *
+     * @throws IOException if the reset cannot be written
+     */
+    public void idle() throws IOException
+    {
+        if (this.objects > 0)
+        {
+            reset();
+        }
+    }
+
+    /**
+     * @return Bytes of the objects the stream remembers right now
+     */
+    public long getPinnedBytes()
+    {
+        return this.bytes;
+    }
+
+    private void reset() throws IOException
+    {
+        this.out.reset();
+        this.objects = 0;
+        this.bytes = 0;
+    }
+}
@@ -0,0 +1,22 @@
+package schat.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects over TCP. Sockets are opened through a channel so that uploads
+ * can use {@link java.nio.channels.FileChannel#transferTo}.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class TcpTransport implements Transport
+{
+    @Override
+    public Connection connect(String address, int port) throws IOException
+    {
+        return new SocketConnection(SocketChannel.open(
+            new InetSocketAddress(address, port)
+        ).socket());
+    }
+}
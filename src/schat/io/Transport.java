@@ -0,0 +1,23 @@
+package schat.io;
+
+import java.io.IOException;
+
+/**
+ * Opens client connections to a server. {@link TcpTransport} goes through
+ * the network; {@link MemoryTransport} connects to a server running in the
+ * same JVM without any sockets.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public interface Transport
+{
+    /**
+     * Connects to a server
+     *
+     * @param address Server IP address or host name
+     * @param port Server port number
+     * @return The open connection
+     * @throws IOException if nobody listens there or the connection fails
+     */
+    Connection connect(String address, int port) throws IOException;
+}
@@ -0,0 +1,90 @@
+package schat.message;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import schat.io.BufferPool;
+
+/**
+ * Helpers for computing the content address of file payloads. Client and
+ * server must agree on the algorithm, so it is fixed here.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class ContentDigest
+{
+    public static final String ALGORITHM = "SHA-256";
+    /**
+     * Largest payload a server caches. Bigger files are announced without a
+     * digest: hashing them would read them once more for nothing.
+     */
+    public static final long MAX_CACHED_SIZE = 16L * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentDigest()
+    {
+    }
+
+    /**
+     * Creates a fresh digest instance for incremental hashing
+     *
+     * @return MessageDigest implementing {@link #ALGORITHM}
+     */
+    public static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            // Every Java platform is required to implement SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Hex encodes a finished digest
+     *
+     * @param digest Raw digest bytes
+     * @return Lowercase hexadecimal representation of the digest
+     */
+    public static String toHex(byte[] digest)
+    {
+        char[] out = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; ++i)
+        {
+            out[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            out[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Computes the content address of a file
+     *
+     * @param file File to be hashed
+     * @return Hex encoded digest of the file contents
+     * @throws IOException if the file could not be read
+     */
+    public static String of(File file) throws IOException
+    {
+        MessageDigest md = newDigest();
+        byte[] buffer;
+        int bytesRead;
+        try (BufferPool.Lease lease = BufferPool.shared().acquire(Message.MAX_PAYLOAD_SIZE);
+            InputStream in = new FileInputStream(file))
+        {
+            buffer = lease.array();
+            while ((bytesRead = in.read(buffer)) != -1)
+            {
+                md.update(buffer, 0, bytesRead);
+            }
+        }
+        return toHex(md.digest());
+    }
+}
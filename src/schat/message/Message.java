@@ -1,15 +1,28 @@
 package schat.message;
 
-import java.io.Serializable;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
 
 /**
+ * A message is built through its mutators and may then be frozen, see
+ * {@link #freeze()}. A frozen message can no longer change, so a single
+ * instance can be routed, logged and written to any number of recipients
+ * without defensive copies, and its wire form is encoded only once.
+ *
+ * Messages are written by {@link MessageCodec} rather than by reflective
+ * serialization.
+ *
  * @author Vaibhav Yenamandra (vyenman@ufl.edu)
  */
-public class Message implements Serializable
+public class Message implements Externalizable
 {
 
     private static final long serialVersionUID = 1L;
@@ -19,9 +32,26 @@ public class Message implements Serializable
 
     private MessageType type;
     private String from;
-    private List<String> to = new ArrayList<>();
+    private String[] to = NO_RECIPIENTS;
     private String body;
     private long payloadSize;
+    private String digest;
+    private int senderId = -1;
+    private int[] recipientIds;
+    private long transferId = -1;
+    private long id = -1;
+    private long clientId = -1;
+    private long sequence = -1;
+    private long sentAt;
+    private long relayedAt;
+    private long deliveredAt;
+    private boolean ackRequested;
+    private String resumeToken;
+    private long resumeFrom;
+    // Wire form, set once the message is frozen
+    private transient volatile byte[] encoded;
+
+    private static final String[] NO_RECIPIENTS = new String[0];
 
     private static final char TOK_CMD_START = '/';
     private static final String TOK_CMD_BLK = "!";
@@ -29,6 +59,7 @@ public class Message implements Serializable
     private static final String TOK_TEXT = "text";
     private static final String TOK_FILE = "file";
     private static final String TOK_QUIT = "quit";
+    private static final String TOK_SEARCH = "search";
 
     /**
      * Null / default constructor
@@ -88,11 +119,358 @@ public class Message implements Serializable
     /**
      * Returns the list of recipients as an array
      *
-     * @return Recipients as an array
+     * @return Copy of the recipients
      */
     public String[] getRecipients()
     {
-        return this.to.toArray(new String[0]);
+        return this.to.clone();
+    }
+
+    /**
+     * Accessor method for the number of recipients
+     *
+     * @return Number of recipients listed
+     */
+    public int getRecipientCount()
+    {
+        return this.to.length;
+    }
+
+    /**
+     * Accessor method for a single recipient, without copying the list
+     *
+     * @param index Position of the recipient, below
+     * {@link #getRecipientCount()}
+     * @return Recipient at the given position
+     */
+    public String getRecipient(int index)
+    {
+        return this.to[index];
+    }
+
+    /**
+     * Replaces the list of recipients
+     *
+     * @param recipients Usernames (or other per-recipient entries) to be set
+     */
+    public void setRecipients(String... recipients)
+    {
+        checkMutable();
+        this.to = recipients.length == 0 ? NO_RECIPIENTS : recipients.clone();
+    }
+
+    /**
+     * Accessor method for the session ID of the sender, stamped by the server
+     *
+     * @return Sender's session ID, -1 if unknown
+     */
+    public int getSenderId()
+    {
+        return this.senderId;
+    }
+
+    /**
+     * Mutator method for the session ID of the sender
+     *
+     * @param senderId Sender's session ID
+     */
+    public void setSenderId(int senderId)
+    {
+        checkMutable();
+        this.senderId = senderId;
+    }
+
+    /**
+     * Returns the recipients as session IDs. Clients that learnt the IDs from
+     * presence frames may address by ID, sparing the server name lookups.
+     * In presence frames this array runs parallel to the recipients.
+     *
+     * @return Copy of the recipient session IDs, null if recipients are
+     * given by name
+     */
+    public int[] getRecipientIds()
+    {
+        return this.recipientIds == null ? null : this.recipientIds.clone();
+    }
+
+    /**
+     * Accessor method for the number of recipient session IDs
+     *
+     * @return Number of session IDs, -1 if recipients are given by name
+     */
+    public int getRecipientIdCount()
+    {
+        return this.recipientIds == null ? -1 : this.recipientIds.length;
+    }
+
+    /**
+     * Accessor method for a single recipient session ID, without copying
+     *
+     * @param index Position of the ID, below {@link #getRecipientIdCount()}
+     * @return Session ID at the given position
+     */
+    public int getRecipientId(int index)
+    {
+        return this.recipientIds[index];
+    }
+
+    /**
+     * Mutator method for the recipient session IDs
+     *
+     * @param recipientIds Session IDs, or null to address by name
+     */
+    public void setRecipientIds(int[] recipientIds)
+    {
+        checkMutable();
+        this.recipientIds = recipientIds == null ? null : recipientIds.clone();
+    }
+
+    /**
+     * Accessor method for the transfer a file message or chunk belongs to.
+     * Chunks of concurrent transfers to the same client may interleave, the
+     * ID tells them apart.
+     *
+     * @return Server assigned transfer ID, -1 outside file relays
+     */
+    public long getTransferId()
+    {
+        return this.transferId;
+    }
+
+    /**
+     * Mutator method for the transfer ID
+     *
+     * @param transferId Server assigned transfer ID
+     */
+    public void setTransferId(long transferId)
+    {
+        checkMutable();
+        this.transferId = transferId;
+    }
+
+    /**
+     * Accessor method for the message ID, assigned by the server when the
+     * message is relayed. Delivery acknowledgements carry the ID of the
+     * message they acknowledge.
+     *
+     * @return Server assigned message ID, -1 if not relayed yet
+     */
+    public long getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * Mutator method for the message ID
+     *
+     * @param id Server assigned message ID
+     */
+    public void setId(long id)
+    {
+        checkMutable();
+        this.id = id;
+    }
+
+    /**
+     * Accessor method for the client message ID. The sending client numbers
+     * the messages of a session, and a resent message keeps its number, so
+     * that the server can tell a retry from a new message. The server echoes
+     * the ID in an {@link MessageType#ACK_SEND} once the message is relayed.
+     *
+     * @return Client assigned message ID, -1 if the client assigns none
+     */
+    public long getClientId()
+    {
+        return this.clientId;
+    }
+
+    /**
+     * Mutator method for the client message ID
+     *
+     * @param clientId Client assigned message ID, unique within the session
+     */
+    public void setClientId(long clientId)
+    {
+        checkMutable();
+        this.clientId = clientId;
+    }
+
+    /**
+     * Accessor method for the multicast sequence number. When the server
+     * publishes broadcasts on a multicast group it numbers them without
+     * gaps, so receivers can tell which ones they missed, see
+     * {@link MulticastDatagram}. Copies sent over TCP, including repairs,
+     * carry the same number.
+     *
+     * @return Sequence number of a broadcast, -1 if it was not published
+     */
+    public long getSequence()
+    {
+        return this.sequence;
+    }
+
+    /**
+     * Mutator method for the multicast sequence number
+     *
+     * @param sequence Sequence number on the server's multicast group
+     */
+    public void setSequence(long sequence)
+    {
+        checkMutable();
+        this.sequence = sequence;
+    }
+
+    /**
+     * Accessor method for the time the sender handed the message over
+     *
+     * @return Sender's wall clock time in milliseconds, 0 if not stamped
+     */
+    public long getSentAt()
+    {
+        return this.sentAt;
+    }
+
+    /**
+     * Mutator method for the send timestamp
+     *
+     * @param sentAt Sender's wall clock time in milliseconds
+     */
+    public void setSentAt(long sentAt)
+    {
+        checkMutable();
+        this.sentAt = sentAt;
+    }
+
+    /**
+     * Accessor method for the time the server relayed the message
+     *
+     * @return Server's wall clock time in milliseconds, 0 if not stamped
+     */
+    public long getRelayedAt()
+    {
+        return this.relayedAt;
+    }
+
+    /**
+     * Mutator method for the relay timestamp
+     *
+     * @param relayedAt Server's wall clock time in milliseconds
+     */
+    public void setRelayedAt(long relayedAt)
+    {
+        checkMutable();
+        this.relayedAt = relayedAt;
+    }
+
+    /**
+     * Accessor method for the time the recipient received the message. Only
+     * set on delivery acknowledgements.
+     *
+     * @return Recipient's wall clock time in milliseconds, 0 if not stamped
+     */
+    public long getDeliveredAt()
+    {
+        return this.deliveredAt;
+    }
+
+    /**
+     * Mutator method for the delivery timestamp
+     *
+     * @param deliveredAt Recipient's wall clock time in milliseconds
+     */
+    public void setDeliveredAt(long deliveredAt)
+    {
+        checkMutable();
+        this.deliveredAt = deliveredAt;
+    }
+
+    /**
+     * Checks if the sender asked recipients to acknowledge delivery
+     *
+     * @return true if recipients should reply with
+     * {@link MessageType#ACK_DELIVERY}
+     */
+    public boolean isAckRequested()
+    {
+        return this.ackRequested;
+    }
+
+    /**
+     * Mutator method for the delivery acknowledgement request
+     *
+     * @param ackRequested true to have recipients acknowledge delivery
+     */
+    public void setAckRequested(boolean ackRequested)
+    {
+        checkMutable();
+        this.ackRequested = ackRequested;
+    }
+
+    /**
+     * Accessor method for the resume token. On an ACK_INTRO it is the token
+     * the server issued for the session. On a CLIENT_INTRODUCTION an empty
+     * token asks the server for one, any other token asks to resume the
+     * session it was issued to.
+     *
+     * @return Resume token, null if resumption is not used
+     */
+    public String getResumeToken()
+    {
+        return this.resumeToken;
+    }
+
+    /**
+     * Mutator method for the resume token
+     *
+     * @param resumeToken Token issued by the server, empty to ask for one
+     */
+    public void setResumeToken(String resumeToken)
+    {
+        checkMutable();
+        this.resumeToken = resumeToken;
+    }
+
+    /**
+     * Accessor method for the number of text messages a resuming client
+     * received before its connection dropped. The server replays the ones
+     * after it.
+     *
+     * @return Text messages received, only set on a resuming
+     * CLIENT_INTRODUCTION
+     */
+    public long getResumeFrom()
+    {
+        return this.resumeFrom;
+    }
+
+    /**
+     * Mutator method for the number of text messages received
+     *
+     * @param resumeFrom Text messages received on the dropped connection
+     */
+    public void setResumeFrom(long resumeFrom)
+    {
+        checkMutable();
+        this.resumeFrom = resumeFrom;
+    }
+
+    /**
+     * Builds the acknowledgement a recipient sends back for a message that
+     * asked for one. Carries the message ID and all timestamps so far, and
+     * is stamped with the time of delivery.
+     *
+     * @param delivered Message that was received
+     * @param from Username of the recipient
+     * @return ACK_DELIVERY message to be sent to the server
+     */
+    public static Message deliveryAck(Message delivered, String from)
+    {
+        Message ack = new Message(MessageType.ACK_DELIVERY, "", from);
+        ack.setId(delivered.getId());
+        ack.setSentAt(delivered.getSentAt());
+        ack.setRelayedAt(delivered.getRelayedAt());
+        ack.setDeliveredAt(System.currentTimeMillis());
+        return ack;
     }
 
     /**
@@ -112,9 +490,32 @@ public class Message implements Serializable
      */
     public void setPayloadSize(long size)
     {
+        checkMutable();
         this.payloadSize = size;
     }
 
+    /**
+     * Accessor method for the content address of a file payload
+     *
+     * @return Hex encoded digest of the payload, null if not announced
+     */
+    public String getDigest()
+    {
+        return this.digest;
+    }
+
+    /**
+     * Announces the content address of the file payload, allowing the server
+     * to skip the upload if it already holds the same content
+     *
+     * @param digest Hex encoded digest, see {@link ContentDigest}
+     */
+    public void setDigest(String digest)
+    {
+        checkMutable();
+        this.digest = digest;
+    }
+
     /**
      * Mutator method for message sender
      *
@@ -122,6 +523,7 @@ public class Message implements Serializable
      */
     public void setFrom(String from)
     {
+        checkMutable();
         this.from = from;
     }
 
@@ -132,6 +534,7 @@ public class Message implements Serializable
      */
     public void setBody(String body)
     {
+        checkMutable();
         this.body = body;
     }
 
@@ -142,9 +545,114 @@ public class Message implements Serializable
      */
     public void setType(MessageType mType)
     {
+        checkMutable();
         this.type = mType;
     }
 
+    /**
+     * Freezes the message: every mutator throws from now on, and the wire
+     * form is encoded once and reused by every write
+     *
+     * @return This message
+     */
+    public Message freeze()
+    {
+        if (this.encoded == null)
+        {
+            this.encoded = MessageCodec.encode(this);
+        }
+        return this;
+    }
+
+    /**
+     * Checks if the message has been frozen
+     *
+     * @return true if the message can no longer change
+     */
+    public boolean isFrozen()
+    {
+        return this.encoded != null;
+    }
+
+    private void checkMutable()
+    {
+        if (this.encoded != null)
+        {
+            throw new IllegalStateException("Message is frozen");
+        }
+    }
+
+    /**
+     * Writes the message, reusing the encoded form of a frozen message
+     *
+     * @param out Stream to write to
+     * @throws IOException if the stream fails
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException
+    {
+        byte[] wire = this.encoded;
+        if (wire != null)
+        {
+            out.write(wire);
+        }
+        else
+        {
+            MessageCodec.write(this, out);
+        }
+    }
+
+    /**
+     * Reads a message written by {@link #writeExternal(ObjectOutput)}
+     *
+     * @param in Stream to read from
+     * @throws IOException if the stream fails or is corrupt
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException
+    {
+        MessageCodec.read(this, in);
+    }
+
+    /**
+     * Encodes the message as {@link #writeExternal(ObjectOutput)} writes it,
+     * without any object stream framing
+     *
+     * @return Wire form of the message
+     */
+    public byte[] encode()
+    {
+        byte[] wire = this.encoded;
+        return wire != null ? wire.clone() : MessageCodec.encode(this);
+    }
+
+    /**
+     * Measures the message for memory accounting, e.g. while it is queued or
+     * remembered by an object stream
+     *
+     * @return Length of the wire form, exact for a frozen message and
+     * estimated without encoding otherwise
+     */
+    public int getWireSize()
+    {
+        byte[] wire = this.encoded;
+        return wire != null ? wire.length : MessageCodec.sizeOf(this);
+    }
+
+    /**
+     * Decodes the wire form returned by {@link #encode()}
+     *
+     * @param wire Encoded message
+     * @return Decoded message, not frozen
+     * @throws IOException if the bytes do not hold a message
+     */
+    public static Message decode(byte[] wire) throws IOException
+    {
+        Message message = new Message();
+        MessageCodec.read(message, new DataInputStream(new ByteArrayInputStream(wire)));
+        return message;
+    }
+
     /**
      * Return the message represented as a string
      *
@@ -211,7 +719,8 @@ public class Message implements Serializable
             // Deal with unrecognized commands via exceptions
             if (!tokens[0].equals(TOK_TEXT)
                 && !tokens[0].equals(TOK_FILE)
-                && !tokens[0].equals(TOK_QUIT))
+                && !tokens[0].equals(TOK_QUIT)
+                && !tokens[0].equals(TOK_SEARCH))
             {
                 throw new IllegalMessageException(
                     "Unknown command: " + tokens[0]
@@ -225,6 +734,14 @@ public class Message implements Serializable
                 return msg;
             }
 
+            // The rest of the line is the query: /search [#<page>] <TERMS>
+            if (tokens[0].equals(TOK_SEARCH))
+            {
+                msg.type = MessageType.CLIENT_SEARCH;
+                msg.body = str.substring(tokens[0].length() + 1).trim();
+                return msg;
+            }
+
             // Return early if we have a message of the the form:
             // /[text|file] <BODY>
             if (!tokens[1].startsWith(TOK_CMD_RCV) && !tokens[1].startsWith(TOK_CMD_BLK))
@@ -243,15 +760,17 @@ public class Message implements Serializable
             // the first character of token[1]
             char firstType = tokens[1].charAt(0);
             int lastIndex = 1;
+            List<String> to = new ArrayList<>();
             for (int i = 1; i < tokens.length && tokens[i].charAt(0) == firstType; ++i)
             {
-                msg.to.add(tokens[i].substring(1));
+                to.add(tokens[i].substring(1));
                 lastIndex = i;
             }
+            msg.to = to.toArray(NO_RECIPIENTS);
 
             // At this point we need to check if a valid body was even
             // specified. The body is bound to be empty if tokens.length = msg.to.length + 1
-            if (tokens.length - msg.to.size() == 1)
+            if (tokens.length - msg.to.length == 1)
             {
                 throw new IllegalMessageException(
                     "Empty messages cannot be processed."
@@ -0,0 +1,221 @@
+package schat.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format of a {@link Message}. Fields are written in a fixed order with
+ * the type as its ordinal, replacing reflective serialization with a handful
+ * of primitive writes. Strings are length prefixed UTF-8, -1 standing for
+ * null.
+ *
+ * Frozen messages keep their encoded form, see {@link Message#freeze()}, so a
+ * message relayed to many recipients is encoded once and copied into every
+ * recipient's stream as is.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+final class MessageCodec
+{
+    // Bumped whenever the field layout changes
+    private static final byte FORMAT = 4;
+    // Oldest format still read, e.g. from traffic captures; fields added
+    // since keep their defaults
+    private static final byte MIN_FORMAT = 2;
+    // Limits on decoded lengths, anything larger means the stream is corrupt
+    private static final int MAX_STRING_BYTES = 1 << 20;
+    private static final int MAX_RECIPIENTS = 1 << 16;
+    private static final MessageType[] TYPES = MessageType.values();
+    // Encoded size of the fixed width fields and the length prefixes
+    private static final int FIXED_SIZE = 107;
+
+    private MessageCodec()
+    {
+    }
+
+    /**
+     * Encodes a message into a standalone byte array
+     *
+     * @param message Message to be encoded
+     * @return Encoded fields, as {@link #write(Message, DataOutput)} writes
+     * them
+     */
+    static byte[] encode(Message message)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try
+        {
+            write(message, new DataOutputStream(bytes));
+        }
+        catch (IOException ex)
+        {
+            // Cannot happen writing to memory
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Estimates the encoded size of a message without encoding it, counting
+     * one byte per character
+     *
+     * @param message Message to be measured
+     * @return Approximate length of {@link #encode(Message)}
+     */
+    static int sizeOf(Message message)
+    {
+        int size = FIXED_SIZE + length(message.getFrom()) + length(message.getBody())
+            + length(message.getDigest()) + length(message.getResumeToken());
+        for (int i = 0; i < message.getRecipientCount(); ++i)
+        {
+            size += 4 + length(message.getRecipient(i));
+        }
+        int ids = message.getRecipientIdCount();
+        return ids < 0 ? size : size + 4 * ids;
+    }
+
+    private static int length(String s)
+    {
+        return s == null ? 0 : s.length();
+    }
+
+    /**
+     * Writes the fields of a message
+     *
+     * @param message Message to be written
+     * @param out Destination
+     * @throws IOException if the destination fails
+     */
+    static void write(Message message, DataOutput out) throws IOException
+    {
+        out.writeByte(FORMAT);
+        out.writeByte(message.getType() == null ? -1 : message.getType().ordinal());
+        writeString(out, message.getFrom());
+        writeString(out, message.getBody());
+        out.writeInt(message.getRecipientCount());
+        for (int i = 0; i < message.getRecipientCount(); ++i)
+        {
+            writeString(out, message.getRecipient(i));
+        }
+        out.writeInt(message.getRecipientIdCount());
+        for (int i = 0; i < message.getRecipientIdCount(); ++i)
+        {
+            out.writeInt(message.getRecipientId(i));
+        }
+        out.writeLong(message.getPayloadSize());
+        writeString(out, message.getDigest());
+        out.writeInt(message.getSenderId());
+        out.writeLong(message.getTransferId());
+        out.writeLong(message.getId());
+        out.writeLong(message.getSentAt());
+        out.writeLong(message.getRelayedAt());
+        out.writeLong(message.getDeliveredAt());
+        out.writeBoolean(message.isAckRequested());
+        writeString(out, message.getResumeToken());
+        out.writeLong(message.getResumeFrom());
+        out.writeLong(message.getClientId());
+        out.writeLong(message.getSequence());
+    }
+
+    /**
+     * Reads fields written by {@link #write(Message, DataOutput)} into a
+     * fresh message
+     *
+     * @param message Message to be filled in
+     * @param in Source
+     * @throws IOException if the source fails or does not hold a message
+     */
+    static void read(Message message, DataInput in) throws IOException
+    {
+        byte format = in.readByte();
+        if (format < MIN_FORMAT || format > FORMAT)
+        {
+            throw new StreamCorruptedException("Unknown message format " + format);
+        }
+        int type = in.readByte();
+        if (type < -1 || type >= TYPES.length)
+        {
+            throw new StreamCorruptedException("Unknown message type " + type);
+        }
+        message.setType(type < 0 ? null : TYPES[type]);
+        message.setFrom(readString(in));
+        message.setBody(readString(in));
+        String[] to = new String[checkCount(in.readInt(), false)];
+        for (int i = 0; i < to.length; ++i)
+        {
+            to[i] = readString(in);
+        }
+        message.setRecipients(to);
+        int count = checkCount(in.readInt(), true);
+        if (count >= 0)
+        {
+            int[] ids = new int[count];
+            for (int i = 0; i < count; ++i)
+            {
+                ids[i] = in.readInt();
+            }
+            message.setRecipientIds(ids);
+        }
+        message.setPayloadSize(in.readLong());
+        message.setDigest(readString(in));
+        message.setSenderId(in.readInt());
+        message.setTransferId(in.readLong());
+        message.setId(in.readLong());
+        message.setSentAt(in.readLong());
+        message.setRelayedAt(in.readLong());
+        message.setDeliveredAt(in.readLong());
+        message.setAckRequested(in.readBoolean());
+        message.setResumeToken(readString(in));
+        message.setResumeFrom(in.readLong());
+        if (format >= 3)
+        {
+            message.setClientId(in.readLong());
+        }
+        if (format >= 4)
+        {
+            message.setSequence(in.readLong());
+        }
+    }
+
+    private static int checkCount(int count, boolean nullable) throws IOException
+    {
+        if (count < (nullable ? -1 : 0) || count > MAX_RECIPIENTS)
+        {
+            throw new StreamCorruptedException("Bad recipient count " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length == -1)
+        {
+            return null;
+        }
+        if (length < 0 || length > MAX_STRING_BYTES)
+        {
+            throw new StreamCorruptedException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
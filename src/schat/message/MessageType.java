@@ -5,9 +5,14 @@ package schat.message;
  */
 public enum MessageType
 {
-    ACK_INTRO, ACK_QUIT,
+    ACK_INTRO, ACK_QUIT, ACK_FILE, ACK_DELIVERY,
+    PRESENCE_SNAPSHOT, PRESENCE_DELTA,
     CLIENT_INTRODUCTION,
     CLIENT_QUIT, CLIENT_TIMEOUT,
     CLIENT_TEXT_BROADCAST, CLIENT_TEXT_BLOCKCAST, CLIENT_TEXT_UNICAST,
-    CLIENT_FILE_BROADCAST, CLIENT_FILE_BLOCKCAST, CLIENT_FILE_UNICAST
+    CLIENT_FILE_BROADCAST, CLIENT_FILE_BLOCKCAST, CLIENT_FILE_UNICAST,
+    FILE_CHUNK,
+    CLIENT_SEARCH, SEARCH_RESULTS,
+    ACK_SEND,
+    MULTICAST_OFFER, MULTICAST_JOIN, MULTICAST_NAK, MULTICAST_GAP
 }
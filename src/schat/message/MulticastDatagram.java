@@ -0,0 +1,132 @@
+package schat.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Datagram format of the multicast fast path. Every datagram starts with a
+ * magic number, its kind and a sequence number:
+ * <pre>
+ *   int     magic
+ *   byte    {@link #DATA} or {@link #HEARTBEAT}
+ *   long    sequence number
+ *   ...     encoded message (data only)
+ * </pre>
+ * A data datagram carries one broadcast, numbered by the server without
+ * gaps. A heartbeat carries the number the next broadcast will get, so that
+ * receivers notice losses at the tail of a burst too.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class MulticastDatagram
+{
+    public static final byte DATA = 0;
+    public static final byte HEARTBEAT = 1;
+    // Fits an Ethernet frame, larger datagrams would be fragmented and be
+    // lost whenever any fragment is
+    public static final int MAX_SIZE = 1472;
+
+    private static final int MAGIC = 0x53434d43;
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+
+    private final byte kind;
+    private final long sequence;
+    private final Message message;
+
+    private MulticastDatagram(byte kind, long sequence, Message message)
+    {
+        this.kind = kind;
+        this.sequence = sequence;
+        this.message = message;
+    }
+
+    /**
+     * Encodes a broadcast
+     *
+     * @param message Frozen broadcast carrying its sequence number
+     * @return The datagram, null if the message does not fit one
+     */
+    public static byte[] data(Message message)
+    {
+        byte[] wire = message.encode();
+        if (HEADER_SIZE + wire.length > MAX_SIZE)
+        {
+            return null;
+        }
+        return header(DATA, message.getSequence(), wire.length).put(wire).array();
+    }
+
+    /**
+     * Encodes a heartbeat
+     *
+     * @param next Sequence number of the next broadcast
+     * @return The datagram
+     */
+    public static byte[] heartbeat(long next)
+    {
+        return header(HEARTBEAT, next, 0).array();
+    }
+
+    private static ByteBuffer header(byte kind, long sequence, int payload)
+    {
+        return ByteBuffer.allocate(HEADER_SIZE + payload)
+            .putInt(MAGIC)
+            .put(kind)
+            .putLong(sequence);
+    }
+
+    /**
+     * Decodes a received datagram
+     *
+     * @param bytes Buffer the datagram was received into
+     * @param length Length of the datagram
+     * @return The datagram, null if it is not one of ours
+     * @throws IOException if a data datagram does not hold a message
+     */
+    public static MulticastDatagram parse(byte[] bytes, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        if (length < HEADER_SIZE || buffer.getInt() != MAGIC)
+        {
+            return null;
+        }
+        byte kind = buffer.get();
+        long sequence = buffer.getLong();
+        if (kind == HEARTBEAT)
+        {
+            return new MulticastDatagram(kind, sequence, null);
+        }
+        if (kind != DATA)
+        {
+            return null;
+        }
+        return new MulticastDatagram(kind, sequence,
+            Message.decode(Arrays.copyOfRange(bytes, HEADER_SIZE, length))
+        );
+    }
+
+    /**
+     * @return {@link #DATA} or {@link #HEARTBEAT}
+     */
+    public byte getKind()
+    {
+        return this.kind;
+    }
+
+    /**
+     * @return Number of the broadcast, or of the next one for a heartbeat
+     */
+    public long getSequence()
+    {
+        return this.sequence;
+    }
+
+    /**
+     * @return The broadcast, null for a heartbeat
+     */
+    public Message getMessage()
+    {
+        return this.message;
+    }
+}
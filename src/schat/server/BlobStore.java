@@ -0,0 +1,117 @@
+package schat.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content addressed, size bounded store of recently relayed file payloads.
+ * Blobs are keyed by their {@link schat.message.ContentDigest} and evicted in
+ * least recently used order once the total size exceeds the capacity.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class BlobStore
+{
+    private final long capacity;
+    private final long maxBlobSize;
+    private long size;
+    private long hits;
+    private long misses;
+
+    // Access ordered, so iteration starts at the least recently used blob
+    private final LinkedHashMap<String, byte[]> blobs
+        = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Creates an empty store
+     *
+     * @param capacity Upper bound on the total bytes held by the store
+     * @param maxBlobSize Largest single payload that will be cached
+     */
+    public BlobStore(long capacity, long maxBlobSize)
+    {
+        this.capacity = capacity;
+        this.maxBlobSize = Math.min(maxBlobSize, capacity);
+    }
+
+    /**
+     * Checks if a payload of the given size would be admitted to the store
+     *
+     * @param payloadSize Size in bytes of the payload
+     * @return true if the payload is small enough to be cached
+     */
+    public boolean isCacheable(long payloadSize)
+    {
+        return payloadSize >= 0 && payloadSize <= this.maxBlobSize;
+    }
+
+    /**
+     * Looks up a payload by content address, marking it as recently used
+     *
+     * @param digest Hex encoded digest of the payload
+     * @return The stored payload, null if it is not (or no longer) cached
+     */
+    public synchronized byte[] get(String digest)
+    {
+        byte[] blob = this.blobs.get(digest);
+        if (blob == null)
+        {
+            ++this.misses;
+        }
+        else
+        {
+            ++this.hits;
+        }
+        return blob;
+    }
+
+    /**
+     * Stores a payload, evicting least recently used blobs to make room. The
+     * caller is responsible for having verified that the digest matches.
+     *
+     * @param digest Hex encoded digest of the payload
+     * @param blob Payload bytes, must not be modified afterwards
+     */
+    public synchronized void put(String digest, byte[] blob)
+    {
+        if (!isCacheable(blob.length))
+        {
+            return;
+        }
+        byte[] previous = this.blobs.put(digest, blob);
+        if (previous != null)
+        {
+            this.size -= previous.length;
+        }
+        this.size += blob.length;
+
+        Iterator<Map.Entry<String, byte[]>> eldest
+            = this.blobs.entrySet().iterator();
+        while (this.size > this.capacity && eldest.hasNext())
+        {
+            this.size -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Total bytes currently held by the store
+     *
+     * @return Sum of the sizes of all cached payloads
+     */
+    public synchronized long size()
+    {
+        return this.size;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(
+            "BlobStore{blobs=%d, bytes=%d/%d, hits=%d, misses=%d}",
+            this.blobs.size(), this.size, this.capacity,
+            this.hits, this.misses
+        );
+    }
+}
@@ -1,18 +1,22 @@
 package schat.server;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import schat.io.BufferPool;
+import schat.io.ChunkSizer;
+import schat.io.Connection;
 import schat.message.*;
 
 /**
@@ -21,20 +25,55 @@ import schat.message.*;
  */
 public class ClientHandler implements Runnable
 {
-    private final Socket sock;
+    private final Connection sock;
+    // Bytes of messages the connection may hold, see OutboundQueue
+    private final long budget;
     private String username;
+    private volatile int id = -1;
+    // Registration the ID was assigned in, see SessionRegistry
+    private volatile int generation = 0;
     private ObjectInputStream sockIn;
     private ObjectOutputStream sockOut;
-    private final ReentrantLock socketIOLock = new ReentrantLock();
+    private volatile OutboundQueue outbound;
+    // Set for clients that asked to be able to resume their session
+    private volatile ReplayBuffer replay;
+    private volatile String resumeToken;
+    // Client message IDs relayed for the session, handed on when it resumes
+    private volatile DedupWindow relayed = new DedupWindow();
+    // Takes text broadcasts from the multicast group instead of over TCP
+    private volatile boolean subscribed = false;
+    private final AtomicInteger state = new AtomicInteger(LIVE);
+
+    // Session states: connected, dropped but resumable, released or resumed
+    private static final int LIVE = 0;
+    private static final int DETACHED = 1;
+    private static final int GONE = 2;
+
+    // Batches the small frames the outbound writer emits between flushes
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Constructor for creating a new ClientHandler instance with the default
+     * memory budget
+     *
+     * @param cSock Connection to the client, over a socket or in memory
+     */
+    public ClientHandler(Connection cSock)
+    {
+        this(cSock, ServerConfig.DEFAULT_CONNECTION_BUDGET);
+    }
 
     /**
      * Constructor for creating a new ClientHandler instance
      *
-     * @param cSock Client socket object
+     * @param cSock Connection to the client, over a socket or in memory
+     * @param budget Bytes of messages the connection may hold in its
+     * outbound queue and stream
      */
-    public ClientHandler(Socket cSock)
+    public ClientHandler(Connection cSock, long budget)
     {
         this.sock = cSock;
+        this.budget = budget;
         this.username = "";
     }
 
@@ -57,168 +96,579 @@ public class ClientHandler implements Runnable
      */
     public boolean dispatchText(ClientHandler other, Message message)
     {
-        this.socketIOLock.lock();
-        boolean sent = true;
-        try
-        {
-            other.socketIOLock.tryLock();
-            try
-            {
-                other.sockOut.writeObject(message);
-            }
-            finally
-            {
-                other.socketIOLock.unlock();
-            }
-        }
-        catch (IOException ex)
-        {
-            System.err.println("[ERROR] " + ex.getMessage());
-            sent = false;
-        }
-        finally
-        {
-            socketIOLock.unlock();
-        }
-        return sent;
+        // Only the recipient's stream needs guarding. Holding our own lock as
+        // well would deadlock two users messaging each other at once.
+        return other.dispatchText(message);
     }
 
     /**
-     * Writes a message to <code>this</code> Handlers outbound socket
+     * Queues a message on <code>this</code> Handlers outbound socket, in the
+     * priority lane matching its type. Text messages to a resumable session
+     * go through its replay buffer, which also keeps them while the session
+     * is detached.
      *
      * @param message Message to be sent to target user
-     * @return true if write was successful, false otherwise
+     * @return true if the message was queued, false if the connection is
+     * closed
      */
-    private boolean dispatchText(Message message)
+    boolean dispatchText(Message message)
     {
-        this.socketIOLock.tryLock();
-        boolean sent = true;
-        try
+        ReplayBuffer buffer = this.replay;
+        return buffer != null && message.isTextMessage()
+            ? buffer.offer(message)
+            : enqueue(message, null);
+    }
+
+    /**
+     * Queues a frame on <code>this</code> Handlers outbound socket, recording
+     * how long the caller was held up by the queue
+     *
+     * @param message Message, or FILE_CHUNK header if chunk is given
+     * @param chunk File data sent behind the header, null for none
+     * @return true if the frame was queued, false if the connection is closed
+     */
+    boolean enqueue(Message message, OutboundQueue.Chunk chunk)
+    {
+        RelayEvents.RecipientWrite event = new RelayEvents.RecipientWrite();
+        event.begin();
+        OutboundQueue queue = this.outbound;
+        boolean accepted;
+        if (queue == null)
         {
-            this.sockOut.writeObject(message);
+            if (chunk != null)
+            {
+                chunk.release();
+            }
+            accepted = false;
         }
-        catch (IOException ex)
+        else
         {
-            System.err.println("[ERROR]" + ex.getMessage());
-            sent = false;
+            accepted = chunk == null
+                ? queue.enqueue(message)
+                : queue.enqueue(message, chunk);
         }
-        finally
+        event.end();
+        if (event.shouldCommit())
         {
-            this.socketIOLock.unlock();
+            event.recipient = this.username;
+            event.type = message.getType().name();
+            event.lane = OutboundQueue.Lane.of(message).name();
+            event.accepted = accepted;
+            event.commit();
         }
-        return sent;
+        return accepted;
     }
 
+    /**
+     * Writes a text message to a list of handlers, in parallel shards when
+     * the list is large, see {@link FanoutEngine}
+     *
+     * @param handlers Handlers that are to receive the message
+     * @param message Message to be sent
+     * @return true if the message was written to all handlers
+     */
     private boolean dispatchMultiText(
-        Collection<ClientHandler> handlers,
+        List<ClientHandler> handlers,
         Message message
     )
     {
-        boolean sent = true;
-        for (ClientHandler handler : handlers)
-        {
-            sent = sent & ClientHandler.this.dispatchText(handler, message);
-        }
-        return sent;
+        return Server.getFanout().dispatch(handlers, message);
     }
 
+    /**
+     * Relays a file payload to a list of handlers. If the sender announced a
+     * digest the payload is served from the blob store when possible, and
+     * the sender is told whether to upload it at all. Uploads with a digest
+     * are hashed on the fly and cached if the hash checks out.
+     *
+     * The payload is cut into FILE_CHUNK frames tagged with a transfer ID and
+     * queued in every recipient's bulk lane, one pooled buffer per chunk
+     * shared by all recipients. Other traffic to the recipients keeps flowing
+     * in between the chunks. Chunks start at the size of the socket's
+     * receive buffer and follow the throughput of the relay, see
+     * {@link ChunkSizer}; a chunk is read in full before it is queued.
+     *
+     * @param handlers Handlers that are to receive the file
+     * @param message Message announcing the file
+     * @return true if the file was queued for all handlers
+     */
     private boolean dispatchMultiFile(
         List<ClientHandler> handlers,
         Message message
     )
     {
-        this.socketIOLock.lock();
         boolean sent = true;
-        int currentPos, size, bytesRead;
+        long currentPos, size;
+        int bytesRead;
         byte[] buffer;
-        BufferedInputStream in = null;
-        BufferedOutputStream[] out = new BufferedOutputStream[handlers.size()];
+        long chunkStart, acked = 0;
+        ChunkSizer sizer;
+        InputStream in = null;
+        BlobStore blobs = Server.getBlobStore();
+        byte[] cached = null;
+        MessageDigest digest = null;
+        ByteArrayOutputStream upload = null;
+        BufferPool.Lease lease;
+        OutboundQueue.Chunk chunk;
+        Message header;
+        RelayEvents.FileChunkRelay chunkEvent;
+        RelayEvents.FileRelay relayEvent = new RelayEvents.FileRelay();
+        relayEvent.begin();
+        long relayStart = System.nanoTime();
         try
         {
-            // First we acquire locks to get all the output streams from
-            // each of the the handlers
-            ClientHandler handler;
-            for (int i = 0; i < handlers.size(); ++i)
+            sizer = new ChunkSizer(this.sock.getReceiveBufferSize());
+            // Without a digest the file cannot be cached, the sender still
+            // waits for the answer before uploading
+            if (message.getDigest() != null)
             {
-                handler = handlers.get(i);
-                handler.socketIOLock.tryLock();
-                try
+                cached = blobs.get(message.getDigest());
+            }
+            this.dispatchText(new Message(
+                MessageType.ACK_FILE, cached != null ? "Y" : "N", ""
+            ));
+            acked = System.nanoTime();
+            if (message.getDigest() != null)
+            {
+                if (cached == null && blobs.isCacheable(message.getPayloadSize()))
                 {
-                    handler.sockOut.writeObject(message);
-                    out[i] = new BufferedOutputStream(
-                        handler.sock.getOutputStream()
+                    digest = ContentDigest.newDigest();
+                    upload = new ByteArrayOutputStream(
+                        (int) message.getPayloadSize()
                     );
-                    out[i].flush();
+                }
+            }
+
+            message.setTransferId(Server.nextTransferId());
+            message.freeze();
+            for (ClientHandler handler : handlers)
+            {
+                sent = sent & handler.dispatchText(message);
+            }
+
+            currentPos = 0;
+            size = message.getPayloadSize();
+            // Read the socket unbuffered and never past the payload, the
+            // sender's next message may already be waiting behind it
+            in = cached != null
+                ? new ByteArrayInputStream(cached)
+                : this.sock.getInputStream();
+
+            while (currentPos < size)
+            {
+                chunkEvent = new RelayEvents.FileChunkRelay();
+                chunkEvent.begin();
+                chunkStart = System.nanoTime();
+                lease = BufferPool.shared().acquire(sizer.size());
+                buffer = lease.array();
+                int wanted = (int) Math.min(sizer.size(), size - currentPos);
+                try
+                {
+                    bytesRead = in.readNBytes(buffer, 0, wanted);
                 }
                 catch (IOException ex)
                 {
-                    System.err.println("[ERROR] " + ex.getMessage());
-                    sent = false;
+                    lease.close();
+                    throw ex;
                 }
-                finally
+                if (bytesRead < wanted)
                 {
-                    handler.socketIOLock.unlock();
+                    lease.close();
+                    throw new IOException("Connection closed mid file transfer");
+                }
+                if (acked != 0 && cached == null)
+                {
+                    // The sender starts uploading once it has the ACK_FILE,
+                    // so the first chunk closes a round trip
+                    sizer.roundTrip(System.nanoTime() - acked);
+                    acked = 0;
+                }
+                if (upload != null)
+                {
+                    digest.update(buffer, 0, bytesRead);
+                    upload.write(buffer, 0, bytesRead);
                 }
-            }
-
-            // Now that we have the respective output streams, we can write
-            // the data we read to each, one by one
-            currentPos = 0;
-            size = (int) message.getPayloadSize();
-            buffer = new byte[Message.MAX_PAYLOAD_SIZE];
-            in = new BufferedInputStream(this.sock.getInputStream());
 
-            do
-            {
-                bytesRead = in.read(buffer, 0, buffer.length);
-                for (int i = 0; i < handlers.size(); ++i)
+                header = new Message(MessageType.FILE_CHUNK, "", message.getFrom());
+                header.setTransferId(message.getTransferId());
+                header.setPayloadSize(bytesRead);
+                header.freeze();
+                // One reference per recipient plus our own, so the buffer
+                // cannot be recycled before every recipient has it queued
+                chunk = new OutboundQueue.Chunk(
+                    buffer, 0, bytesRead, lease, handlers.size() + 1
+                );
+                for (ClientHandler handler : handlers)
                 {
-                    handler = handlers.get(i);
-                    handler.socketIOLock.tryLock();
-                    try
-                    {
-                        out[i].write(buffer, 0, bytesRead);
-                        out[i].flush();
-                    }
-                    finally
-                    {
-                        handler.socketIOLock.unlock();
-                    }
+                    sent = handler.enqueue(header, chunk) & sent;
                 }
+                chunk.release();
                 currentPos += bytesRead;
-            } while (bytesRead != -1 && currentPos < size);
+                // Includes waiting for room in the recipients' bulk lanes, so
+                // slow recipients count against bigger chunks too
+                sizer.moved(bytesRead, System.nanoTime() - chunkStart);
+
+                chunkEvent.end();
+                if (chunkEvent.shouldCommit())
+                {
+                    chunkEvent.transferId = message.getTransferId();
+                    chunkEvent.bytes = bytesRead;
+                    chunkEvent.recipients = handlers.size();
+                    chunkEvent.commit();
+                }
+            }
+
+            relayEvent.end();
+            if (relayEvent.shouldCommit())
+            {
+                relayEvent.transferId = message.getTransferId();
+                relayEvent.file = message.getBody();
+                relayEvent.bytes = currentPos;
+                relayEvent.recipients = handlers.size();
+                relayEvent.cached = cached != null;
+                relayEvent.throughput = (long) (currentPos * 1e9
+                    / Math.max(System.nanoTime() - relayStart, 1));
+                relayEvent.commit();
+            }
 
+            if (upload != null && currentPos == size && message.getDigest().
+                equals(ContentDigest.toHex(digest.digest())))
+            {
+                blobs.put(message.getDigest(), upload.toByteArray());
+            }
         }
         catch (IOException ex)
         {
             System.err.println("[ERROR] " + ex.getMessage());
             sent = false;
         }
-        finally
-        {
-            this.socketIOLock.unlock();
-        }
         return sent;
     }
 
+    /**
+     * Registers the username the client introduced itself with. Claiming the
+     * name and assigning the session ID is one atomic step, see
+     * {@link SessionRegistry#register(String, ClientHandler)}. A client
+     * introducing itself with a resume token picks up its earlier session
+     * instead, see {@link #resume(Message)}.
+     *
+     * @param message CLIENT_INTRODUCTION message
+     */
     private void processIntroduction(Message message)
     {
-        ConcurrentHashMap<String, ClientHandler> users;
-        Message temp;
-        temp = new Message(MessageType.ACK_INTRO, "", "");
-        users = Server.getUserList();
-
-        if (users.containsKey(message.getFrom()))
+        ResumableSessions sessions = Server.getResumableSessions();
+        String token = message.getResumeToken();
+        if (this.id < 0 && token != null && !token.isEmpty())
         {
-            temp.setBody("N");
+            resume(message);
+            return;
         }
-        else
+        boolean resumable = this.id < 0 && token != null && sessions.isEnabled();
+        if (resumable)
+        {
+            // In place before the name is claimed, so that every text
+            // message for the session is numbered
+            this.replay = new ReplayBuffer(sessions.getReplayCapacity());
+        }
+        Message temp = new Message(MessageType.ACK_INTRO, "N", "");
+        if (this.id < 0
+            && Server.getRegistry().register(message.getFrom(), this) >= 0)
         {
-            users.putIfAbsent(message.getFrom(), this);
             temp.setBody("Y");
             this.username = message.getFrom();
+            if (resumable)
+            {
+                this.resumeToken = sessions.issue(this);
+                temp.setResumeToken(this.resumeToken);
+            }
+            Server.getPresence().join(this.username, this.id);
+        }
+        else if (resumable)
+        {
+            this.replay = null;
+        }
+        this.dispatchText(temp);
+        if (temp.getBody().equals("Y"))
+        {
+            if (this.replay != null)
+            {
+                // Whatever arrived since the name was claimed goes out
+                // behind the ACK_INTRO
+                this.replay.attach(this, 0);
+            }
+            this.dispatchText(Server.getPresence().snapshot());
+            offerMulticast();
+        }
+    }
+
+    /**
+     * Takes over the session a resume token was issued to. The session keeps
+     * its name and ID, so nobody else could have claimed them, and the text
+     * messages the client missed are replayed in one batch right behind the
+     * ACK_INTRO, before any newer message. If the session lost its name all
+     * the same, the client is refused like one with an unknown token.
+     *
+     * @param message CLIENT_INTRODUCTION carrying the resume token and the
+     * number of text messages the client received
+     */
+    private void resume(Message message)
+    {
+        ResumableSessions sessions = Server.getResumableSessions();
+        ClientHandler previous = sessions.redeem(message.getResumeToken());
+        Message temp = new Message(MessageType.ACK_INTRO, "N", "");
+        if (previous == null
+            || !previous.username.equals(message.getFrom())
+            || !previous.retire())
+        {
+            this.dispatchText(temp);
+            return;
+        }
+        // In place before the name is handed over, so that messages routed
+        // to us from then on go through the replay buffer
+        DedupWindow relayed = this.relayed;
+        this.username = previous.username;
+        this.replay = previous.replay;
+        this.relayed = previous.relayed;
+        boolean transferred = Server.getRegistry().transfer(
+            this.username, previous.id, previous, this
+        );
+        // The old connection may not have noticed that it is dead yet
+        previous.close();
+        if (!transferred)
+        {
+            // The session no longer holds its name, there is nothing to take
+            // over
+            System.err.println("[WARN] Could not resume the session of "
+                + this.username + ", it no longer holds the name");
+            this.username = "";
+            this.replay = null;
+            this.relayed = relayed;
+            this.dispatchText(temp);
+            return;
         }
+
+        this.resumeToken = sessions.issue(this);
+        temp.setBody("Y");
+        temp.setResumeToken(this.resumeToken);
         this.dispatchText(temp);
+        long lost = this.replay.attach(this, message.getResumeFrom());
+        if (lost > 0)
+        {
+            System.err.println("[WARN] " + lost + " message(s) for "
+                + this.username + " fell out of the replay buffer");
+        }
+        System.out.println("Welcome back, " + this.username);
+        this.dispatchText(Server.getPresence().snapshot());
+        offerMulticast();
+    }
+
+    /**
+     * Tells an introduced client where text broadcasts are published, if
+     * they are. Until the client answers with a MULTICAST_JOIN it keeps
+     * getting them over TCP.
+     */
+    private void offerMulticast()
+    {
+        MulticastPublisher multicast = Server.getMulticast();
+        if (multicast != null)
+        {
+            this.dispatchText(multicast.offer());
+        }
+    }
+
+    /**
+     * Answers a subscriber's request for broadcasts it missed on the
+     * multicast group. They are sent again over TCP; a range no longer kept
+     * is reported with a MULTICAST_GAP so the client stops waiting for it.
+     * The range comes from the client, which may have been misled by a stray
+     * datagram on the group, so numbers never published are reported in the
+     * gap too: it carries the number of the next broadcast, and nothing from
+     * there on is sent.
+     *
+     * @param nak MULTICAST_NAK with the first missing and one past the last
+     * missing number in its body
+     */
+    private void repair(Message nak)
+    {
+        MulticastPublisher multicast = Server.getMulticast();
+        String[] range = nak.getBody().split(" ");
+        if (multicast == null || range.length != 2)
+        {
+            return;
+        }
+        long from, to;
+        try
+        {
+            from = Long.parseLong(range[0]);
+            to = Long.parseLong(range[1]);
+        }
+        catch (NumberFormatException ex)
+        {
+            System.err.println("[WARN] Ignoring malformed NAK from " + this.username);
+            return;
+        }
+        if (from < 0 || from > to)
+        {
+            return;
+        }
+        long next = multicast.next();
+        long end = Math.min(to, next);
+        long kept = Math.min(
+            Math.max(from, next - MulticastPublisher.REPAIR_CAPACITY), end
+        );
+        if (kept > from || to > end)
+        {
+            this.dispatchText(new Message(
+                MessageType.MULTICAST_GAP, from + " " + kept + " " + next, ""
+            ));
+        }
+        // Never more than the publisher keeps
+        end = Math.min(end, kept + MulticastPublisher.REPAIR_CAPACITY);
+        for (long sequence = kept; sequence < end; ++sequence)
+        {
+            Message missed = multicast.repair(sequence);
+            if (missed != null)
+            {
+                this.dispatchText(missed);
+            }
+        }
+    }
+
+    /**
+     * Marks the session as taken over by a resuming connection
+     *
+     * @return false if the session is already gone
+     */
+    private boolean retire()
+    {
+        return this.state.compareAndSet(LIVE, GONE)
+            || this.state.compareAndSet(DETACHED, GONE);
+    }
+
+    /**
+     * Called when the connection drops. A resumable session is held for the
+     * resume window, any other is released right away.
+     */
+    private void disconnected()
+    {
+        ResumableSessions sessions = Server.getResumableSessions();
+        if (this.replay != null && this.state.compareAndSet(LIVE, DETACHED))
+        {
+            this.replay.detach(this);
+            sessions.expireLater(this);
+            System.out.println("Holding the session of " + this.username
+                + " for " + sessions.getWindow() + " ms");
+        }
+        else if (this.state.compareAndSet(LIVE, GONE))
+        {
+            release();
+        }
+    }
+
+    /**
+     * Releases a detached session nobody resumed within the window
+     */
+    void expire()
+    {
+        if (this.state.compareAndSet(DETACHED, GONE))
+        {
+            release();
+        }
+    }
+
+    /**
+     * Gives up the session's name, ID and resume token for good
+     */
+    private void release()
+    {
+        Server.getResumableSessions().revoke(this.resumeToken);
+        if (Server.getRegistry().unregister(this.username, this.id, this))
+        {
+            Server.getPresence().leave(this.username);
+            System.out.println("Goodbye, " + this.username);
+        }
+    }
+
+    /**
+     * Accessor method for the session ID
+     *
+     * @return ID assigned on registration, -1 before
+     */
+    public int getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * Estimates the heap the connection holds beyond its fixed objects:
+     * stream buffers, queued frames and the messages its outbound stream
+     * remembers. Inbound, the stream remembers what the client wrote since
+     * it last reset, which well-behaved clients keep small.
+     *
+     * @return Bytes held, 0 before the streams are set up
+     */
+    long getRetainedBytes()
+    {
+        OutboundQueue queue = this.outbound;
+        return queue == null ? 0 : queue.getRetainedBytes();
+    }
+
+    /**
+     * Accessor method for the registration generation
+     *
+     * @return Generation the session registered in, 0 before
+     */
+    int getGeneration()
+    {
+        return this.generation;
+    }
+
+    /**
+     * Identifies the registration of the session, which unlike its name or
+     * ID is never reused
+     *
+     * @return Generation the session registered in, shifted above its
+     * session ID in the low 32 bits; -1 before
+     */
+    long getIdentity()
+    {
+        int id = this.id;
+        return id < 0 ? -1 : (long) this.generation << 32 | id;
+    }
+
+    /**
+     * Mutator method for the session ID, only used by the registry
+     *
+     * @param id ID assigned to this session
+     * @param generation Generation of the registration
+     */
+    void setId(int id, int generation)
+    {
+        // Written first, so that whoever sees the ID sees its generation
+        this.generation = generation;
+        this.id = id;
+    }
+
+    /**
+     * Builds the copy of a message that is relayed to recipients, stamped
+     * with the sender's session ID and stripped of the recipient list. The
+     * copy is frozen once the server has stamped it, and that one instance
+     * is then written to every recipient.
+     *
+     * @param message Message received from the sender
+     * @return Message to be written to recipients
+     */
+    private Message relayCopy(Message message)
+    {
+        Message msg = new Message(
+            message.getType(), message.getBody(), message.getFrom()
+        );
+        msg.setSenderId(this.id);
+        msg.setPayloadSize(message.getPayloadSize());
+        msg.setDigest(message.getDigest());
+        msg.setSentAt(message.getSentAt());
+        msg.setAckRequested(message.isAckRequested());
+        return msg;
     }
 
     /**
@@ -230,21 +680,10 @@ public class ClientHandler implements Runnable
      */
     private boolean unicastMessage(Message message)
     {
-        Collection<ClientHandler> users = Server.getUserList().values();
-        HashSet<String> recipients = new HashSet<>(
-            Arrays.asList(message.getRecipients())
-        );
-        List<ClientHandler> handlers = users.stream().
-            filter(h -> (recipients.contains(h.username)
-                && !h.username.equals(this.username))
-            ).collect(Collectors.toList());
-
-        if (message.isTextMessage())
-        {
-            return this.dispatchMultiText(handlers, message);
-        }
-        // It is a file message (guaranteed by switch-case)
-        return this.dispatchMultiFile(handlers, message);
+        List<ClientHandler> handlers = Server.getRecipientCache().resolve(message)
+            .without(this.id)
+            .handlers(Server.getRegistry());
+        return deliver(handlers, relayCopy(message), null);
     }
 
     /**
@@ -255,77 +694,314 @@ public class ClientHandler implements Runnable
      */
     private boolean broadcastMessage(Message message)
     {
-        Collection<ClientHandler> users = Server.getUserList().values();
-        List<ClientHandler> handlers = users.
-            stream().
-            filter(h -> !h.username.equals(this.username)).
-            collect(Collectors.toList());
+        List<ClientHandler> handlers = Server.getRegistry().allExcept(this);
+        return deliver(handlers, relayCopy(message), null);
+    }
 
-        // Need to unset the message.to field, so create a fresh object local
-        // to this so as not cause problems
-        Message msg = new Message(
-            message.getType(), message.getBody(), message.getFrom()
+    /**
+     * Sends file to all but some users on the server (including sender)
+     *
+     * @param message Message to be relayed
+     * @return boolean status indicating success of relay operation
+     */
+    private boolean blockcastMessage(Message message)
+    {
+        SessionRegistry registry = Server.getRegistry();
+        RecipientSet blocked = Server.getRecipientCache().resolve(message);
+        List<ClientHandler> handlers = registry.members()
+            .minus(blocked)
+            .without(this.id)
+            .handlers(registry);
+        // Blocked users who are offline right now are listed by name only
+        return deliver(handlers, relayCopy(message),
+            usernames(blocked.handlers(registry), message.getRecipients())
         );
+    }
 
-        if (message.isTextMessage())
+    /**
+     * Hands a relay copy to its recipients, recording the message ID and
+     * latency of the relay with the server's delivery tracker. Text
+     * broadcasts are published on the multicast group, if there is one, and
+     * only written to the recipients that did not subscribe to it. Text
+     * messages are then passed on to the search index.
+     *
+     * @param handlers Recipients of the message
+     * @param msg Relay copy made by {@link #relayCopy(Message)}
+     * @param blocked Usernames of the users blocked from a blockcast; null
+     * for other messages
+     * @return true if every recipient accepted the message
+     */
+    private boolean deliver(List<ClientHandler> handlers, Message msg, String[] blocked)
+    {
+        RelayEvents.RoutingDecision event = new RelayEvents.RoutingDecision();
+        event.begin();
+        DeliveryTracker tracker = Server.getDeliveryTracker();
+        long start = tracker.begin(msg, getIdentity(), handlers);
+        // Stamped by the tracker, the copy does not change after this
+        List<ClientHandler> tcp = handlers;
+        MulticastPublisher multicast = Server.getMulticast();
+        if (multicast != null && msg.getType() == MessageType.CLIENT_TEXT_BROADCAST
+            && multicast.publish(msg))
         {
-            return dispatchMultiText(handlers, msg);
+            // Subscribers got the datagram
+            tcp = unsubscribed(handlers);
         }
-        // It is a file message (guaranteed by switch-case)
-        msg.setPayloadSize(message.getPayloadSize());
+        boolean sent = msg.isTextMessage()
+            ? dispatchMultiText(tcp, msg.freeze())
+            // It is a file message (guaranteed by switch-case)
+            : dispatchMultiFile(handlers, msg);
+        tracker.dispatched(msg, start, sent);
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.route = msg.getType().name();
+            event.messageId = msg.getId();
+            event.recipients = handlers.size();
+            event.parallel = msg.isTextMessage()
+                && Server.getFanout().isParallel(handlers.size());
+            event.sent = sent;
+            event.commit();
+        }
+        SearchIndex search = Server.getSearchIndex();
+        if (msg.isTextMessage() && search.isEnabled())
+        {
+            search.add(msg, this.username, getIdentity(),
+                msg.getType() == MessageType.CLIENT_TEXT_UNICAST
+                    ? identities(handlers)
+                    : null,
+                blocked
+            );
+        }
+        return sent;
+    }
+
+    /**
+     * @return The handlers that still take text broadcasts over TCP
+     */
+    private static List<ClientHandler> unsubscribed(List<ClientHandler> handlers)
+    {
+        List<ClientHandler> tcp = new ArrayList<>(handlers.size());
+        for (ClientHandler handler : handlers)
+        {
+            if (!handler.subscribed)
+            {
+                tcp.add(handler);
+            }
+        }
+        return tcp;
+    }
 
-        return dispatchMultiFile(handlers, msg);
+    private static long[] identities(List<ClientHandler> handlers)
+    {
+        long[] identities = new long[handlers.size()];
+        for (int i = 0; i < identities.length; ++i)
+        {
+            identities[i] = handlers.get(i).getIdentity();
+        }
+        return identities;
+    }
+
+    private static String[] usernames(List<ClientHandler> handlers, String[] listed)
+    {
+        Set<String> names = new LinkedHashSet<>();
+        for (ClientHandler handler : handlers)
+        {
+            names.add(handler.username);
+        }
+        if (listed != null)
+        {
+            names.addAll(Arrays.asList(listed));
+        }
+        return names.toArray(new String[0]);
     }
 
     /**
-     * Sends file to all but some users on the server (including sender)
+     * Passes a recipient's delivery acknowledgement on to the tracker, and to
+     * the original sender if it is still online. Acknowledgements from
+     * sessions the message was not relayed to are dropped, and so are ones
+     * for a sender whose ID has since been given to somebody else.
      *
-     * @param message Message to be relayed
-     * @return boolean status indicating success of relay operation
+     * @param ack ACK_DELIVERY message received from the client
      */
-    private boolean blockcastMessage(Message message)
+    private void acknowledge(Message ack)
     {
+        long identity = Server.getDeliveryTracker().acknowledge(ack, getIdentity());
+        ClientHandler sender = identity < 0
+            ? null
+            : Server.getRegistry().get((int) identity);
+        if (sender != null && sender.getIdentity() == identity)
+        {
+            Message copy = Message.deliveryAck(ack, this.username);
+            copy.setDeliveredAt(ack.getDeliveredAt());
+            copy.setSenderId(this.id);
+            sender.dispatchText(copy);
+        }
+    }
 
-        HashSet<String> blockList = new HashSet<>(
-            Arrays.asList(message.getRecipients())
-        );
-        blockList.add(this.username);
+    /**
+     * Routes a client message to its recipients
+     *
+     * @param message Text or file message received from the client
+     * @return boolean status indicating success of relay operation
+     */
+    private boolean relay(Message message)
+    {
+        switch (message.getType())
+        {
+            case CLIENT_TEXT_UNICAST:
+            case CLIENT_FILE_UNICAST:
+                return unicastMessage(message);
+            case CLIENT_TEXT_BROADCAST:
+            case CLIENT_FILE_BROADCAST:
+                return broadcastMessage(message);
+            default:
+                return blockcastMessage(message);
+        }
+    }
 
-        // Filter out the ones we don't want to send stuff to
-        List<ClientHandler> handlers = Server.getUserList().values().
-            stream().
-            filter(
-                h -> !blockList.contains(h.username)
-            ).
-            collect(Collectors.toList());
+    /**
+     * Relays a client message unless it is a resend of one already relayed,
+     * then confirms it to the sender with an ACK_SEND echoing its client
+     * message ID, body "Y" if it was relayed now and "D" for a duplicate.
+     * Messages without a client ID are relayed as they come and not
+     * confirmed.
+     *
+     * The upload behind a duplicate file announcement is not relayed either:
+     * the sender is told that the server holds the file if it announced a
+     * digest, otherwise the contents are skipped.
+     *
+     * Counted as an in-flight relay so that a draining server can wait for
+     * it to complete. Once the server drains nothing is relayed any more:
+     * the client is told to go with an ACK_QUIT instead, and resends what
+     * was not confirmed wherever it reconnects.
+     *
+     * @param message Text or file message received from the client
+     * @throws IOException if the contents of a duplicate file could not be
+     * skipped
+     */
+    private void relayOnce(Message message) throws IOException
+    {
+        if (!Server.beginRelay())
+        {
+            quit();
+            return;
+        }
+        try
+        {
+            long clientId = message.getClientId();
+            if (clientId < 0)
+            {
+                relay(message);
+                return;
+            }
+            boolean fresh = this.relayed.accept(clientId);
+            if (fresh)
+            {
+                relay(message);
+            }
+            else if (message.isFileMessage())
+            {
+                if (message.getDigest() != null)
+                {
+                    this.dispatchText(new Message(MessageType.ACK_FILE, "Y", ""));
+                }
+                else
+                {
+                    this.sock.getInputStream().skipNBytes(message.getPayloadSize());
+                }
+            }
+            Message ack = new Message(MessageType.ACK_SEND, fresh ? "Y" : "D", "");
+            ack.setClientId(clientId);
+            this.dispatchText(ack);
+        }
+        finally
+        {
+            Server.endRelay();
+        }
+    }
 
-        // Need to unset the message.to field, so create a fresh local object
-        Message msg = new Message(
-            message.getType(), message.getBody(), message.getFrom()
-        );
-        if (message.isTextMessage())
+    /**
+     * Tells the client that the server is going away once everything already
+     * queued for it has been written, then closes the connection. Used by
+     * {@link Server#drain(long)} after in-flight relays have finished, to
+     * answer a client that quits, and a client relaying while the server
+     * drains.
+     */
+    void quit()
+    {
+        OutboundQueue queue = this.outbound;
+        if (queue == null)
         {
-            return dispatchMultiText(handlers, msg);
+            close();
+            return;
         }
+        queue.shutdownAfter(new Message(MessageType.ACK_QUIT, "", ""));
+    }
 
-        msg.setPayloadSize(message.getPayloadSize());
+    /**
+     * Waits for the goodbye started by {@link #quit()} to be written
+     *
+     * @param deadline Wall clock time in milliseconds to wait until
+     * @return true if the connection was closed in time
+     */
+    boolean awaitQuit(long deadline)
+    {
+        OutboundQueue queue = this.outbound;
+        return queue == null || queue.awaitFinished(deadline);
+    }
 
-        return dispatchMultiFile(handlers, msg);
+    /**
+     * Closes the connection immediately
+     *
+     * @return Number of queued frames that were dropped
+     */
+    int close()
+    {
+        OutboundQueue queue = this.outbound;
+        if (queue != null)
+        {
+            return queue.close();
+        }
+        try
+        {
+            this.sock.close();
+        }
+        catch (IOException ex)
+        {
+            System.err.println("[ERROR] " + ex.getMessage());
+        }
+        return 0;
     }
 
     @Override
     public void run()
     {
+        TrafficCapture capture = Server.getCapture();
+        int connection = capture == null ? -1 : capture.connect();
         try
         {
             Message message;
-            this.sockOut = new ObjectOutputStream(this.sock.getOutputStream());
+            // Only the outbound writer touches this stream, and it flushes
+            // whenever it runs dry, so buffering just batches small frames
+            this.sockOut = new ObjectOutputStream(new BufferedOutputStream(
+                this.sock.getOutputStream(), OUTPUT_BUFFER_SIZE
+            ));
             this.sockOut.flush();
             this.sockIn = new ObjectInputStream(this.sock.getInputStream());
+            this.outbound = new OutboundQueue(
+                this.sock, this.sockOut, OUTPUT_BUFFER_SIZE, this.budget
+            );
+            Server.execute(this.outbound);
 
             while (true)
             {
                 message = (Message) this.sockIn.readObject();
+                if (capture != null)
+                {
+                    capture.frame(connection, message);
+                }
+                RelayEvents.MessageReceived received = new RelayEvents.MessageReceived();
+                received.begin();
                 ClientHandler.logMessage(message);
 
                 switch (message.getType())
@@ -335,34 +1011,78 @@ public class ClientHandler implements Runnable
                         break;
                     case CLIENT_TEXT_UNICAST:
                     case CLIENT_FILE_UNICAST:
-                        unicastMessage(message);
-                        break;
                     case CLIENT_TEXT_BROADCAST:
                     case CLIENT_FILE_BROADCAST:
-                        broadcastMessage(message);
-                        break;
                     case CLIENT_TEXT_BLOCKCAST:
                     case CLIENT_FILE_BLOCKCAST:
-                        blockcastMessage(message);
+                        relayOnce(message);
+                        break;
+                    case ACK_DELIVERY:
+                        acknowledge(message);
+                        break;
+                    case CLIENT_SEARCH:
+                        if (this.id >= 0)
+                        {
+                            this.dispatchText(Server.getSearchIndex().search(
+                                message, this.username, getIdentity()
+                            ));
+                        }
+                        break;
+                    case MULTICAST_JOIN:
+                        this.subscribed = Server.getMulticast() != null;
+                        break;
+                    case MULTICAST_NAK:
+                        repair(message);
+                        break;
+                    case CLIENT_QUIT:
+                        // Leaving on purpose, nothing to hold for a resume
+                        if (this.state.compareAndSet(LIVE, GONE))
+                        {
+                            release();
+                        }
+                        quit();
                         break;
                     default:
                         break;
                 }
+
+                received.end();
+                if (received.shouldCommit())
+                {
+                    received.type = message.getType().name();
+                    received.sender = message.getFrom();
+                    received.payloadSize = message.getPayloadSize();
+                    received.commit();
+                }
             }
         }
         catch (ClassNotFoundException ex)
         {
             System.err.println("[ERROR]: " + ex.getMessage());
+            disconnected();
         }
         catch (IOException ex)
         {
             // Connection was reset, remove self from the list of users online
+            // unless the client may come back for the session
             System.err.println("[ERROR]: " + ex.getMessage());
-            // Connection was reset, remove self from the list of users online
-            ClientHandler self = Server.getUserList().remove(this.username);
-            if(self != null)
+            disconnected();
+        }
+        catch (RuntimeException ex)
+        {
+            // Whatever the client sent, its session must not outlive the
+            // connection
+            System.err.println("[ERROR]: " + ex);
+            disconnected();
+        }
+        finally
+        {
+            if (capture != null)
             {
-                System.out.println("Goodbye, " + self.username);
-            }}
+                capture.close(connection);
+            }
+            close();
+            Server.getConnections().remove(this);
         }
     }
+}
@@ -0,0 +1,76 @@
+package schat.server;
+
+import java.util.Arrays;
+
+/**
+ * Client message IDs a session has recently sent, so that a resent message
+ * is relayed only once. Clients number their messages in order, so the
+ * window is a ring of {@link #SIZE} bits behind the highest ID seen: one bit
+ * per ID, 128 bytes per session whatever the traffic. IDs that fell behind
+ * the window cannot be told apart from duplicates and are treated as such.
+ *
+ * Kept with the session across resumes, which is when resends happen.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+class DedupWindow
+{
+    // IDs tracked behind the highest one, a power of two
+    static final int SIZE = 1024;
+
+    private final long[] seen = new long[SIZE / 64];
+    private long highest = -1;
+
+    /**
+     * Records a message ID
+     *
+     * @param id Client assigned message ID, not negative
+     * @return true if the ID is new, false if it was seen before or is too
+     * old to tell
+     */
+    synchronized boolean accept(long id)
+    {
+        if (id > this.highest)
+        {
+            // Bits of the IDs skipped over belong to IDs that left the window
+            if (id - this.highest >= SIZE)
+            {
+                Arrays.fill(this.seen, 0);
+            }
+            else
+            {
+                for (long skipped = this.highest + 1; skipped < id; ++skipped)
+                {
+                    clear(skipped);
+                }
+            }
+            this.highest = id;
+            set(id);
+            return true;
+        }
+        if (this.highest - id >= SIZE || isSet(id))
+        {
+            return false;
+        }
+        set(id);
+        return true;
+    }
+
+    private boolean isSet(long id)
+    {
+        int bit = (int) (id & (SIZE - 1));
+        return (this.seen[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private void set(long id)
+    {
+        int bit = (int) (id & (SIZE - 1));
+        this.seen[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(long id)
+    {
+        int bit = (int) (id & (SIZE - 1));
+        this.seen[bit >>> 6] &= ~(1L << bit);
+    }
+}
@@ -0,0 +1,259 @@
+package schat.server;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import schat.message.Message;
+import schat.message.MessageType;
+
+/**
+ * Assigns message IDs to relayed messages and aggregates delivery latency
+ * per route type (unicast / broadcast / blockcast of text or files).
+ *
+ * Two distributions are kept per route, both measured on the server clock
+ * from the moment the relay starts. The queued latency ends when the message
+ * has been handed to every recipient's outbound queue and is recorded for
+ * every relay. The delivered latency ends when a recipient's
+ * {@link MessageType#ACK_DELIVERY} arrives back at the server and is only
+ * recorded for messages whose sender asked for acknowledgements; it includes
+ * the return trip of the acknowledgement, so it is an upper bound.
+ *
+ * Sessions are told apart by {@link ClientHandler#getIdentity()}, which is
+ * never reused: only a recipient of a message can acknowledge it, once, and
+ * acknowledgements are only passed on to the very session that sent it.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class DeliveryTracker
+{
+    /**
+     * Counters of one route type
+     */
+    private static final class Route
+    {
+        private final LongAdder relayed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder acked = new LongAdder();
+        private final LongAdder lost = new LongAdder();
+        private final LongAdder violations = new LongAdder();
+        private final LatencyHistogram queued = new LatencyHistogram();
+        private final LatencyHistogram delivered = new LatencyHistogram();
+    }
+
+    /**
+     * A relayed message still waiting for acknowledgements
+     */
+    private static final class Pending
+    {
+        private final Route route;
+        private final long sender;
+        private final long startNanos;
+        // Identities of the recipients that have not acknowledged yet
+        private final Set<Long> awaiting = ConcurrentHashMap.newKeySet();
+
+        private Pending(Route route, long sender, long startNanos,
+            List<ClientHandler> recipients)
+        {
+            this.route = route;
+            this.sender = sender;
+            this.startNanos = startNanos;
+            for (ClientHandler recipient : recipients)
+            {
+                this.awaiting.add(recipient.getIdentity());
+            }
+        }
+    }
+
+    // How often unacknowledged messages are looked for, at most
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<MessageType, Route> routes = new EnumMap<>(MessageType.class);
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final long sloMicros;
+    private final long ackTimeoutNanos;
+
+    /**
+     * Creates a tracker
+     *
+     * @param latencySlo Delivery latency objective in milliseconds, 0 for none
+     * @param ackTimeout Milliseconds after which missing acknowledgements are
+     * counted as lost
+     */
+    public DeliveryTracker(long latencySlo, long ackTimeout)
+    {
+        this.sloMicros = TimeUnit.MILLISECONDS.toMicros(latencySlo);
+        this.ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ackTimeout);
+        for (MessageType type : MessageType.values())
+        {
+            this.routes.put(type, new Route());
+        }
+    }
+
+    /**
+     * Stamps a message that is about to be relayed with its ID and relay time,
+     * and starts waiting for acknowledgements if the sender asked for them
+     *
+     * @param message Relay copy of the message
+     * @param sender Identity of the sending session
+     * @param recipients Sessions the message is relayed to
+     * @return Start of the relay, to be passed to {@link #dispatched}
+     */
+    long begin(Message message, long sender, List<ClientHandler> recipients)
+    {
+        long start = System.nanoTime();
+        Route route = this.routes.get(message.getType());
+        message.setId(this.ids.incrementAndGet());
+        message.setRelayedAt(System.currentTimeMillis());
+        route.relayed.increment();
+        if (message.isAckRequested() && !recipients.isEmpty())
+        {
+            this.pending.put(
+                message.getId(), new Pending(route, sender, start, recipients)
+            );
+        }
+        long swept = this.lastSweep.get();
+        if (start - swept > SWEEP_INTERVAL_NANOS
+            && this.lastSweep.compareAndSet(swept, start))
+        {
+            expire(start);
+        }
+        return start;
+    }
+
+    /**
+     * Records that a relay has handed the message to all recipients
+     *
+     * @param message Message returned by the relay
+     * @param start Value returned by {@link #begin}
+     * @param sent Whether every recipient accepted the message
+     */
+    void dispatched(Message message, long start, boolean sent)
+    {
+        Route route = this.routes.get(message.getType());
+        route.queued.record((System.nanoTime() - start) / 1000);
+        if (!sent)
+        {
+            route.failed.increment();
+        }
+    }
+
+    /**
+     * Records a recipient's delivery acknowledgement
+     *
+     * @param ack ACK_DELIVERY message received from the recipient
+     * @param recipient Identity of the acknowledging session
+     * @return Identity of the original sender, -1 if the message is not
+     * awaiting an acknowledgement from the session (unknown, already timed
+     * out, not a recipient or acknowledged before)
+     */
+    long acknowledge(Message ack, long recipient)
+    {
+        Pending entry = this.pending.get(ack.getId());
+        if (entry == null || !entry.awaiting.remove(recipient))
+        {
+            return -1;
+        }
+        long micros = (System.nanoTime() - entry.startNanos) / 1000;
+        entry.route.delivered.record(micros);
+        entry.route.acked.increment();
+        if (this.sloMicros > 0 && micros > this.sloMicros)
+        {
+            entry.route.violations.increment();
+        }
+        if (entry.awaiting.isEmpty())
+        {
+            this.pending.remove(ack.getId());
+        }
+        return entry.sender;
+    }
+
+    /**
+     * Gives up on messages that have waited longer than the acknowledgement
+     * timeout, counting every missing acknowledgement as lost
+     *
+     * @param now Current {@link System#nanoTime()}
+     */
+    private void expire(long now)
+    {
+        Iterator<Pending> it = this.pending.values().iterator();
+        while (it.hasNext())
+        {
+            Pending entry = it.next();
+            if (now - entry.startNanos > this.ackTimeoutNanos)
+            {
+                it.remove();
+                entry.route.lost.add(entry.awaiting.size());
+            }
+        }
+    }
+
+    /**
+     * Accessor method for the queued latency distribution of a route
+     *
+     * @param route Message type of the relayed messages
+     * @return Distribution of relay start to hand-off to all recipients
+     */
+    public LatencyHistogram getQueuedLatency(MessageType route)
+    {
+        return this.routes.get(route).queued;
+    }
+
+    /**
+     * Accessor method for the delivered latency distribution of a route
+     *
+     * @param route Message type of the relayed messages
+     * @return Distribution of relay start to acknowledgement received
+     */
+    public LatencyHistogram getDeliveredLatency(MessageType route)
+    {
+        return this.routes.get(route).delivered;
+    }
+
+    /**
+     * Accessor method for the delivery objective violations of a route
+     *
+     * @param route Message type of the relayed messages
+     * @return Number of acknowledged deliveries slower than the objective
+     */
+    public long getViolations(MessageType route)
+    {
+        return this.routes.get(route).violations.sum();
+    }
+
+    /**
+     * Summarises every route that has seen traffic, one line each for the
+     * counters and the two distributions
+     *
+     * @return Multi line report
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<MessageType, Route> entry : this.routes.entrySet())
+        {
+            Route route = entry.getValue();
+            if (route.relayed.sum() == 0)
+            {
+                continue;
+            }
+            report.append(String.format(
+                "%s: relayed=%d failed=%d acked=%d lost=%d slo-violations=%d%n"
+                + "  queued    %s%n"
+                + "  delivered %s%n",
+                entry.getKey(), route.relayed.sum(), route.failed.sum(),
+                route.acked.sum(), route.lost.sum(), route.violations.sum(),
+                route.queued, route.delivered
+            ));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package schat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import schat.message.Message;
+
+/**
+ * Delivers one text message to many recipients. Small recipient sets are
+ * written inline on the sender's thread as before; sets of at least the
+ * threshold size are split into shards that are written in parallel on a
+ * dedicated pool, so broadcast latency scales with the number of cores
+ * instead of the number of recipients.
+ *
+ * Queuing a message may block on a recipient that reads slowly, for a few
+ * seconds until it is disconnected as a slow consumer, so shards run on a
+ * plain fixed pool rather than a fork/join pool, which expects its tasks not
+ * to block. Shards never wait for each other: the sender writes the first
+ * one itself and then waits for the rest.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class FanoutEngine
+{
+    private final ThreadPoolExecutor pool;
+    private final int threshold;
+
+    /**
+     * Creates a fan-out engine with its own worker pool
+     *
+     * @param threshold Smallest recipient count delivered in parallel, also
+     * the size of the shards
+     * @param parallelism Number of fan-out worker threads
+     */
+    public FanoutEngine(int threshold, int parallelism)
+    {
+        this.threshold = Math.max(threshold, 1);
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(
+            parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            r ->
+            {
+                Thread t = new Thread(r, "schat-fanout-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        );
+    }
+
+    /**
+     * Checks whether a delivery goes through the parallel path
+     *
+     * @param recipients Number of recipients of the message
+     * @return true if the recipients are split into parallel shards
+     */
+    public boolean isParallel(int recipients)
+    {
+        return recipients >= this.threshold;
+    }
+
+    /**
+     * Writes a message to every handler in the list
+     *
+     * @param handlers Recipients of the message
+     * @param message Message to be written, must not be modified meanwhile
+     * @return true if the message was written to all recipients
+     */
+    public boolean dispatch(List<ClientHandler> handlers, Message message)
+    {
+        int size = handlers.size();
+        if (!isParallel(size))
+        {
+            return deliver(handlers, 0, size, message);
+        }
+        List<Future<Boolean>> shards = new ArrayList<>(size / this.threshold);
+        boolean sent = true;
+        for (int from = this.threshold; from < size; from += this.threshold)
+        {
+            int start = from, end = Math.min(from + this.threshold, size);
+            try
+            {
+                shards.add(this.pool.submit(() -> deliver(handlers, start, end, message)));
+            }
+            catch (RejectedExecutionException ex)
+            {
+                // Shut down while draining, write the shard here instead
+                sent = deliver(handlers, start, end, message) & sent;
+            }
+        }
+        sent = deliver(handlers, 0, this.threshold, message) & sent;
+        for (Future<Boolean> shard : shards)
+        {
+            sent = join(shard) & sent;
+        }
+        return sent;
+    }
+
+    private static boolean join(Future<Boolean> shard)
+    {
+        try
+        {
+            return shard.get();
+        }
+        catch (InterruptedException ex)
+        {
+            // The shard still runs, only its outcome is unknown
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException ex)
+        {
+            System.err.println("[ERROR] Fan-out: " + ex.getCause());
+            return false;
+        }
+    }
+
+    private static boolean deliver(
+        List<ClientHandler> handlers,
+        int from,
+        int to,
+        Message message
+    )
+    {
+        boolean sent = true;
+        for (int i = from; i < to; ++i)
+        {
+            sent = sent & handlers.get(i).dispatchText(message);
+        }
+        return sent;
+    }
+
+    /**
+     * Stops the fan-out workers
+     */
+    public void shutdown()
+    {
+        this.pool.shutdown();
+    }
+}
@@ -0,0 +1,104 @@
+package schat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable slice of the search index covering a contiguous range of
+ * history sequence numbers. New messages are collected until a segment's
+ * worth is reached and then sealed into one of these; sealed segments are
+ * merged into larger ones in the background so a query visits a handful of
+ * segments rather than one per few thousand messages.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+final class IndexSegment
+{
+    private final Map<String, PostingList> postings;
+    private final long first;
+    private final long end;
+    private final int level;
+
+    /**
+     * @param postings Term to posting list, not copied
+     * @param first Lowest sequence number covered
+     * @param end One past the highest sequence number covered
+     * @param level Number of merge rounds that went into the segment
+     */
+    IndexSegment(Map<String, PostingList> postings, long first, long end, int level)
+    {
+        this.postings = Collections.unmodifiableMap(postings);
+        this.first = first;
+        this.end = end;
+        this.level = level;
+    }
+
+    /**
+     * Merges consecutive segments
+     *
+     * @param segments Segments in sequence order, each starting where the
+     * one before ends
+     * @return Segment covering the whole range, one level up
+     */
+    static IndexSegment merge(List<IndexSegment> segments)
+    {
+        Map<String, List<PostingList>> parts = new HashMap<>();
+        int level = 0;
+        for (IndexSegment segment : segments)
+        {
+            for (Map.Entry<String, PostingList> entry : segment.postings.entrySet())
+            {
+                parts.computeIfAbsent(entry.getKey(), k -> new ArrayList<>())
+                    .add(entry.getValue());
+            }
+            level = Math.max(level, segment.level);
+        }
+        Map<String, PostingList> postings = new HashMap<>(2 * parts.size());
+        for (Map.Entry<String, List<PostingList>> entry : parts.entrySet())
+        {
+            postings.put(entry.getKey(), PostingList.concat(entry.getValue()));
+        }
+        return new IndexSegment(
+            postings,
+            segments.get(0).first,
+            segments.get(segments.size() - 1).end,
+            level + 1
+        );
+    }
+
+    /**
+     * @param term Normalized term
+     * @return Messages of the segment containing the term, null if none do
+     */
+    PostingList get(String term)
+    {
+        return this.postings.get(term);
+    }
+
+    /**
+     * @return Lowest sequence number covered
+     */
+    long first()
+    {
+        return this.first;
+    }
+
+    /**
+     * @return One past the highest sequence number covered
+     */
+    long end()
+    {
+        return this.end;
+    }
+
+    /**
+     * @return Number of merge rounds that went into the segment
+     */
+    int level()
+    {
+        return this.level;
+    }
+}
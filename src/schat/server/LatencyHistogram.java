@@ -0,0 +1,145 @@
+package schat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency distribution with log-linear buckets: every power of two
+ * is split into eight buckets, so any recorded value is reported with at most
+ * 12.5% error while the whole range from a microsecond to days fits in a few
+ * hundred counters. Recording is a couple of atomic increments and safe from
+ * any number of threads.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class LatencyHistogram
+{
+    // Buckets per power of two, as a shift
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    private static long lowestOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return mantissa << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Records one sample
+     *
+     * @param micros Latency in microseconds, negative values count as 0
+     */
+    public void record(long micros)
+    {
+        micros = Math.max(micros, 0);
+        this.counts.incrementAndGet(bucketOf(micros));
+        this.count.increment();
+        this.sum.add(micros);
+        long seen;
+        while (micros > (seen = this.max.get())
+            && !this.max.compareAndSet(seen, micros))
+        {
+            // Lost a race with a larger sample, retry
+        }
+    }
+
+    /**
+     * Accessor method for the number of samples
+     *
+     * @return Samples recorded so far
+     */
+    public long getCount()
+    {
+        return this.count.sum();
+    }
+
+    /**
+     * Accessor method for the largest sample
+     *
+     * @return Largest latency recorded in microseconds, 0 if none
+     */
+    public long getMax()
+    {
+        return this.max.get();
+    }
+
+    /**
+     * Accessor method for the mean of all samples
+     *
+     * @return Mean latency in microseconds, 0 if none
+     */
+    public long getMean()
+    {
+        long n = this.count.sum();
+        return n == 0 ? 0 : this.sum.sum() / n;
+    }
+
+    /**
+     * Looks up a percentile. The result is the upper bound of the bucket the
+     * percentile falls in, so it never understates the latency.
+     *
+     * @param percentile Percentile between 0 and 100
+     * @return Latency in microseconds at or below which the given share of
+     * samples lie, 0 if there are none
+     */
+    public long getPercentile(double percentile)
+    {
+        long n = this.count.sum();
+        if (n == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(n * percentile / 100.0), 1);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; ++bucket)
+        {
+            seen += this.counts.get(bucket);
+            if (seen >= rank)
+            {
+                return bucket + 1 == BUCKETS
+                    ? getMax()
+                    : Math.min(lowestOf(bucket + 1) - 1, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Summarises the distribution in milliseconds
+     *
+     * @return Sample count, mean, median, tail percentiles and maximum
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(
+            "n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+            getCount(), getMean() / 1000.0, getPercentile(50) / 1000.0,
+            getPercentile(90) / 1000.0, getPercentile(99) / 1000.0,
+            getPercentile(99.9) / 1000.0, getMax() / 1000.0
+        );
+    }
+}
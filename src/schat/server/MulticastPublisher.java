@@ -0,0 +1,209 @@
+package schat.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import schat.message.Message;
+import schat.message.MessageType;
+import schat.message.MulticastDatagram;
+
+/**
+ * Publishes text broadcasts on an IP multicast group, so that clients on
+ * the same network receive one datagram each instead of the server writing
+ * a copy per connection.
+ *
+ * Broadcasts are numbered without gaps. Clients that subscribed after a
+ * {@link MessageType#MULTICAST_OFFER} detect lost datagrams from the
+ * numbers and ask for them with a {@link MessageType#MULTICAST_NAK} over
+ * their TCP connection; the most recent broadcasts are kept for such
+ * repairs. Broadcasts too large for one datagram are numbered but sent over
+ * TCP to everybody. A heartbeat with the next number goes out periodically,
+ * so that a loss at the end of a burst is noticed too.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+class MulticastPublisher
+{
+    // Broadcasts kept for repairs, about a second of heavy traffic
+    static final int REPAIR_CAPACITY = 4096;
+    private static final long HEARTBEAT_MILLIS = 250;
+
+    private final DatagramSocket socket;
+    private final InetSocketAddress group;
+    private final Message[] sent = new Message[REPAIR_CAPACITY];
+    private final ScheduledExecutorService heartbeat;
+    // Number of the next broadcast, guarded by this
+    private long next = 0;
+
+    private MulticastPublisher(InetSocketAddress group, NetworkInterface nif)
+        throws IOException
+    {
+        this.group = group;
+        this.socket = new DatagramSocket();
+        if (nif != null)
+        {
+            this.socket.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+        }
+        // Clients on the server's own host are subscribers too
+        this.socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread t = new Thread(r, "schat-multicast-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        this.heartbeat.scheduleAtFixedRate(
+            this::beat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Starts publishing on the group requested by the configuration, if any
+     *
+     * @param group Group as address:port, null for none
+     * @param nif Name of the interface to publish on, null for the system's
+     * choice
+     * @return The publisher, null if none was requested or the group is
+     * unusable
+     */
+    static MulticastPublisher start(String group, String nif)
+    {
+        if (group == null)
+        {
+            return null;
+        }
+        try
+        {
+            int colon = group.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(
+                InetAddress.getByName(group.substring(0, colon)),
+                Integer.parseInt(group.substring(colon + 1))
+            );
+            if (!address.getAddress().isMulticastAddress())
+            {
+                throw new IOException("Not a multicast address: " + group);
+            }
+            NetworkInterface iface = nif == null ? null : NetworkInterface.getByName(nif);
+            if (nif != null && iface == null)
+            {
+                throw new IOException("No such interface: " + nif);
+            }
+            return new MulticastPublisher(address, iface);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            System.err.println("[ERROR] Could not start multicast: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return Group address and port, as offered to clients
+     */
+    String getGroup()
+    {
+        return this.group.getAddress().getHostAddress() + ":" + this.group.getPort();
+    }
+
+    /**
+     * Builds the offer sent to a client once it is introduced. Subscribers
+     * take over from the number in the offer; what is published before the
+     * server sees their MULTICAST_JOIN also reaches them over TCP.
+     *
+     * @return MULTICAST_OFFER carrying the group and the next number
+     */
+    synchronized Message offer()
+    {
+        Message offer = new Message(MessageType.MULTICAST_OFFER, getGroup(), "");
+        offer.setSequence(this.next);
+        return offer;
+    }
+
+    /**
+     * Numbers, freezes and publishes a broadcast. Numbering and sending
+     * happen under one lock, so datagrams leave in number order.
+     *
+     * @param message Relay copy of a text broadcast, not yet frozen
+     * @return true if it went out as a datagram, false if subscribers need
+     * it over TCP as well
+     */
+    synchronized boolean publish(Message message)
+    {
+        long sequence = this.next++;
+        message.setSequence(sequence);
+        message.freeze();
+        this.sent[(int) (sequence % REPAIR_CAPACITY)] = message;
+        byte[] datagram = MulticastDatagram.data(message);
+        if (datagram == null)
+        {
+            return false;
+        }
+        send(datagram);
+        // Lost on the way if sending failed, subscribers will ask for it
+        return true;
+    }
+
+    /**
+     * Looks up a broadcast for a repair
+     *
+     * @param sequence Number of the broadcast
+     * @return The broadcast, null if it is not kept anymore or was never
+     * published
+     */
+    synchronized Message repair(long sequence)
+    {
+        if (sequence < 0 || sequence >= this.next
+            || sequence < this.next - REPAIR_CAPACITY)
+        {
+            return null;
+        }
+        return this.sent[(int) (sequence % REPAIR_CAPACITY)];
+    }
+
+    /**
+     * @return Number the next broadcast is going to get, i.e. one past the
+     * last one published
+     */
+    synchronized long next()
+    {
+        return this.next;
+    }
+
+    private void beat()
+    {
+        long upcoming;
+        synchronized (this)
+        {
+            upcoming = this.next;
+        }
+        send(MulticastDatagram.heartbeat(upcoming));
+    }
+
+    private void send(byte[] datagram)
+    {
+        try
+        {
+            this.socket.send(new DatagramPacket(datagram, datagram.length, this.group));
+        }
+        catch (IOException ex)
+        {
+            System.err.println("[ERROR] Multicast: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Stops the heartbeat and closes the socket
+     */
+    void shutdown()
+    {
+        this.heartbeat.shutdownNow();
+        this.socket.close();
+    }
+}
@@ -0,0 +1,718 @@
+package schat.server;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import schat.io.BufferPool;
+import schat.io.ChunkSizer;
+import schat.io.Connection;
+import schat.io.StreamBudget;
+import schat.message.*;
+
+/**
+ * Per connection outbound scheduler. Frames are queued in one of three
+ * priority lanes and written to the socket by a dedicated writer, so that no
+ * relaying thread ever blocks on another client's socket and a handshake
+ * never waits behind megabytes of file data.
+ *
+ * Scheduling: control frames always go first. Interactive and bulk frames
+ * share the link by weighted round robin, up to INTERACTIVE_WEIGHT
+ * interactive frames per bulk frame, so text stays responsive while file
+ * chunks still get every otherwise idle slot. Every lane is bounded, and a
+ * producer waits when its lane is full, which throttles uploads to the pace
+ * of the slowest recipient. Producers are often shared threads, relaying to
+ * many connections, so no wait is open ended: a client that takes nothing
+ * for too long is a slow consumer, and is disconnected with its frames
+ * dropped.
+ *
+ * Memory: a connection has a budget, shared between the interactive lane
+ * and the messages its object stream remembers. The stream is reset when
+ * its share is used up and once the connection has been quiet for a moment,
+ * see {@link StreamBudget}, so an idle connection holds its buffers only.
+ * The budget is not enforced by making relays wait, which would hand one
+ * client's backlog to everybody sending to it: a client whose interactive
+ * frames would take more than their share is disconnected right away, like
+ * a slow consumer.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class OutboundQueue implements Runnable
+{
+    /**
+     * Priority classes of outbound frames, highest first
+     */
+    public enum Lane
+    {
+        CONTROL, INTERACTIVE, BULK;
+
+        /**
+         * Picks the lane a message travels in
+         *
+         * @param message Message to be classified
+         * @return Lane for the message
+         */
+        public static Lane of(Message message)
+        {
+            switch (message.getType())
+            {
+                case ACK_INTRO:
+                case ACK_QUIT:
+                case ACK_FILE:
+                case ACK_SEND:
+                case CLIENT_QUIT:
+                case CLIENT_TIMEOUT:
+                    return CONTROL;
+                case CLIENT_FILE_BROADCAST:
+                case CLIENT_FILE_BLOCKCAST:
+                case CLIENT_FILE_UNICAST:
+                case FILE_CHUNK:
+                    return BULK;
+                default:
+                    return INTERACTIVE;
+            }
+        }
+    }
+
+    /**
+     * A slice of file data shared by every recipient of a relay. The backing
+     * buffer goes back to the pool once the last recipient has written it.
+     */
+    static final class Chunk
+    {
+        private final byte[] array;
+        private final int offset;
+        private final int length;
+        private final BufferPool.Lease lease;
+        private final AtomicInteger refs;
+
+        /**
+         * @param array Bytes of the chunk
+         * @param offset Start of the chunk in the array
+         * @param length Number of bytes in the chunk
+         * @param lease Lease to close after the last write, null if the array
+         * is not pooled
+         * @param refs Number of recipients the chunk will be queued for
+         */
+        Chunk(byte[] array, int offset, int length, BufferPool.Lease lease, int refs)
+        {
+            this.array = array;
+            this.offset = offset;
+            this.length = length;
+            this.lease = lease;
+            this.refs = new AtomicInteger(refs);
+        }
+
+        /**
+         * Drops one reference, returning the buffer after the last one
+         */
+        void release()
+        {
+            if (this.refs.decrementAndGet() == 0 && this.lease != null)
+            {
+                this.lease.close();
+            }
+        }
+    }
+
+    private static final class Frame
+    {
+        private final Message header;
+        private final Chunk chunk;
+        // Bytes the frame holds while queued
+        private final long size;
+
+        private Frame(Message header, Chunk chunk)
+        {
+            this.header = header;
+            this.chunk = chunk;
+            this.size = (header == null ? 0 : header.getWireSize())
+                + (chunk == null ? 0 : chunk.length);
+        }
+    }
+
+    // Interactive frames sent per bulk frame while both lanes are busy
+    private static final int INTERACTIVE_WEIGHT = 8;
+    private static final int CONTROL_CAPACITY = 1024;
+    private static final int INTERACTIVE_CAPACITY = 4096;
+    // Longest a control or interactive frame waits for room in its lane
+    private static final long SLOW_CONSUMER_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // Longest a file chunk waits while the writer takes nothing at all. A
+    // chunk may legitimately wait for a whole chunk to be written on a slow
+    // link, so the wait is only bounded by the writer's progress.
+    private static final long STALLED_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // File data queued per client, in bytes since chunks vary in size. Two
+    // of the largest chunks, so the next one can be read while one is
+    // written. A chunk is always admitted to an empty lane.
+    private static final long BULK_CAPACITY_BYTES = 2L * ChunkSizer.MAX_CHUNK;
+    // Part of the budget for what the stream remembers, the rest bounds the
+    // interactive lane
+    private static final int STREAM_SHARE = 8;
+    // Quiet time after which the stream forgets what it wrote. Not at once:
+    // the reader parses the class descriptor again after every reset, which
+    // would add up over the many short pauses of a busy connection.
+    private static final long QUIET_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Returned by next() once the connection has been quiet, nothing to write
+    private static final Frame QUIET = new Frame(null, null);
+
+    private final Connection sock;
+    private final ObjectOutputStream out;
+    private final StreamBudget stream;
+    private final int bufferBytes;
+    private final long interactiveBudget;
+    private final ReentrantLock socketIOLock = new ReentrantLock();
+    private final Condition notEmpty = socketIOLock.newCondition();
+    private final Condition notFull = socketIOLock.newCondition();
+    private final Condition finished = socketIOLock.newCondition();
+    private final ArrayDeque<Frame> control = new ArrayDeque<>();
+    private final ArrayDeque<Frame> interactive = new ArrayDeque<>();
+    private final ArrayDeque<Frame> bulk = new ArrayDeque<>();
+    private int credit = INTERACTIVE_WEIGHT;
+    // Chunk bytes in the bulk lane
+    private long bulkBytes = 0;
+    // Bytes of the interactive lane, and of all lanes
+    private long interactiveBytes = 0;
+    private long queuedBytes = 0;
+    // When the writer last took a frame, see STALLED_NANOS
+    private long progressAt = System.nanoTime();
+    // No more frames accepted, the writer stops as soon as possible
+    private boolean closed = false;
+    // No more frames accepted, the writer stops once everything is written
+    private boolean draining = false;
+    // Written last when draining
+    private Message finalMessage = null;
+    private boolean done = false;
+
+    /**
+     * Creates the queue of a connection. {@link #run()} must be started on a
+     * thread of its own.
+     *
+     * @param sock Connection to the client, closed when the writer stops
+     * @param out Object stream over the connection, written to only by the
+     * writer
+     * @param bufferBytes Size of the buffers under the stream, for
+     * accounting
+     * @param budget Bytes of messages the connection may hold, queued for
+     * the interactive lane or remembered by the stream; a client that needs
+     * more is disconnected
+     */
+    public OutboundQueue(Connection sock, ObjectOutputStream out, int bufferBytes, long budget)
+    {
+        this.sock = sock;
+        this.out = out;
+        this.bufferBytes = bufferBytes;
+        long streamBudget = budget / STREAM_SHARE;
+        this.stream = new StreamBudget(out, StreamBudget.DEFAULT_OBJECTS, streamBudget);
+        this.interactiveBudget = budget - streamBudget;
+    }
+
+    /**
+     * Queues a message in the lane matching its type
+     *
+     * @param message Message to be sent, must not be modified afterwards
+     * @return false if the connection is closed and the message was dropped,
+     * or the client is a slow consumer and was disconnected
+     */
+    public boolean enqueue(Message message)
+    {
+        return enqueue(Lane.of(message), new Frame(message, null));
+    }
+
+    /**
+     * Queues a file chunk in the bulk lane. The chunk is released once it is
+     * written, or immediately if the connection is closed.
+     *
+     * @param header FILE_CHUNK message describing the chunk
+     * @param chunk Bytes written right behind the header
+     * @return false if the connection is closed and the chunk was dropped,
+     * or the client is a slow consumer and was disconnected
+     */
+    boolean enqueue(Message header, Chunk chunk)
+    {
+        return enqueue(Lane.BULK, new Frame(header, chunk));
+    }
+
+    private boolean enqueue(Lane lane, Frame frame)
+    {
+        ArrayDeque<Frame> queue = laneOf(lane);
+        String stalled = null;
+        boolean interrupted = false;
+        this.socketIOLock.lock();
+        try
+        {
+            long deadline = System.nanoTime() + SLOW_CONSUMER_NANOS;
+            if (lane == Lane.INTERACTIVE && !this.closed && !this.draining
+                && isOverBudget(queue, frame))
+            {
+                stalled = "is over its memory budget";
+            }
+            while (stalled == null && !this.closed && !this.draining
+                && isFull(lane, queue, frame))
+            {
+                long remaining = lane == Lane.BULK
+                    ? this.progressAt + STALLED_NANOS - System.nanoTime()
+                    : deadline - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    stalled = "stayed full";
+                    break;
+                }
+                interrupted |= awaitRoom(remaining);
+            }
+            if (stalled != null || this.closed || this.draining)
+            {
+                if (frame.chunk != null)
+                {
+                    frame.chunk.release();
+                }
+                return false;
+            }
+            queue.addLast(frame);
+            this.bulkBytes += chunkBytes(frame);
+            this.queuedBytes += frame.size;
+            if (lane == Lane.INTERACTIVE)
+            {
+                this.interactiveBytes += frame.size;
+            }
+            this.notEmpty.signal();
+            return true;
+        }
+        finally
+        {
+            this.socketIOLock.unlock();
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+            if (stalled != null)
+            {
+                evict(lane, stalled);
+            }
+        }
+    }
+
+    /**
+     * Waits for the writer to make room, but not longer than given. Must be
+     * called with the lock held.
+     *
+     * @return true if the thread was interrupted, which does not end the
+     * wait early: the deadline bounds it anyway
+     */
+    private boolean awaitRoom(long nanos)
+    {
+        try
+        {
+            this.notFull.awaitNanos(nanos);
+            return false;
+        }
+        catch (InterruptedException ex)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Disconnects a client that does not keep up, so that nobody waits on it
+     * any longer. Its session is then released or detached like that of any
+     * dropped connection.
+     *
+     * @param lane Lane of the frame that was refused
+     * @param reason Why the client was found not to keep up
+     */
+    private void evict(Lane lane, String reason)
+    {
+        int dropped = close();
+        System.err.println("[WARN] Disconnected a slow consumer, its " + lane
+            + " lane " + reason + "; dropped " + (dropped + 1) + " frame(s)");
+    }
+
+    private ArrayDeque<Frame> laneOf(Lane lane)
+    {
+        switch (lane)
+        {
+            case CONTROL:
+                return this.control;
+            case INTERACTIVE:
+                return this.interactive;
+            default:
+                return this.bulk;
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     *
+     * @return true if the frame has to wait for room in its lane
+     */
+    private boolean isFull(Lane lane, ArrayDeque<Frame> queue, Frame frame)
+    {
+        switch (lane)
+        {
+            case CONTROL:
+                return queue.size() >= CONTROL_CAPACITY;
+            case INTERACTIVE:
+                return queue.size() >= INTERACTIVE_CAPACITY;
+            default:
+                return !queue.isEmpty()
+                    && this.bulkBytes + chunkBytes(frame) > BULK_CAPACITY_BYTES;
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     *
+     * @return true if queueing the frame would take the interactive lane
+     * past its share of the budget. A frame is always admitted to an empty
+     * lane.
+     */
+    private boolean isOverBudget(ArrayDeque<Frame> queue, Frame frame)
+    {
+        return !queue.isEmpty()
+            && this.interactiveBytes + frame.size > this.interactiveBudget;
+    }
+
+    private static int chunkBytes(Frame frame)
+    {
+        return frame.chunk == null ? 0 : frame.chunk.length;
+    }
+
+    /**
+     * Picks the next frame to write, waiting for one if all lanes are empty.
+     * Must be called with the lock held.
+     *
+     * @return Next frame, null once the writer should stop
+     */
+    private Frame next()
+    {
+        while (!this.closed)
+        {
+            if (!this.control.isEmpty())
+            {
+                this.notFull.signalAll();
+                return dequeued(this.control.pollFirst());
+            }
+            if (!this.interactive.isEmpty()
+                && (this.bulk.isEmpty() || this.credit > 0))
+            {
+                --this.credit;
+                this.notFull.signalAll();
+                Frame frame = this.interactive.pollFirst();
+                this.interactiveBytes -= frame.size;
+                return dequeued(frame);
+            }
+            if (!this.bulk.isEmpty())
+            {
+                this.credit = INTERACTIVE_WEIGHT;
+                this.notFull.signalAll();
+                Frame frame = this.bulk.pollFirst();
+                this.bulkBytes -= chunkBytes(frame);
+                return dequeued(frame);
+            }
+            if (this.draining)
+            {
+                Frame last = this.finalMessage == null
+                    ? null
+                    : new Frame(this.finalMessage, null);
+                this.finalMessage = null;
+                return last;
+            }
+            if (this.stream.getPinnedBytes() > 0)
+            {
+                if (awaitQuiet())
+                {
+                    return QUIET;
+                }
+                continue;
+            }
+            this.notEmpty.awaitUninterruptibly();
+        }
+        return null;
+    }
+
+    /**
+     * Waits for a frame, but not longer than the quiet time. Must be called
+     * with the lock held.
+     *
+     * @return true if the quiet time passed without a frame
+     */
+    private boolean awaitQuiet()
+    {
+        try
+        {
+            return this.notEmpty.awaitNanos(QUIET_NANOS) <= 0 && isIdle();
+        }
+        catch (InterruptedException ex)
+        {
+            // Nothing interrupts the writer, and like the other waits this
+            // one does not give up for it
+            return false;
+        }
+    }
+
+    private Frame dequeued(Frame frame)
+    {
+        this.progressAt = System.nanoTime();
+        this.queuedBytes -= frame.size;
+        return frame;
+    }
+
+    /**
+     * Estimates the heap the connection holds on the outbound side: the
+     * buffers under the stream, queued frames and the messages the stream
+     * remembers
+     *
+     * @return Bytes held
+     */
+    long getRetainedBytes()
+    {
+        long queued;
+        this.socketIOLock.lock();
+        try
+        {
+            queued = this.queuedBytes;
+        }
+        finally
+        {
+            this.socketIOLock.unlock();
+        }
+        return this.bufferBytes + queued + this.stream.getPinnedBytes();
+    }
+
+    private boolean isIdle()
+    {
+        return this.control.isEmpty()
+            && this.interactive.isEmpty()
+            && this.bulk.isEmpty();
+    }
+
+    /**
+     * Writer loop. Flushes whenever it runs out of frames, so bursts go out
+     * in as few socket writes as possible.
+     */
+    @Override
+    public void run()
+    {
+        Frame frame;
+        boolean idle;
+        try
+        {
+            while (true)
+            {
+                this.socketIOLock.lock();
+                try
+                {
+                    frame = next();
+                    idle = isIdle();
+                }
+                finally
+                {
+                    this.socketIOLock.unlock();
+                }
+                if (frame == null)
+                {
+                    break;
+                }
+                if (frame == QUIET)
+                {
+                    this.stream.idle();
+                    this.out.flush();
+                    continue;
+                }
+                write(frame);
+                if (idle)
+                {
+                    this.out.flush();
+                }
+            }
+            this.out.flush();
+        }
+        catch (IOException ex)
+        {
+            System.err.println("[ERROR] " + ex.getMessage());
+        }
+        finally
+        {
+            finish();
+        }
+    }
+
+    private void write(Frame frame) throws IOException
+    {
+        RelayEvents.FrameWrite event = new RelayEvents.FrameWrite();
+        event.begin();
+        try
+        {
+            this.out.writeObject(frame.header);
+            if (frame.chunk != null)
+            {
+                this.out.write(frame.chunk.array, frame.chunk.offset, frame.chunk.length);
+            }
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.type = frame.header.getType().name();
+                event.lane = Lane.of(frame.header).name();
+                event.chunkBytes = frame.chunk == null ? 0 : frame.chunk.length;
+                event.commit();
+            }
+        }
+        finally
+        {
+            if (frame.chunk != null)
+            {
+                frame.chunk.release();
+            }
+        }
+        this.stream.wrote(frame.header.getWireSize());
+    }
+
+    /**
+     * Stops the writer, releases whatever is still queued and closes the
+     * socket
+     */
+    private void finish()
+    {
+        this.socketIOLock.lock();
+        try
+        {
+            this.closed = true;
+            discard();
+            this.done = true;
+            this.notFull.signalAll();
+            this.finished.signalAll();
+        }
+        finally
+        {
+            this.socketIOLock.unlock();
+        }
+        try
+        {
+            this.sock.close();
+        }
+        catch (IOException ex)
+        {
+            System.err.println("[ERROR] " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Drops every queued frame. Must be called with the lock held.
+     *
+     * @return Number of frames dropped
+     */
+    private int discard()
+    {
+        this.bulkBytes = 0;
+        this.interactiveBytes = 0;
+        this.queuedBytes = 0;
+        return discard(this.control)
+            + discard(this.interactive)
+            + discard(this.bulk);
+    }
+
+    private static int discard(ArrayDeque<Frame> queue)
+    {
+        int dropped = queue.size();
+        for (Frame frame : queue)
+        {
+            if (frame.chunk != null)
+            {
+                frame.chunk.release();
+            }
+        }
+        queue.clear();
+        return dropped;
+    }
+
+    /**
+     * Accepts no further frames, writes everything already queued followed
+     * by a last message, then closes the connection
+     *
+     * @param last Final message, e.g. ACK_QUIT; null for none
+     */
+    public void shutdownAfter(Message last)
+    {
+        this.socketIOLock.lock();
+        try
+        {
+            if (this.closed || this.draining)
+            {
+                return;
+            }
+            // Written after everything else, not in the control lane
+            this.finalMessage = last;
+            this.draining = true;
+            this.notEmpty.signal();
+            this.notFull.signalAll();
+        }
+        finally
+        {
+            this.socketIOLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the writer to finish after {@link #shutdownAfter(Message)}
+     *
+     * @param deadline Wall clock time in milliseconds to wait until
+     * @return true if the writer finished in time
+     */
+    public boolean awaitFinished(long deadline)
+    {
+        this.socketIOLock.lock();
+        try
+        {
+            long remaining;
+            while (!this.done
+                && (remaining = deadline - System.currentTimeMillis()) > 0)
+            {
+                this.finished.await(remaining, TimeUnit.MILLISECONDS);
+            }
+            return this.done;
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return this.done;
+        }
+        finally
+        {
+            this.socketIOLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection right away, dropping whatever is queued
+     *
+     * @return Number of frames dropped
+     */
+    public int close()
+    {
+        int dropped;
+        this.socketIOLock.lock();
+        try
+        {
+            this.closed = true;
+            dropped = discard();
+            this.notEmpty.signal();
+            this.notFull.signalAll();
+        }
+        finally
+        {
+            this.socketIOLock.unlock();
+        }
+        try
+        {
+            // Unblocks a writer stuck on a full socket buffer
+            this.sock.close();
+        }
+        catch (IOException ex)
+        {
+            System.err.println("[ERROR] " + ex.getMessage());
+        }
+        return dropped;
+    }
+}
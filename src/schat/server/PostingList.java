@@ -0,0 +1,148 @@
+package schat.server;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Ascending history sequence numbers of the messages containing a term,
+ * stored as the first number followed by variable length gaps: seven bits
+ * per byte with the high bit marking that more bytes follow. Consecutive
+ * messages of a busy conversation are a few sequence numbers apart, so most
+ * gaps take a single byte instead of the eight of a long.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+final class PostingList
+{
+    private final byte[] data;
+    private final int count;
+    private final long first;
+    private final long last;
+
+    private PostingList(byte[] data, int count, long first, long last)
+    {
+        this.data = data;
+        this.count = count;
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Compresses sequence numbers
+     *
+     * @param seqs Ascending sequence numbers
+     * @param length Number of leading entries of the array to take
+     * @return Compressed posting list
+     */
+    static PostingList encode(long[] seqs, int length)
+    {
+        byte[] data = new byte[10 * length];
+        int size = 0;
+        long previous = length == 0 ? 0 : seqs[0];
+        for (int i = 0; i < length; ++i)
+        {
+            long gap = seqs[i] - previous;
+            previous = seqs[i];
+            while ((gap & ~0x7f) != 0)
+            {
+                data[size++] = (byte) ((gap & 0x7f) | 0x80);
+                gap >>>= 7;
+            }
+            data[size++] = (byte) gap;
+        }
+        return new PostingList(
+            Arrays.copyOf(data, size), length,
+            length == 0 ? -1 : seqs[0], length == 0 ? -1 : seqs[length - 1]
+        );
+    }
+
+    /**
+     * Joins the lists of consecutive segments, each covering later sequence
+     * numbers than the one before
+     *
+     * @param lists Lists in sequence order, null entries are skipped
+     * @return One list holding all sequence numbers
+     */
+    static PostingList concat(List<PostingList> lists)
+    {
+        int total = 0;
+        for (PostingList list : lists)
+        {
+            total += list == null ? 0 : list.count;
+        }
+        long[] seqs = new long[total];
+        int length = 0;
+        for (PostingList list : lists)
+        {
+            if (list != null)
+            {
+                length = list.decodeInto(seqs, length);
+            }
+        }
+        return encode(seqs, length);
+    }
+
+    /**
+     * @return Number of sequence numbers in the list
+     */
+    int size()
+    {
+        return this.count;
+    }
+
+    /**
+     * @return Lowest sequence number, -1 if the list is empty
+     */
+    long first()
+    {
+        return this.first;
+    }
+
+    /**
+     * @return Highest sequence number, -1 if the list is empty
+     */
+    long last()
+    {
+        return this.last;
+    }
+
+    /**
+     * @return Size of the compressed list in bytes
+     */
+    int bytes()
+    {
+        return this.data.length;
+    }
+
+    /**
+     * @return The sequence numbers, ascending
+     */
+    long[] decode()
+    {
+        long[] seqs = new long[this.count];
+        decodeInto(seqs, 0);
+        return seqs;
+    }
+
+    private int decodeInto(long[] seqs, int offset)
+    {
+        long seq = this.first;
+        int pos = 0;
+        for (int i = 0; i < this.count; ++i)
+        {
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = this.data[pos++];
+                gap |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while (b < 0);
+            seq += gap;
+            seqs[offset++] = seq;
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,278 @@
+package schat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import schat.message.*;
+
+/**
+ * Keeps track of who is online and pushes changes to connected clients.
+ *
+ * The roster is a sorted array replaced on every change (copy-on-write), so
+ * readers never lock. Changes are not pushed one by one: every interval the
+ * roster last published is compared with the current one and a single
+ * {@link MessageType#PRESENCE_DELTA} frame carrying the net joins and leaves
+ * is sent to everyone. A user joining and leaving within one interval does
+ * not show up at all, which keeps connection storms cheap.
+ *
+ * Frame formats:
+ * PRESENCE_SNAPSHOT body "version", recipients are the online usernames.
+ * PRESENCE_DELTA body "fromVersion toVersion", recipients are "+username" for
+ * joins and "-username" for leaves.
+ * In both, the recipient IDs run parallel to the recipients and carry the
+ * session IDs, which clients may use to address each other.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class PresenceService
+{
+    public static final char JOINED = '+';
+    public static final char LEFT = '-';
+
+    /**
+     * Immutable, versioned view of the online users
+     */
+    public static final class Roster
+    {
+        private final long version;
+        private final String[] users;
+        private final int[] ids;
+
+        private Roster(long version, String[] users, int[] ids)
+        {
+            this.version = version;
+            this.users = users;
+            this.ids = ids;
+        }
+
+        /**
+         * Accessor method for the roster version
+         *
+         * @return Number of changes applied since the server started
+         */
+        public long getVersion()
+        {
+            return this.version;
+        }
+
+        /**
+         * Returns the online users in sorted order
+         *
+         * @return A copy of the sorted usernames
+         */
+        public String[] getUsers()
+        {
+            return this.users.clone();
+        }
+
+        /**
+         * Returns the session IDs of the online users
+         *
+         * @return A copy of the IDs, parallel to {@link #getUsers()}
+         */
+        public int[] getIds()
+        {
+            return this.ids.clone();
+        }
+    }
+
+    private volatile Roster current = new Roster(0, new String[0], new int[0]);
+    private Roster published = current;
+    private final ScheduledExecutorService publisher;
+
+    /**
+     * Creates the service and starts publishing deltas
+     *
+     * @param intervalMillis How often accumulated changes are pushed
+     */
+    public PresenceService(long intervalMillis)
+    {
+        this.publisher = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread t = new Thread(r, "schat-presence");
+            t.setDaemon(true);
+            return t;
+        });
+        this.publisher.scheduleWithFixedDelay(
+            this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Returns the current roster, without locking or copying
+     *
+     * @return Latest roster
+     */
+    public Roster getRoster()
+    {
+        return this.current;
+    }
+
+    /**
+     * Records a user coming online
+     *
+     * @param username Name the user registered with
+     * @param id Session ID the user was assigned
+     */
+    public synchronized void join(String username, int id)
+    {
+        String[] users = this.current.users;
+        int[] ids = this.current.ids;
+        int pos = Arrays.binarySearch(users, username);
+        if (pos >= 0)
+        {
+            return;
+        }
+        pos = -pos - 1;
+        String[] next = new String[users.length + 1];
+        int[] nextIds = new int[users.length + 1];
+        System.arraycopy(users, 0, next, 0, pos);
+        System.arraycopy(ids, 0, nextIds, 0, pos);
+        next[pos] = username;
+        nextIds[pos] = id;
+        System.arraycopy(users, pos, next, pos + 1, users.length - pos);
+        System.arraycopy(ids, pos, nextIds, pos + 1, users.length - pos);
+        this.current = new Roster(this.current.version + 1, next, nextIds);
+    }
+
+    /**
+     * Records a user going offline
+     *
+     * @param username Name the user was registered with
+     */
+    public synchronized void leave(String username)
+    {
+        String[] users = this.current.users;
+        int pos = Arrays.binarySearch(users, username);
+        if (pos < 0)
+        {
+            return;
+        }
+        int[] ids = this.current.ids;
+        String[] next = new String[users.length - 1];
+        int[] nextIds = new int[users.length - 1];
+        System.arraycopy(users, 0, next, 0, pos);
+        System.arraycopy(ids, 0, nextIds, 0, pos);
+        System.arraycopy(users, pos + 1, next, pos, users.length - pos - 1);
+        System.arraycopy(ids, pos + 1, nextIds, pos, users.length - pos - 1);
+        this.current = new Roster(this.current.version + 1, next, nextIds);
+    }
+
+    /**
+     * Builds the full snapshot sent to a client right after it was accepted.
+     * This is the last published roster, so that the deltas that follow
+     * continue exactly from its version.
+     *
+     * @return PRESENCE_SNAPSHOT message
+     */
+    public synchronized Message snapshot()
+    {
+        Message message = new Message(
+            MessageType.PRESENCE_SNAPSHOT,
+            Long.toString(this.published.version),
+            ""
+        );
+        message.setRecipients(this.published.users);
+        message.setRecipientIds(this.published.ids);
+        return message;
+    }
+
+    /**
+     * Computes the net change since the last published roster
+     *
+     * @return PRESENCE_DELTA message, null if nothing changed
+     */
+    private synchronized Message nextDelta()
+    {
+        Roster from = this.published;
+        Roster to = this.current;
+        if (from == to)
+        {
+            return null;
+        }
+        this.published = to;
+
+        // Both arrays are sorted, so one merge pass yields the difference
+        List<String> changes = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        int i = 0, j = 0, cmp;
+        while (i < from.users.length || j < to.users.length)
+        {
+            if (i == from.users.length)
+            {
+                cmp = 1;
+            }
+            else if (j == to.users.length)
+            {
+                cmp = -1;
+            }
+            else
+            {
+                cmp = from.users[i].compareTo(to.users[j]);
+            }
+
+            if (cmp < 0)
+            {
+                ids.add(from.ids[i]);
+                changes.add(LEFT + from.users[i++]);
+            }
+            else if (cmp > 0)
+            {
+                ids.add(to.ids[j]);
+                changes.add(JOINED + to.users[j++]);
+            }
+            else if (from.ids[i] != to.ids[j])
+            {
+                // Left and came back with another ID within one interval
+                ids.add(from.ids[i]);
+                changes.add(LEFT + from.users[i++]);
+                ids.add(to.ids[j]);
+                changes.add(JOINED + to.users[j++]);
+            }
+            else
+            {
+                ++i;
+                ++j;
+            }
+        }
+        if (changes.isEmpty())
+        {
+            return null;
+        }
+
+        Message message = new Message(
+            MessageType.PRESENCE_DELTA, from.version + " " + to.version, ""
+        );
+        message.setRecipients(changes.toArray(new String[0]));
+        message.setRecipientIds(ids.stream().mapToInt(Integer::intValue).toArray());
+        // Goes out to every online user as is
+        return message.freeze();
+    }
+
+    /**
+     * Pushes the accumulated delta, if any, to every online user
+     */
+    private void publish()
+    {
+        Message delta = nextDelta();
+        if (delta == null)
+        {
+            return;
+        }
+        for (ClientHandler handler : Server.getRegistry().allExcept(null))
+        {
+            handler.dispatchText(delta);
+        }
+    }
+
+    /**
+     * Stops publishing deltas
+     */
+    public void shutdown()
+    {
+        this.publisher.shutdown();
+    }
+}
@@ -0,0 +1,136 @@
+package schat.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import schat.message.Message;
+
+/**
+ * Remembers how the recipient lists of unicasts and blockcasts resolved to
+ * session IDs. Groups tend to repeat the same "@a @b @c" or "!x !y" lists, so
+ * most lookups are answered without touching the name table.
+ *
+ * Every entry records the registry's membership snapshot it was resolved
+ * against. Any registration or departure replaces that snapshot, which makes
+ * all older entries stale; they are resolved again on their next use.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+class RecipientCache
+{
+    private static final int CAPACITY = 256;
+
+    private static final class Entry
+    {
+        private final RecipientSet members;
+        private final RecipientSet resolved;
+
+        private Entry(RecipientSet members, RecipientSet resolved)
+        {
+            this.members = members;
+            this.resolved = resolved;
+        }
+    }
+
+    private final SessionRegistry registry;
+    // Least recently used first, guarded by itself
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+        {
+            return size() > CAPACITY;
+        }
+    };
+
+    /**
+     * @param registry Registry the names are resolved against
+     */
+    RecipientCache(SessionRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    /**
+     * Resolves the explicitly listed recipients of a message to the IDs of
+     * online sessions, by ID if the client supplied them and by name
+     * otherwise. Duplicates and unknown recipients are dropped.
+     *
+     * Session IDs are handed out again as soon as they are free, and the
+     * client's roster may lag behind, so supplied IDs are only used if each
+     * still belongs to the name at the same position. Otherwise the names
+     * decide.
+     *
+     * @param message Unicast or blockcast message
+     * @return IDs of the listed sessions that are online
+     */
+    RecipientSet resolve(Message message)
+    {
+        RecipientSet members = this.registry.members();
+        if (isCurrent(message))
+        {
+            // Filtering is a single intersection
+            return RecipientSet.of(message.getRecipientIds()).intersect(members);
+        }
+
+        String key = key(message);
+        Entry entry;
+        synchronized (this.entries)
+        {
+            entry = this.entries.get(key);
+        }
+        if (entry != null && entry.members == members)
+        {
+            return entry.resolved;
+        }
+
+        int[] ids = new int[message.getRecipientCount()];
+        ClientHandler handler;
+        for (int i = 0; i < ids.length; ++i)
+        {
+            handler = this.registry.get(message.getRecipient(i));
+            ids[i] = handler == null ? -1 : handler.getId();
+        }
+        RecipientSet resolved = RecipientSet.of(ids).intersect(members);
+        synchronized (this.entries)
+        {
+            this.entries.put(key, new Entry(members, resolved));
+        }
+        return resolved;
+    }
+
+    /**
+     * @return true if every supplied ID is the session of the recipient
+     * named at its position
+     */
+    private boolean isCurrent(Message message)
+    {
+        if (message.getRecipientIdCount() != message.getRecipientCount())
+        {
+            return false;
+        }
+        ClientHandler handler;
+        for (int i = 0; i < message.getRecipientCount(); ++i)
+        {
+            handler = this.registry.get(message.getRecipientId(i));
+            if (handler == null || handler != this.registry.get(message.getRecipient(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Usernames cannot contain whitespace, so a newline separates them
+     * unambiguously
+     */
+    private static String key(Message message)
+    {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < message.getRecipientCount(); ++i)
+        {
+            key.append(message.getRecipient(i)).append('\n');
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package schat.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Immutable set of session IDs, one bit per ID. Session IDs are dense (the
+ * registry hands out the lowest free one), so a plain bitmap is already
+ * compact: a few words cover hundreds of sessions, and complement and
+ * intersection are a handful of word operations.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+final class RecipientSet
+{
+    static final RecipientSet EMPTY = new RecipientSet(new BitSet());
+
+    // Never mutated once the set is constructed
+    private final BitSet bits;
+
+    private RecipientSet(BitSet bits)
+    {
+        this.bits = bits;
+    }
+
+    /**
+     * Builds a set from a list of IDs, ignoring negative ones
+     *
+     * @param ids Session IDs
+     * @return Set of the given IDs
+     */
+    static RecipientSet of(int... ids)
+    {
+        BitSet bits = new BitSet();
+        for (int id : ids)
+        {
+            if (id >= 0)
+            {
+                bits.set(id);
+            }
+        }
+        return new RecipientSet(bits);
+    }
+
+    /**
+     * Builds a set from a bitmap
+     *
+     * @param bits Bitmap of session IDs, copied
+     * @return Set of the IDs whose bits are set
+     */
+    static RecipientSet of(BitSet bits)
+    {
+        return new RecipientSet((BitSet) bits.clone());
+    }
+
+    /**
+     * @param id Session ID to add
+     * @return Set with the ID added
+     */
+    RecipientSet with(int id)
+    {
+        BitSet bits = (BitSet) this.bits.clone();
+        bits.set(id);
+        return new RecipientSet(bits);
+    }
+
+    /**
+     * @param id Session ID to remove, e.g. the sender's
+     * @return Set with the ID removed, this set if it did not contain it
+     */
+    RecipientSet without(int id)
+    {
+        if (id < 0 || !this.bits.get(id))
+        {
+            return this;
+        }
+        BitSet bits = (BitSet) this.bits.clone();
+        bits.clear(id);
+        return new RecipientSet(bits);
+    }
+
+    /**
+     * @param other Another set
+     * @return IDs in both sets
+     */
+    RecipientSet intersect(RecipientSet other)
+    {
+        BitSet bits = (BitSet) this.bits.clone();
+        bits.and(other.bits);
+        return new RecipientSet(bits);
+    }
+
+    /**
+     * Complement relative to this set, as used for blockcasts: the online
+     * sessions minus the blocked ones
+     *
+     * @param other IDs to take out
+     * @return IDs in this set but not in the other
+     */
+    RecipientSet minus(RecipientSet other)
+    {
+        BitSet bits = (BitSet) this.bits.clone();
+        bits.andNot(other.bits);
+        return new RecipientSet(bits);
+    }
+
+    /**
+     * @param id Session ID
+     * @return true if the ID is in the set
+     */
+    boolean contains(int id)
+    {
+        return id >= 0 && this.bits.get(id);
+    }
+
+    /**
+     * @return Number of IDs in the set
+     */
+    int size()
+    {
+        return this.bits.cardinality();
+    }
+
+    /**
+     * Looks up the sessions of the set. Sessions that left since the set was
+     * built are skipped.
+     *
+     * @param registry Registry to look the IDs up in
+     * @return Sessions in ID order
+     */
+    List<ClientHandler> handlers(SessionRegistry registry)
+    {
+        List<ClientHandler> handlers = new ArrayList<>(this.bits.cardinality());
+        ClientHandler handler;
+        for (int i = this.bits.nextSetBit(0); i >= 0; i = this.bits.nextSetBit(i + 1))
+        {
+            handler = registry.get(i);
+            if (handler != null)
+            {
+                handlers.add(handler);
+            }
+        }
+        return handlers;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.bits.toString();
+    }
+}
@@ -0,0 +1,210 @@
+package schat.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of the relay path. Every event is timed and has
+ * a threshold, so a recording only keeps the slow cases; with no recording
+ * running the instrumentation costs a timestamp and a flag check. Fields are
+ * only filled in when {@link Event#shouldCommit()} says the event will be
+ * kept.
+ *
+ * The thresholds below are defaults, a recording can override them per event
+ * name like those of any JDK event.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public final class RelayEvents
+{
+    private static final String CATEGORY = "SChat";
+    // How much history the continuous recording keeps
+    private static final Duration MAX_AGE = Duration.ofHours(6);
+
+    private RelayEvents()
+    {
+    }
+
+    @Name("schat.MessageReceived")
+    @Label("Message Received")
+    @Description("A message read from a client and handled to completion")
+    @Category(CATEGORY)
+    @Threshold("10 ms")
+    @StackTrace(false)
+    public static final class MessageReceived extends Event
+    {
+        @Label("Type")
+        String type;
+
+        @Label("Sender")
+        String sender;
+
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+    }
+
+    @Name("schat.RoutingDecision")
+    @Label("Routing Decision")
+    @Description("A relayed message handed to all of its resolved recipients")
+    @Category(CATEGORY)
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class RoutingDecision extends Event
+    {
+        @Label("Route")
+        String route;
+
+        @Label("Message ID")
+        long messageId;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Parallel Fan-out")
+        boolean parallel;
+
+        @Label("Delivered To All")
+        boolean sent;
+    }
+
+    @Name("schat.RecipientWrite")
+    @Label("Recipient Write")
+    @Description("A frame queued for one recipient; the duration is the time "
+        + "spent waiting for the queue lock and for room in the lane")
+    @Category(CATEGORY)
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class RecipientWrite extends Event
+    {
+        @Label("Recipient")
+        String recipient;
+
+        @Label("Type")
+        String type;
+
+        @Label("Lane")
+        String lane;
+
+        @Label("Accepted")
+        boolean accepted;
+    }
+
+    @Name("schat.FrameWrite")
+    @Label("Frame Write")
+    @Description("A frame written to a client socket by its outbound writer")
+    @Category(CATEGORY)
+    @Threshold("5 ms")
+    @StackTrace(false)
+    public static final class FrameWrite extends Event
+    {
+        @Label("Type")
+        String type;
+
+        @Label("Lane")
+        String lane;
+
+        @Label("Chunk Size")
+        @DataAmount
+        int chunkBytes;
+    }
+
+    @Name("schat.FileChunkRelay")
+    @Label("File Chunk Relay")
+    @Description("One chunk of a file read from the sender and queued for "
+        + "every recipient")
+    @Category(CATEGORY)
+    @Threshold("10 ms")
+    @StackTrace(false)
+    public static final class FileChunkRelay extends Event
+    {
+        @Label("Transfer ID")
+        long transferId;
+
+        @Label("Chunk Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Recipients")
+        int recipients;
+    }
+
+    @Name("schat.FileRelay")
+    @Label("File Relay")
+    @Description("A whole file relayed from the sender to its recipients")
+    @Category(CATEGORY)
+    @Threshold("0 ms")
+    @StackTrace(false)
+    public static final class FileRelay extends Event
+    {
+        @Label("Transfer ID")
+        long transferId;
+
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Served From Cache")
+        boolean cached;
+
+        @Label("Throughput")
+        @DataAmount(DataAmount.BYTES)
+        @Description("Bytes per second")
+        long throughput;
+    }
+
+    /**
+     * Starts a continuous recording with the JDK's default settings plus the
+     * events above. It is written to the destination when stopped, which
+     * {@link Server#drain(long)} does, or when the JVM exits.
+     *
+     * @param destination File the recording is written to
+     * @return The running recording
+     * @throws IOException if the destination cannot be used
+     */
+    static Recording startRecording(Path destination) throws IOException
+    {
+        Recording recording;
+        try
+        {
+            recording = new Recording(Configuration.getConfiguration("default"));
+        }
+        catch (ParseException ex)
+        {
+            throw new IOException("Bad JFR configuration: " + ex.getMessage());
+        }
+        recording.setName("schat");
+        recording.setToDisk(true);
+        recording.setMaxAge(MAX_AGE);
+        recording.setDumpOnExit(true);
+        recording.setDestination(destination);
+        for (Class<? extends Event> event : List.of(
+            MessageReceived.class, RoutingDecision.class, RecipientWrite.class,
+            FrameWrite.class, FileChunkRelay.class, FileRelay.class
+        ))
+        {
+            recording.enable(event);
+        }
+        recording.start();
+        return recording;
+    }
+}
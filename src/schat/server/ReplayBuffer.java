@@ -0,0 +1,81 @@
+package schat.server;
+
+import schat.message.Message;
+
+/**
+ * The most recent text messages queued for a resumable session, numbered in
+ * the order they were queued. Text messages travel in a single lane of the
+ * outbound queue, so the client receives them in exactly this order and can
+ * tell the server how many it got; a resumed connection is then sent the
+ * rest.
+ *
+ * Messages are forwarded to the connection the buffer is attached to. While
+ * the session is detached, between a dropped connection and its resumption,
+ * they are only buffered. Once more than the capacity is buffered the oldest
+ * are overwritten.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+class ReplayBuffer
+{
+    private final Message[] ring;
+    // Sequence number of the next message, i.e. the number queued so far
+    private long next = 0;
+    // Connection the messages are forwarded to, null while detached
+    private ClientHandler live;
+
+    /**
+     * @param capacity Number of messages kept for replay
+     */
+    ReplayBuffer(int capacity)
+    {
+        this.ring = new Message[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Numbers and keeps a message, and queues it for the attached connection
+     *
+     * @param message Text message for the session
+     * @return false if the attached connection refused the message
+     */
+    synchronized boolean offer(Message message)
+    {
+        this.ring[(int) (this.next++ % this.ring.length)] = message;
+        return this.live == null || this.live.enqueue(message, null);
+    }
+
+    /**
+     * Queues every buffered message the client has not received yet for a
+     * connection, which then receives all further messages. Messages offered
+     * concurrently are queued after the replayed ones.
+     *
+     * @param handler Connection taking over the session
+     * @param from Number of messages the client received before
+     * @return Number of messages the client missed that are no longer
+     * buffered
+     */
+    synchronized long attach(ClientHandler handler, long from)
+    {
+        from = Math.min(Math.max(from, 0), this.next);
+        long first = Math.max(from, this.next - this.ring.length);
+        for (long seq = first; seq < this.next; ++seq)
+        {
+            handler.enqueue(this.ring[(int) (seq % this.ring.length)], null);
+        }
+        this.live = handler;
+        return first - from;
+    }
+
+    /**
+     * Stops forwarding to a connection that went away
+     *
+     * @param handler Connection that dropped; ignored unless attached
+     */
+    synchronized void detach(ClientHandler handler)
+    {
+        if (this.live == handler)
+        {
+            this.live = null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package schat.server;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resume tokens of sessions that may be picked up again after their
+ * connection drops. A token is handed out with the ACK_INTRO of a client
+ * that asked for one and is replaced on every resumption. A session whose
+ * connection dropped keeps its name, ID and replay buffer for the resume
+ * window; if nobody resumes it by then it is released like any other
+ * departed session.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+class ResumableSessions
+{
+    private static final int TOKEN_BYTES = 16;
+
+    private final long window;
+    private final int replayCapacity;
+    private final Map<String, ClientHandler> byToken = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService expiry;
+
+    /**
+     * @param window Milliseconds a dropped session is held, 0 to disable
+     * resumption
+     * @param replayCapacity Messages buffered per session for replay
+     */
+    ResumableSessions(long window, int replayCapacity)
+    {
+        this.window = window;
+        this.replayCapacity = replayCapacity;
+        this.expiry = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread t = new Thread(r, "schat-resume-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return true if sessions may be resumed at all
+     */
+    boolean isEnabled()
+    {
+        return this.window > 0;
+    }
+
+    /**
+     * @return Milliseconds a dropped session is held for its client
+     */
+    long getWindow()
+    {
+        return this.window;
+    }
+
+    /**
+     * @return Messages buffered per session for replay
+     */
+    int getReplayCapacity()
+    {
+        return this.replayCapacity;
+    }
+
+    /**
+     * Hands out a new token for a session
+     *
+     * @param handler Connection currently serving the session
+     * @return Token the client resumes the session with
+     */
+    String issue(ClientHandler handler)
+    {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        this.random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(2 * TOKEN_BYTES);
+        for (byte b : bytes)
+        {
+            token.append(String.format("%02x", b & 0xff));
+        }
+        this.byToken.put(token.toString(), handler);
+        return token.toString();
+    }
+
+    /**
+     * Takes a token out of circulation
+     *
+     * @param token Token presented by a resuming client
+     * @return Connection the token was issued to, null if it is unknown
+     */
+    ClientHandler redeem(String token)
+    {
+        return this.byToken.remove(token);
+    }
+
+    /**
+     * Invalidates the token of a session that is gone for good
+     *
+     * @param token Token issued to the session, may be null
+     */
+    void revoke(String token)
+    {
+        if (token != null)
+        {
+            this.byToken.remove(token);
+        }
+    }
+
+    /**
+     * Releases a detached session once the window has passed, unless it was
+     * resumed in the meantime
+     *
+     * @param handler Connection that dropped
+     */
+    void expireLater(ClientHandler handler)
+    {
+        try
+        {
+            this.expiry.schedule(handler::expire, this.window, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // The server is going away, nothing left to expire
+        }
+    }
+
+    /**
+     * Stops expiring sessions, the server is going away
+     */
+    void shutdown()
+    {
+        this.expiry.shutdownNow();
+    }
+}
@@ -0,0 +1,516 @@
+package schat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import schat.message.Message;
+import schat.message.MessageType;
+
+/**
+ * Searchable history of the text messages relayed by the server: an
+ * inverted index from terms to the sequence numbers of the messages they
+ * occur in, over a bounded ring of the most recent messages.
+ *
+ * Relays only hand their frozen copy to the index; tokenizing and posting
+ * happen on a dedicated indexer thread. Postings of the newest messages are
+ * collected in plain arrays until a segment's worth is reached, then sealed
+ * into an immutable {@link IndexSegment} of compressed {@link PostingList}s.
+ * A merger thread combines every run of {@code MERGE_FACTOR} segments of the
+ * same size into one, keeping the number of segments logarithmic in the
+ * history size. Segments whose messages have all left the ring are dropped.
+ *
+ * Queries match messages containing all of their terms and are answered
+ * newest first, a page at a time. Segments are visited from the newest one
+ * on, so the first pages of a query cost the same over a million messages as
+ * over a thousand. A user only finds messages they could have seen: their
+ * own, broadcasts, unicasts listing them and blockcasts not blocking them.
+ * Senders and unicast recipients are told apart by their registration, see
+ * {@link ClientHandler#getIdentity()}, not by name: whoever takes over a
+ * released name does not get to read its earlier holder's messages. Users
+ * blocked from a blockcast, who may be offline, are listed by name, which
+ * errs on the side of hiding the message.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+class SearchIndex
+{
+    static final int PAGE_SIZE = 20;
+    private static final int SEGMENT_MESSAGES = 4096;
+    private static final int MERGE_FACTOR = 8;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MAX_QUERY_TERMS = 8;
+    private static final char TOK_PAGE = '#';
+
+    /**
+     * A relayed message along with who could see it
+     */
+    private static final class Entry
+    {
+        private final long seq;
+        private final Message message;
+        private final String sender;
+        private final long senderIdentity;
+        // Identities of the recipients of unicasts
+        private final long[] recipients;
+        // Usernames of the users blocked from blockcasts
+        private final String[] blocked;
+
+        private Entry(long seq, Message message, String sender, long senderIdentity,
+            long[] recipients, String[] blocked)
+        {
+            this.seq = seq;
+            this.message = message;
+            this.sender = sender;
+            this.senderIdentity = senderIdentity;
+            this.recipients = recipients;
+            this.blocked = blocked;
+        }
+    }
+
+    /**
+     * Growable posting list of the segment being collected
+     */
+    private static final class Postings
+    {
+        private long[] seqs = new long[4];
+        private int size = 0;
+
+        private void add(long seq)
+        {
+            if (this.size == this.seqs.length)
+            {
+                this.seqs = Arrays.copyOf(this.seqs, 2 * this.size);
+            }
+            this.seqs[this.size++] = seq;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> history;
+    private final ExecutorService indexer;
+    private final ExecutorService merger;
+    // Sequence number of the next message, owned by the indexer thread
+    private long next = 0;
+    // Postings of messages not yet sealed into a segment, guarded by this
+    private Map<String, Postings> pending = new HashMap<>();
+    private long pendingFirst = 0;
+    // Oldest first, replaced as a whole under this
+    private volatile List<IndexSegment> segments = Collections.emptyList();
+
+    /**
+     * @param capacity Number of most recent messages kept searchable, 0 to
+     * disable search
+     */
+    SearchIndex(int capacity)
+    {
+        this.history = capacity > 0 ? new AtomicReferenceArray<>(capacity) : null;
+        this.indexer = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread t = new Thread(r, "schat-indexer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.merger = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread t = new Thread(r, "schat-index-merge");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * @return true if relayed messages are kept for search
+     */
+    boolean isEnabled()
+    {
+        return this.history != null;
+    }
+
+    /**
+     * Queues a relayed text message for indexing. Returns right away, the
+     * message becomes searchable shortly after.
+     *
+     * @param message Frozen relay copy
+     * @param sender Username of the sending session
+     * @param senderIdentity Identity of the sending session
+     * @param recipients Identities of the sessions a unicast was sent to,
+     * null for other messages
+     * @param blocked Usernames blocked from a blockcast, null for other
+     * messages
+     */
+    void add(Message message, String sender, long senderIdentity,
+        long[] recipients, String[] blocked)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        try
+        {
+            this.indexer.execute(
+                () -> index(message, sender, senderIdentity, recipients, blocked)
+            );
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // Shutting down, nobody is going to search any more
+        }
+    }
+
+    private void index(Message message, String sender, long senderIdentity,
+        long[] recipients, String[] blocked)
+    {
+        long seq = this.next++;
+        this.history.set(slot(seq), new Entry(
+            seq, message, sender, senderIdentity, recipients, blocked
+        ));
+        List<String> terms = terms(message.getBody());
+        synchronized (this)
+        {
+            for (String term : terms)
+            {
+                this.pending.computeIfAbsent(term, k -> new Postings()).add(seq);
+            }
+            if (this.next - this.pendingFirst >= SEGMENT_MESSAGES)
+            {
+                seal();
+            }
+        }
+    }
+
+    /**
+     * Turns the collected postings into a segment. Searches see either the
+     * postings or the segment, never both or neither.
+     */
+    private synchronized void seal()
+    {
+        Map<String, PostingList> postings = new HashMap<>(2 * this.pending.size());
+        for (Map.Entry<String, Postings> entry : this.pending.entrySet())
+        {
+            Postings p = entry.getValue();
+            postings.put(entry.getKey(), PostingList.encode(p.seqs, p.size));
+        }
+        IndexSegment sealed = new IndexSegment(postings, this.pendingFirst, this.next, 0);
+
+        long horizon = this.next - this.history.length();
+        List<IndexSegment> updated = new ArrayList<>(this.segments.size() + 1);
+        for (IndexSegment segment : this.segments)
+        {
+            if (segment.end() > horizon)
+            {
+                updated.add(segment);
+            }
+        }
+        updated.add(sealed);
+        this.segments = Collections.unmodifiableList(updated);
+        this.pending = new HashMap<>();
+        this.pendingFirst = this.next;
+
+        try
+        {
+            this.merger.execute(this::mergeSegments);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Merges runs of equally sized segments until there are none left. The
+     * merge itself runs without the lock; the result replaces the run unless
+     * the run has been dropped from the history in the meantime.
+     */
+    private void mergeSegments()
+    {
+        while (true)
+        {
+            List<IndexSegment> current = this.segments;
+            int start = findRun(current);
+            if (start < 0)
+            {
+                return;
+            }
+            List<IndexSegment> run = new ArrayList<>(
+                current.subList(start, start + MERGE_FACTOR)
+            );
+            IndexSegment merged = IndexSegment.merge(run);
+            synchronized (this)
+            {
+                // Only this thread replaces segments, others only append new
+                // ones or drop the oldest, so an intact run is still in place
+                List<IndexSegment> now = this.segments;
+                int at = now.indexOf(run.get(0));
+                if (at < 0)
+                {
+                    continue;
+                }
+                List<IndexSegment> updated = new ArrayList<>(now.subList(0, at));
+                updated.add(merged);
+                updated.addAll(now.subList(at + MERGE_FACTOR, now.size()));
+                this.segments = Collections.unmodifiableList(updated);
+            }
+        }
+    }
+
+    private static int findRun(List<IndexSegment> segments)
+    {
+        int length = 0;
+        for (int i = 0; i < segments.size(); ++i)
+        {
+            length = i > 0 && segments.get(i).level() == segments.get(i - 1).level()
+                ? length + 1
+                : 1;
+            if (length == MERGE_FACTOR)
+            {
+                return i - MERGE_FACTOR + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Answers a search request. The body holds the terms, optionally
+     * preceded by the page number as in "#2 release notes".
+     *
+     * @param request CLIENT_SEARCH message
+     * @param username User searching, results are limited to what they
+     * could have seen
+     * @param identity Identity of the searching session
+     * @return SEARCH_RESULTS message. Its body is the page number followed by
+     * the number of the next page, 0 on the last page; the hits, newest first,
+     * are its recipient list
+     */
+    Message search(Message request, String username, long identity)
+    {
+        String query = request.getBody() == null ? "" : request.getBody().trim();
+        int page = 1;
+        if (!query.isEmpty() && query.charAt(0) == TOK_PAGE)
+        {
+            int space = query.indexOf(' ');
+            try
+            {
+                page = Math.max(Integer.parseInt(
+                    space < 0 ? query.substring(1) : query.substring(1, space)
+                ), 1);
+            }
+            catch (NumberFormatException ex)
+            {
+                // Not a page number, search for it instead
+            }
+            query = space < 0 ? "" : query.substring(space + 1);
+        }
+        List<String> terms = terms(query);
+        if (terms.size() > MAX_QUERY_TERMS)
+        {
+            terms = terms.subList(0, MAX_QUERY_TERMS);
+        }
+
+        List<String> hits = new ArrayList<>(PAGE_SIZE);
+        boolean more = false;
+        if (isEnabled() && !terms.isEmpty())
+        {
+            long[] recent;
+            List<IndexSegment> sealed;
+            synchronized (this)
+            {
+                recent = matchPending(terms);
+                sealed = this.segments;
+            }
+            int skip = (page - 1) * PAGE_SIZE;
+            skip = collect(recent, username, identity, skip, hits);
+            for (int i = sealed.size() - 1; i >= 0 && skip >= 0; --i)
+            {
+                skip = collect(match(sealed.get(i), terms), username, identity, skip, hits);
+            }
+            // A negative skip means a hit was found past the page
+            more = skip < 0;
+        }
+
+        Message results = new Message(
+            MessageType.SEARCH_RESULTS, page + " " + (more ? page + 1 : 0), ""
+        );
+        results.setRecipients(hits.toArray(new String[0]));
+        return results;
+    }
+
+    /**
+     * Walks matches newest first, skipping the hits of earlier pages
+     *
+     * @return Hits still to be skipped, -1 once the page is full and another
+     * hit was found
+     */
+    private int collect(long[] seqs, String username, long identity, int skip,
+        List<String> hits)
+    {
+        Entry entry;
+        for (int i = seqs.length - 1; i >= 0; --i)
+        {
+            entry = this.history.get(slot(seqs[i]));
+            // The slot may since have been taken by a newer message
+            if (entry == null || entry.seq != seqs[i] || !isVisible(entry, username, identity))
+            {
+                continue;
+            }
+            if (skip > 0)
+            {
+                --skip;
+            }
+            else if (hits.size() < PAGE_SIZE)
+            {
+                hits.add(String.format("%tF %<tT %s: %s",
+                    entry.message.getRelayedAt(), entry.sender, entry.message.getBody()
+                ));
+            }
+            else
+            {
+                return -1;
+            }
+        }
+        return skip;
+    }
+
+    private static boolean isVisible(Entry entry, String username, long identity)
+    {
+        if (entry.senderIdentity == identity)
+        {
+            return true;
+        }
+        switch (entry.message.getType())
+        {
+            case CLIENT_TEXT_UNICAST:
+                for (long recipient : entry.recipients)
+                {
+                    if (recipient == identity)
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            case CLIENT_TEXT_BLOCKCAST:
+                return !Arrays.asList(entry.blocked).contains(username);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return Slot of the history ring a sequence number is kept in
+     */
+    private int slot(long seq)
+    {
+        return (int) (seq % this.history.length());
+    }
+
+    private long[] matchPending(List<String> terms)
+    {
+        long[][] lists = new long[terms.size()][];
+        Postings postings;
+        for (int i = 0; i < lists.length; ++i)
+        {
+            postings = this.pending.get(terms.get(i));
+            if (postings == null)
+            {
+                return new long[0];
+            }
+            lists[i] = Arrays.copyOf(postings.seqs, postings.size);
+        }
+        return intersect(lists);
+    }
+
+    private static long[] match(IndexSegment segment, List<String> terms)
+    {
+        PostingList[] lists = new PostingList[terms.size()];
+        for (int i = 0; i < lists.length; ++i)
+        {
+            lists[i] = segment.get(terms.get(i));
+            if (lists[i] == null)
+            {
+                return new long[0];
+            }
+        }
+        long[][] decoded = new long[lists.length][];
+        for (int i = 0; i < lists.length; ++i)
+        {
+            decoded[i] = lists[i].decode();
+        }
+        return intersect(decoded);
+    }
+
+    /**
+     * Intersects ascending lists, starting from the shortest
+     */
+    private static long[] intersect(long[][] lists)
+    {
+        Arrays.sort(lists, Comparator.comparingInt(l -> l.length));
+        long[] result = lists[0];
+        int length = result.length;
+        for (int k = 1; k < lists.length && length > 0; ++k)
+        {
+            long[] other = lists[k];
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < length; ++i)
+            {
+                while (j < other.length && other[j] < result[i])
+                {
+                    ++j;
+                }
+                if (j < other.length && other[j] == result[i])
+                {
+                    result[kept++] = result[i];
+                }
+            }
+            length = kept;
+        }
+        return length == result.length ? result : Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Splits text into distinct lower case terms: runs of letters and digits,
+     * cut off at {@code MAX_TERM_LENGTH} characters
+     *
+     * @param text Message body or query
+     * @return Terms in order of first occurrence
+     */
+    static List<String> terms(String text)
+    {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); ++i)
+        {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0)
+            {
+                start = i;
+            }
+            else if (!word && start >= 0)
+            {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH))
+                    .toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * Stops indexing, the server is going away
+     */
+    void shutdown()
+    {
+        this.indexer.shutdownNow();
+        this.merger.shutdownNow();
+    }
+}
@@ -3,10 +3,27 @@ package schat.server;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import schat.io.Connection;
+import schat.io.MemoryTransport;
+import schat.io.SocketConnection;
+import schat.message.ContentDigest;
 
 /**
  * Class abstracting the chat server definition. The server handles: 1. Spawning
@@ -19,29 +36,92 @@ public class Server
 {
     // Arbitary default port, nice number
     private static final int DEFAULT_PORT = 9012;
+    // Bounds of the relayed file cache
+    private static final long BLOB_STORE_CAPACITY = 64L * 1024 * 1024;
+    private static final long BLOB_STORE_MAX_BLOB = ContentDigest.MAX_CACHED_SIZE;
     private static PrintStream log = System.out;
+    // How often a draining server checks on in-flight relays
+    private static final long DRAIN_POLL_MILLIS = 10;
 
-    private ServerSocket sock;
+    private final ServerConfig config;
+    private final List<ServerSocket> sockets = new ArrayList<>();
+    // Ports listened on when serving an in-memory transport
+    private final List<Integer> memoryPorts = new ArrayList<>();
+    // Released once the listeners are closed
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final List<Thread> acceptors = new ArrayList<>();
+    private int acceptorsPerSocket = 1;
 
     private static ExecutorService workers = Executors.newCachedThreadPool();
-    private ConcurrentHashMap<String, ClientHandler> userList;
+    private final SessionRegistry registry = new SessionRegistry();
+    private final RecipientCache recipients = new RecipientCache(this.registry);
+    // Every open connection, introduced or not
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger activeRelays = new AtomicInteger();
+    private final AtomicLong transferIds = new AtomicLong();
+    private volatile boolean draining = false;
+    private final BlobStore blobStore
+        = new BlobStore(BLOB_STORE_CAPACITY, BLOB_STORE_MAX_BLOB);
+    private final PresenceService presence;
+    private final FanoutEngine fanout;
+    private final DeliveryTracker deliveries;
+    private final ResumableSessions resumable;
+    private final SearchIndex search;
+    private final Recording recording;
+    private final TrafficCapture capture;
+    private final MulticastPublisher multicast;
 
     // Singleton instance
     private static Server self = null;
 
     /**
      * Creates a fresh Server instance. Private because of simplifying
-     * assumption of 1 server port per JVM.
+     * assumption of 1 server per JVM.
      *
-     * @param port Port at which server listens for incoming connections
+     * @param config Listening endpoints and acceptor settings
      * @return A new server instance
      */
-    private Server(int port)
+    private Server(ServerConfig config)
     {
+        this.config = config;
+        this.presence = new PresenceService(config.getPresenceInterval());
+        this.fanout = new FanoutEngine(
+            config.getFanoutThreshold(), config.getFanoutThreads()
+        );
+        this.deliveries = new DeliveryTracker(
+            config.getLatencySlo(), config.getAckTimeout()
+        );
+        this.resumable = new ResumableSessions(
+            config.getResumeWindow(), config.getReplayCapacity()
+        );
+        this.search = new SearchIndex(config.getHistoryCapacity());
+        this.recording = startRecording(config.getFlightRecording());
+        this.capture = TrafficCapture.start(config.getCapture());
+        if (this.capture != null)
+        {
+            log.println("Capturing inbound traffic to " + this.capture.getFile());
+        }
+        this.multicast = MulticastPublisher.start(
+            config.getMulticastGroup(), config.getMulticastInterface()
+        );
+        if (this.multicast != null)
+        {
+            log.println("Publishing broadcasts on udp://" + this.multicast.getGroup());
+        }
         try
         {
-            this.userList = new ConcurrentHashMap<>();
-            this.sock = new ServerSocket(port);
+            MemoryTransport memory = config.getMemoryTransport();
+            for (int port : config.getPorts())
+            {
+                if (memory != null)
+                {
+                    this.memoryPorts.add(memory.listen(port, this::serve));
+                }
+                else
+                {
+                    bindListeners(port);
+                }
+            }
         }
         catch (IOException ex)
         {
@@ -49,6 +129,80 @@ public class Server
         }
     }
 
+    /**
+     * Opens the sockets for one listening port. With SO_REUSEPORT every
+     * acceptor gets its own socket and thereby its own accept queue,
+     * otherwise all acceptors of the port share one socket.
+     *
+     * @param port Port to listen on, 0 picks an ephemeral port
+     * @throws IOException if the port could not be bound
+     */
+    private void bindListeners(int port) throws IOException
+    {
+        InetAddress address = this.config.getBindAddress() == null
+            ? null
+            : InetAddress.getByName(this.config.getBindAddress());
+        ServerSocket first = new ServerSocket();
+        boolean reusePort = this.config.isReusePort()
+            && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (this.config.isReusePort() && !reusePort)
+        {
+            log.println("[WARN] SO_REUSEPORT unsupported, acceptors will share a socket");
+        }
+
+        int sockets = reusePort ? this.config.getAcceptors() : 1;
+        this.acceptorsPerSocket = reusePort ? 1 : this.config.getAcceptors();
+        ServerSocket ss = first;
+        for (int i = 0; i < sockets; ++i)
+        {
+            if (i > 0)
+            {
+                ss = new ServerSocket();
+            }
+            if (reusePort)
+            {
+                ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            // Must precede bind so that windows beyond 64K get negotiated
+            if (this.config.getReceiveBuffer() > 0)
+            {
+                ss.setReceiveBufferSize(this.config.getReceiveBuffer());
+            }
+            // Later sockets must share the port the first one ended up with
+            ss.bind(
+                new InetSocketAddress(address, i == 0 ? port : first.getLocalPort()),
+                this.config.getBacklog()
+            );
+            this.sockets.add(ss);
+        }
+    }
+
+    /**
+     * Starts the flight recording requested by the configuration, if any
+     *
+     * @param destination File the recording is written to, null for none
+     * @return The running recording, null if none was requested or it could
+     * not be started
+     */
+    private static Recording startRecording(String destination)
+    {
+        if (destination == null)
+        {
+            return null;
+        }
+        try
+        {
+            Recording recording = RelayEvents.startRecording(Paths.get(destination));
+            log.println("Flight recording to " + destination);
+            return recording;
+        }
+        catch (IOException | IllegalStateException | SecurityException ex)
+        {
+            System.err.println("[ERROR] Could not start flight recording: " + ex.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Fetches a new instance corresponding to the default number, unless there
      * is another instance already running.
@@ -70,23 +224,38 @@ public class Server
      * @throws java.io.IOException
      */
     public static Server getInstance(int port) throws IOException
+    {
+        return getInstance(new ServerConfig(port));
+    }
+
+    /**
+     * Fetches a new instance with the given configuration, unless another one
+     * is already running.
+     *
+     * @param config Listening endpoints and acceptor settings
+     * @return A singleton instance of Server
+     * @throws java.io.IOException
+     */
+    public static Server getInstance(ServerConfig config) throws IOException
     {
         if (self == null)
         {
-            self = new Server(port);
+            self = new Server(config);
         }
         return self;
     }
 
     /**
      * The local port to which the current server instance is listening to for
-     * inbound connections
+     * inbound connections. With several listeners this is the first one.
      *
      * @return Local system port to which this server instance is bound
      */
     public static int getLocalPort()
     {
-        return self.sock.getLocalPort();
+        return self.sockets.isEmpty()
+            ? self.memoryPorts.get(0)
+            : self.sockets.get(0).getLocalPort();
     }
 
     /**
@@ -96,7 +265,9 @@ public class Server
      */
     public static InetAddress getInetAddress()
     {
-        return self.sock.getInetAddress();
+        return self.sockets.isEmpty()
+            ? InetAddress.getLoopbackAddress()
+            : self.sockets.get(0).getInetAddress();
     }
 
     /**
@@ -105,45 +276,412 @@ public class Server
      *
      * @return A concurrent hashmap object with user handler key-value pairs
      */
-    public static synchronized ConcurrentHashMap<String, ClientHandler> getUserList()
+    public static ConcurrentHashMap<String, ClientHandler> getUserList()
+    {
+        return self.registry.byName();
+    }
+
+    /**
+     * Fetches the registration table of introduced sessions
+     *
+     * @return Registry mapping usernames and session IDs to handlers
+     */
+    public static SessionRegistry getRegistry()
+    {
+        return self.registry;
+    }
+
+    /**
+     * Fetches every open connection, including those which have not
+     * introduced themselves yet
+     *
+     * @return Live set of client handlers
+     */
+    static Set<ClientHandler> getConnections()
+    {
+        return self.connections;
+    }
+
+    /**
+     * Runs a connection's long lived task (reader or outbound writer) on
+     * the worker pool
+     *
+     * @param task Task to be run
+     */
+    static void execute(Runnable task)
+    {
+        workers.execute(task);
+    }
+
+    /**
+     * Hands out a fresh file transfer ID
+     *
+     * @return ID unique for the lifetime of the server
+     */
+    static long nextTransferId()
+    {
+        return self.transferIds.incrementAndGet();
+    }
+
+    /**
+     * Marks the start of a relay, see {@link #drain(long)}
+     *
+     * @return false if the server is draining and takes no new relays, in
+     * which case the relay must not be ended either
+     */
+    static boolean beginRelay()
     {
-        return self.userList;
+        self.activeRelays.incrementAndGet();
+        // Either the drain counts this relay as in flight, or we see it
+        if (self.draining)
+        {
+            self.activeRelays.decrementAndGet();
+            return false;
+        }
+        return true;
     }
 
     /**
-     * Make the server start listening on the preset port. Every time a client
-     * connects a new worker thread is created
+     * Marks the end of a relay started with {@link #beginRelay()}
+     */
+    static void endRelay()
+    {
+        self.activeRelays.decrementAndGet();
+    }
+
+    /**
+     * Fetches the service tracking which users are online
+     *
+     * @return Presence service of the running server
+     */
+    public static PresenceService getPresence()
+    {
+        return self.presence;
+    }
+
+    /**
+     * Fetches the cache of resolved recipient lists
+     *
+     * @return Recipient cache of the running server
+     */
+    static RecipientCache getRecipientCache()
+    {
+        return self.recipients;
+    }
+
+    /**
+     * Fetches the engine delivering messages to many recipients
+     *
+     * @return Fan-out engine of the running server
+     */
+    public static FanoutEngine getFanout()
+    {
+        return self.fanout;
+    }
+
+    /**
+     * Fetches the per route delivery latency statistics
+     *
+     * @return Delivery tracker of the running server
+     */
+    public static DeliveryTracker getDeliveryTracker()
+    {
+        return self.deliveries;
+    }
+
+    /**
+     * Fetches the resume tokens of sessions that may be picked up again
+     *
+     * @return Resumable sessions of the running server
+     */
+    static ResumableSessions getResumableSessions()
+    {
+        return self.resumable;
+    }
+
+    /**
+     * Fetches the index of recently relayed text messages
+     *
+     * @return Search index of the running server
+     */
+    static SearchIndex getSearchIndex()
+    {
+        return self.search;
+    }
+
+    /**
+     * Fetches the capture of inbound traffic
+     *
+     * @return Traffic capture of the running server, null if not capturing
+     */
+    static TrafficCapture getCapture()
+    {
+        return self.capture;
+    }
+
+    /**
+     * Fetches the multicast fast path for text broadcasts
+     *
+     * @return Publisher of the running server, null if broadcasts only go
+     * over TCP
+     */
+    static MulticastPublisher getMulticast()
+    {
+        return self.multicast;
+    }
+
+    /**
+     * Adds up the heap held by every connection of the running server, as
+     * estimated by their own accounting
+     *
+     * @return Bytes held by stream buffers, queued frames and messages the
+     * outbound streams remember
+     */
+    public static long getConnectionMemory()
+    {
+        long bytes = 0;
+        for (ClientHandler handler : self.connections)
+        {
+            bytes += handler.getRetainedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Fetches the cache of recently relayed file payloads
+     *
+     * @return Content addressed blob store shared by all client handlers
+     */
+    public static BlobStore getBlobStore()
+    {
+        return self.blobStore;
+    }
+
+    /**
+     * Make the server start listening on the configured ports. Each listener
+     * is served by its own acceptor threads, which hand accepted connections
+     * straight to the worker pool. Blocks until all acceptors have stopped.
+     * Ports of an in-memory transport need no acceptors, connections are
+     * handed over by the connecting thread; then this blocks until the
+     * server drains.
      *
      * @throws java.io.IOException
      */
     public void listen() throws IOException
     {
-        log.println("Listening for clients on tcp://"
-            + getInetAddress().getHostAddress() + ":" + getLocalPort()
-        );
+        for (ServerSocket ss : this.sockets)
+        {
+            log.println("Listening for clients on tcp://"
+                + ss.getInetAddress().getHostAddress() + ":" + ss.getLocalPort()
+            );
+        }
+        for (int port : this.memoryPorts)
+        {
+            log.println("Listening for clients on mem://" + port);
+        }
+
+        for (ServerSocket ss : this.sockets)
+        {
+            for (int i = 0; i < this.acceptorsPerSocket; ++i)
+            {
+                Thread acceptor = new Thread(
+                    () -> accept(ss),
+                    "schat-acceptor-" + ss.getLocalPort() + "-" + this.acceptors.size()
+                );
+                this.acceptors.add(acceptor);
+                acceptor.start();
+            }
+        }
 
+        try
+        {
+            for (Thread acceptor : this.acceptors)
+            {
+                acceptor.join();
+            }
+            if (!this.memoryPorts.isEmpty())
+            {
+                this.closed.await();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            drain(this.config.getDrainTimeout());
+        }
+    }
+
+    /**
+     * Accept loop run by every acceptor thread. An accept error on any
+     * listener drains the whole server, as the original accept loop shut it
+     * down on the first error.
+     *
+     * @param ss Listener to accept connections from
+     */
+    private void accept(ServerSocket ss)
+    {
         try
         {
             while (true)
             {
-                workers.execute(
-                    new ClientHandler(self.sock.accept())
-                );
+                Socket socket = ss.accept();
+                if (this.config.getSendBuffer() > 0)
+                {
+                    socket.setSendBufferSize(this.config.getSendBuffer());
+                }
+                serve(new SocketConnection(socket));
             }
         }
         catch (IOException ioe)
         {
-            log.println("[ERROR] " + ioe.getMessage());
-            workers.shutdown();
+            if (!this.draining)
+            {
+                log.println("[ERROR] " + ioe.getMessage());
+                drain(this.config.getDrainTimeout());
+            }
         }
-        finally
+    }
+
+    /**
+     * Starts serving a newly accepted connection on the worker pool
+     *
+     * @param connection Connection to a client
+     */
+    private void serve(Connection connection)
+    {
+        ClientHandler handler = new ClientHandler(
+            connection, this.config.getConnectionBudget()
+        );
+        this.connections.add(handler);
+        try
+        {
+            workers.execute(handler);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // Connected while the server shut down
+            this.connections.remove(handler);
+            handler.close();
+        }
+    }
+
+    /**
+     * Gracefully shuts the server down. Stops accepting connections and new
+     * relays, whose senders are answered with
+     * {@link schat.message.MessageType#ACK_QUIT} right away, lets relays that
+     * are in flight (including file transfers) run to completion until the
+     * deadline, then has every connection write out its queued
+     * frames followed by {@link schat.message.MessageType#ACK_QUIT} before
+     * closing. Connections still busy at the deadline are cut off and their
+     * queued frames counted as dropped. Safe to call more than once.
+     *
+     * @param timeoutMillis How long to wait for in-flight relays
+     * @return Number of relays cut off because the deadline passed
+     */
+    public synchronized int drain(long timeoutMillis)
+    {
+        if (this.draining)
+        {
+            return 0;
+        }
+        this.draining = true;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        log.println("Draining server, waiting up to " + timeoutMillis + " ms");
+        close();
+
+        int inFlight = this.activeRelays.get();
+        try
+        {
+            while (this.activeRelays.get() > 0
+                && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+        }
+        catch (InterruptedException ex)
         {
-            if (!workers.isShutdown())
+            Thread.currentThread().interrupt();
+        }
+
+        int dropped = this.activeRelays.get();
+        this.presence.shutdown();
+        this.resumable.shutdown();
+        this.search.shutdown();
+        if (this.multicast != null)
+        {
+            this.multicast.shutdown();
+        }
+        int clients = 0, framesDropped = 0;
+        for (ClientHandler handler : this.connections)
+        {
+            handler.quit();
+            ++clients;
+        }
+        // Give the writers what is left of the deadline to flush their
+        // queues, then pull the plug on the stragglers
+        for (ClientHandler handler : this.connections)
+        {
+            if (!handler.awaitQuit(deadline))
             {
-                log.println("Shutting server down");
-                workers.shutdown();
+                framesDropped += handler.close();
             }
-            sock.close();
         }
+        workers.shutdown();
+        this.fanout.shutdown();
+        log.format(
+            "Drained: %d client(s) notified, %d of %d in-flight relay(s) "
+            + "completed, %d dropped, %d queued frame(s) dropped%n",
+            clients, Math.max(inFlight - dropped, 0), inFlight, dropped,
+            framesDropped
+        );
+        log.print(this.deliveries);
+        if (this.capture != null)
+        {
+            this.capture.shutdown();
+            log.println("Traffic capture written to " + this.capture.getFile());
+        }
+        // On JVM exit the recorder's own hook may have written it already
+        if (this.recording != null
+            && this.recording.getState() == RecordingState.RUNNING)
+        {
+            try
+            {
+                // Writes the recording to its destination
+                this.recording.stop();
+                log.println("Flight recording written to " + this.recording.getDestination());
+            }
+            catch (IllegalStateException ex)
+            {
+                System.err.println("[ERROR] " + ex.getMessage());
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Stops all listeners, no new connections are accepted afterwards
+     */
+    private void close()
+    {
+        for (ServerSocket ss : this.sockets)
+        {
+            try
+            {
+                ss.close();
+            }
+            catch (IOException ex)
+            {
+                log.println("[ERROR] " + ex.getMessage());
+            }
+        }
+        MemoryTransport memory = this.config.getMemoryTransport();
+        for (int port : this.memoryPorts)
+        {
+            memory.unlisten(port);
+        }
+        this.closed.countDown();
     }
 }
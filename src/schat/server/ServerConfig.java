@@ -0,0 +1,548 @@
+package schat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import schat.io.MemoryTransport;
+
+/**
+ * Tunables for a {@link Server} instance. Defaults reproduce the original
+ * behaviour of a single listener served by a single acceptor thread.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class ServerConfig
+{
+    // Same default as java.net.ServerSocket
+    public static final int DEFAULT_BACKLOG = 50;
+    public static final long DEFAULT_DRAIN_TIMEOUT = 5000;
+    public static final long DEFAULT_PRESENCE_INTERVAL = 250;
+    public static final int DEFAULT_FANOUT_THRESHOLD = 256;
+    public static final long DEFAULT_ACK_TIMEOUT = 30000;
+    public static final long DEFAULT_RESUME_WINDOW = 30000;
+    public static final int DEFAULT_REPLAY_CAPACITY = 256;
+    public static final int DEFAULT_HISTORY_CAPACITY = 100000;
+    public static final long DEFAULT_CONNECTION_BUDGET = 1024 * 1024;
+
+    private final List<Integer> ports = new ArrayList<>();
+    private String bindAddress = null;
+    private int acceptors = 1;
+    private int backlog = DEFAULT_BACKLOG;
+    private boolean reusePort = false;
+    private long drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+    private long presenceInterval = DEFAULT_PRESENCE_INTERVAL;
+    private int fanoutThreshold = DEFAULT_FANOUT_THRESHOLD;
+    private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+    private long latencySlo = 0;
+    private long ackTimeout = DEFAULT_ACK_TIMEOUT;
+    private String flightRecording = null;
+    private long resumeWindow = DEFAULT_RESUME_WINDOW;
+    private int replayCapacity = DEFAULT_REPLAY_CAPACITY;
+    private int historyCapacity = DEFAULT_HISTORY_CAPACITY;
+    private String capture = null;
+    private int sendBuffer = 0;
+    private int receiveBuffer = 0;
+    private MemoryTransport memoryTransport = null;
+    private String multicastGroup = null;
+    private String multicastInterface = null;
+    private long connectionBudget = DEFAULT_CONNECTION_BUDGET;
+
+    /**
+     * Creates a configuration listening on the given ports
+     *
+     * @param ports Ports at which the server listens for incoming connections
+     */
+    public ServerConfig(int... ports)
+    {
+        for (int port : ports)
+        {
+            this.ports.add(port);
+        }
+    }
+
+    /**
+     * Accessor method for the listening ports
+     *
+     * @return Unmodifiable list of ports, one listener is opened per port
+     */
+    public List<Integer> getPorts()
+    {
+        return Collections.unmodifiableList(this.ports);
+    }
+
+    /**
+     * Adds another listening endpoint
+     *
+     * @param port Port at which the server should also listen
+     */
+    public void addPort(int port)
+    {
+        this.ports.add(port);
+    }
+
+    /**
+     * Accessor method for the local interface listeners are bound to
+     *
+     * @return Address of the local interface, null for all interfaces
+     */
+    public String getBindAddress()
+    {
+        return this.bindAddress;
+    }
+
+    /**
+     * Mutator method for the local interface listeners are bound to
+     *
+     * @param bindAddress Address of the local interface, null for all
+     */
+    public void setBindAddress(String bindAddress)
+    {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * Accessor method for the number of acceptor threads per listener
+     *
+     * @return Acceptor threads started for each listening port
+     */
+    public int getAcceptors()
+    {
+        return this.acceptors;
+    }
+
+    /**
+     * Mutator method for the number of acceptor threads per listener
+     *
+     * @param acceptors Acceptor threads to start for each listening port
+     */
+    public void setAcceptors(int acceptors)
+    {
+        if (acceptors < 1)
+        {
+            throw new IllegalArgumentException(
+                "At least one acceptor is required: " + acceptors
+            );
+        }
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Accessor method for the listen backlog
+     *
+     * @return Maximum length of each listener's pending connection queue
+     */
+    public int getBacklog()
+    {
+        return this.backlog;
+    }
+
+    /**
+     * Mutator method for the listen backlog
+     *
+     * @param backlog Maximum length of each listener's pending connection
+     * queue
+     */
+    public void setBacklog(int backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Checks if acceptors should get their own SO_REUSEPORT socket
+     *
+     * @return true if every acceptor binds its own socket to the port
+     */
+    public boolean isReusePort()
+    {
+        return this.reusePort;
+    }
+
+    /**
+     * Makes every acceptor bind its own socket to the listening port with
+     * SO_REUSEPORT, so that the kernel spreads incoming connections over
+     * several accept queues. Ignored where the platform lacks SO_REUSEPORT.
+     *
+     * @param reusePort true to bind one socket per acceptor
+     */
+    public void setReusePort(boolean reusePort)
+    {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * Accessor method for the drain deadline
+     *
+     * @return Milliseconds a draining server waits for in-flight relays
+     */
+    public long getDrainTimeout()
+    {
+        return this.drainTimeout;
+    }
+
+    /**
+     * Mutator method for the drain deadline
+     *
+     * @param drainTimeout Milliseconds a draining server waits for in-flight
+     * relays before cutting them off
+     */
+    public void setDrainTimeout(long drainTimeout)
+    {
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * Accessor method for the presence batching interval
+     *
+     * @return Milliseconds between two presence delta frames
+     */
+    public long getPresenceInterval()
+    {
+        return this.presenceInterval;
+    }
+
+    /**
+     * Mutator method for the presence batching interval. Joins and leaves
+     * within one interval are pushed to clients as a single frame.
+     *
+     * @param presenceInterval Milliseconds between two presence delta frames
+     */
+    public void setPresenceInterval(long presenceInterval)
+    {
+        this.presenceInterval = presenceInterval;
+    }
+
+    /**
+     * Accessor method for the parallel fan-out threshold
+     *
+     * @return Smallest recipient count that is delivered in parallel
+     */
+    public int getFanoutThreshold()
+    {
+        return this.fanoutThreshold;
+    }
+
+    /**
+     * Mutator method for the parallel fan-out threshold. Smaller recipient
+     * sets are written inline by the sender's handler; larger ones are split
+     * into shards of this size.
+     *
+     * @param fanoutThreshold Smallest recipient count delivered in parallel
+     */
+    public void setFanoutThreshold(int fanoutThreshold)
+    {
+        this.fanoutThreshold = fanoutThreshold;
+    }
+
+    /**
+     * Accessor method for the size of the fan-out pool
+     *
+     * @return Number of fan-out worker threads
+     */
+    public int getFanoutThreads()
+    {
+        return this.fanoutThreads;
+    }
+
+    /**
+     * Mutator method for the size of the fan-out pool
+     *
+     * @param fanoutThreads Number of fan-out worker threads, defaults to the
+     * number of available processors
+     */
+    public void setFanoutThreads(int fanoutThreads)
+    {
+        this.fanoutThreads = fanoutThreads;
+    }
+
+    /**
+     * Accessor method for the delivery latency objective
+     *
+     * @return Milliseconds from relay to acknowledged delivery that a message
+     * should stay under, 0 if no objective is set
+     */
+    public long getLatencySlo()
+    {
+        return this.latencySlo;
+    }
+
+    /**
+     * Mutator method for the delivery latency objective. Deliveries slower
+     * than this are counted as violations per route.
+     *
+     * @param latencySlo Objective in milliseconds, 0 to disable
+     */
+    public void setLatencySlo(long latencySlo)
+    {
+        this.latencySlo = Math.max(latencySlo, 0);
+    }
+
+    /**
+     * Accessor method for how long the server waits for delivery
+     * acknowledgements
+     *
+     * @return Milliseconds after which a missing acknowledgement is counted
+     * as lost
+     */
+    public long getAckTimeout()
+    {
+        return this.ackTimeout;
+    }
+
+    /**
+     * Mutator method for how long the server waits for delivery
+     * acknowledgements
+     *
+     * @param ackTimeout Timeout in milliseconds
+     */
+    public void setAckTimeout(long ackTimeout)
+    {
+        this.ackTimeout = ackTimeout;
+    }
+
+    /**
+     * Accessor method for the flight recording destination
+     *
+     * @return File the server's flight recording is written to, null if no
+     * recording is made
+     */
+    public String getFlightRecording()
+    {
+        return this.flightRecording;
+    }
+
+    /**
+     * Mutator method for the flight recording destination. When set, the
+     * server runs a continuous JDK Flight Recorder recording with the
+     * {@link RelayEvents} enabled and writes it out on shutdown.
+     *
+     * @param flightRecording Destination file, null to record nothing
+     */
+    public void setFlightRecording(String flightRecording)
+    {
+        this.flightRecording = flightRecording;
+    }
+
+    /**
+     * Accessor method for how long a dropped session may be resumed
+     *
+     * @return Milliseconds a session is held after its connection drops, 0
+     * if sessions cannot be resumed
+     */
+    public long getResumeWindow()
+    {
+        return this.resumeWindow;
+    }
+
+    /**
+     * Mutator method for how long a dropped session may be resumed. Clients
+     * that asked for a resume token keep their name, ID and missed messages
+     * for this long after their connection drops.
+     *
+     * @param resumeWindow Window in milliseconds, 0 to disable resumption
+     */
+    public void setResumeWindow(long resumeWindow)
+    {
+        this.resumeWindow = Math.max(resumeWindow, 0);
+    }
+
+    /**
+     * Accessor method for the size of the per session replay buffer
+     *
+     * @return Text messages kept per resumable session
+     */
+    public int getReplayCapacity()
+    {
+        return this.replayCapacity;
+    }
+
+    /**
+     * Mutator method for the size of the per session replay buffer. Messages
+     * older than this are lost to a client that resumes late.
+     *
+     * @param replayCapacity Text messages kept per resumable session
+     */
+    public void setReplayCapacity(int replayCapacity)
+    {
+        this.replayCapacity = Math.max(replayCapacity, 1);
+    }
+
+    /**
+     * Accessor method for the size of the searchable history
+     *
+     * @return Most recent text messages kept for /search, 0 if search is
+     * disabled
+     */
+    public int getHistoryCapacity()
+    {
+        return this.historyCapacity;
+    }
+
+    /**
+     * Mutator method for the size of the searchable history. Relayed text
+     * messages are indexed as they pass through; older ones drop out of
+     * search results once this many newer ones were relayed.
+     *
+     * @param historyCapacity Text messages kept, 0 to disable search
+     */
+    public void setHistoryCapacity(int historyCapacity)
+    {
+        this.historyCapacity = Math.max(historyCapacity, 0);
+    }
+
+    /**
+     * Accessor method for the traffic capture destination
+     *
+     * @return File inbound frames are recorded to, null if not capturing
+     */
+    public String getCapture()
+    {
+        return this.capture;
+    }
+
+    /**
+     * Mutator method for the traffic capture destination. When set, every
+     * frame the server receives is recorded with its arrival time, for
+     * replay with {@code schat.bench.TrafficReplay}.
+     *
+     * @param capture Destination file, null to capture nothing
+     */
+    public void setCapture(String capture)
+    {
+        this.capture = capture;
+    }
+
+    /**
+     * Accessor method for the send buffer size of client connections
+     *
+     * @return SO_SNDBUF requested for accepted sockets, 0 for the system
+     * default
+     */
+    public int getSendBuffer()
+    {
+        return this.sendBuffer;
+    }
+
+    /**
+     * Mutator method for the send buffer size of client connections. File
+     * chunks relayed to a client start out at this size.
+     *
+     * @param sendBuffer SO_SNDBUF in bytes, 0 for the system default
+     */
+    public void setSendBuffer(int sendBuffer)
+    {
+        this.sendBuffer = Math.max(sendBuffer, 0);
+    }
+
+    /**
+     * Accessor method for the receive buffer size of client connections
+     *
+     * @return SO_RCVBUF requested for accepted sockets, 0 for the system
+     * default
+     */
+    public int getReceiveBuffer()
+    {
+        return this.receiveBuffer;
+    }
+
+    /**
+     * Mutator method for the receive buffer size of client connections. It is
+     * set on the listening sockets, so that the TCP window is negotiated
+     * accordingly, and file chunks read from a client start out at this size.
+     *
+     * @param receiveBuffer SO_RCVBUF in bytes, 0 for the system default
+     */
+    public void setReceiveBuffer(int receiveBuffer)
+    {
+        this.receiveBuffer = Math.max(receiveBuffer, 0);
+    }
+
+    /**
+     * Accessor method for the in-memory transport the server listens on
+     *
+     * @return Transport serving the configured ports, null if they are TCP
+     * ports
+     */
+    public MemoryTransport getMemoryTransport()
+    {
+        return this.memoryTransport;
+    }
+
+    /**
+     * Mutator method for the in-memory transport. When set, the configured
+     * ports are opened on it instead of as TCP sockets, and clients in the
+     * same JVM connect through it. Socket options do not apply then.
+     *
+     * @param memoryTransport Transport to listen on, null for TCP
+     */
+    public void setMemoryTransport(MemoryTransport memoryTransport)
+    {
+        this.memoryTransport = memoryTransport;
+    }
+
+    /**
+     * Accessor method for the multicast group text broadcasts are published on
+     *
+     * @return Group as address:port, null if broadcasts only go over TCP
+     */
+    public String getMulticastGroup()
+    {
+        return this.multicastGroup;
+    }
+
+    /**
+     * Mutator method for the multicast group. When set, text broadcasts are
+     * published once on the group, and clients that subscribe stop getting
+     * copies over TCP; lost datagrams are repaired over TCP on request.
+     *
+     * @param multicastGroup Group as address:port, null to disable
+     */
+    public void setMulticastGroup(String multicastGroup)
+    {
+        this.multicastGroup = multicastGroup;
+    }
+
+    /**
+     * Accessor method for the interface multicast is published on
+     *
+     * @return Interface name, null for the system's choice
+     */
+    public String getMulticastInterface()
+    {
+        return this.multicastInterface;
+    }
+
+    /**
+     * Mutator method for the interface multicast is published on
+     *
+     * @param multicastInterface Interface name, e.g. eth0 or lo; null for
+     * the system's choice
+     */
+    public void setMulticastInterface(String multicastInterface)
+    {
+        this.multicastInterface = multicastInterface;
+    }
+
+    /**
+     * Accessor method for the memory budget of a connection
+     *
+     * @return Bytes of messages a connection may hold
+     */
+    public long getConnectionBudget()
+    {
+        return this.connectionBudget;
+    }
+
+    /**
+     * Mutator method for the memory budget of a connection. It bounds the
+     * text and notification frames queued for a client, which is
+     * disconnected rather than waited for once it is used up, and the
+     * messages the connection's object stream remembers. File data is
+     * bounded separately.
+     *
+     * @param connectionBudget Bytes of messages a connection may hold
+     */
+    public void setConnectionBudget(long connectionBudget)
+    {
+        this.connectionBudget = Math.max(connectionBudget, 1);
+    }
+}
@@ -0,0 +1,229 @@
+package schat.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registration table of introduced sessions. Every session is assigned a
+ * compact integer ID when its username is claimed; IDs index straight into a
+ * session array, so routing never has to compare or hash usernames.
+ *
+ * Claiming a name is a single atomic putIfAbsent, which closes the window in
+ * which two clients introducing themselves at once could both get the name.
+ * IDs of departed sessions are reused, lowest first, keeping the array dense.
+ * The IDs of all registered sessions are also published as an immutable
+ * {@link RecipientSet}, replaced on every registration and departure.
+ * Since IDs and names are reused, every registration is also numbered with a
+ * generation, which tells a session apart from later holders of its ID or
+ * name.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class SessionRegistry
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ConcurrentHashMap<String, ClientHandler> byName
+        = new ConcurrentHashMap<>();
+    // Replaced (never mutated in size) when it needs to grow
+    private volatile AtomicReferenceArray<ClientHandler> byId
+        = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    // Guarded by this
+    private final BitSet usedIds = new BitSet();
+    // Replaced under this lock, read without it
+    private volatile RecipientSet members = RecipientSet.EMPTY;
+    // Generation of the latest registration
+    private final AtomicInteger generations = new AtomicInteger();
+
+    /**
+     * Atomically claims a username for a session and assigns it an ID
+     *
+     * @param username Username the session wants to register
+     * @param handler Session claiming the name
+     * @return ID assigned to the session, -1 if the name was already taken
+     */
+    public int register(String username, ClientHandler handler)
+    {
+        int id;
+        synchronized (this)
+        {
+            id = this.usedIds.nextClearBit(0);
+            this.usedIds.set(id);
+        }
+        // Assigned before the name is published, so a session found by name
+        // always has a valid ID
+        handler.setId(id, this.generations.incrementAndGet());
+        if (this.byName.putIfAbsent(username, handler) != null)
+        {
+            handler.setId(-1, 0);
+            synchronized (this)
+            {
+                this.usedIds.clear(id);
+            }
+            return -1;
+        }
+        synchronized (this)
+        {
+            AtomicReferenceArray<ClientHandler> table = this.byId;
+            if (id >= table.length())
+            {
+                AtomicReferenceArray<ClientHandler> grown
+                    = new AtomicReferenceArray<>(Math.max(table.length() * 2, id + 1));
+                for (int i = 0; i < table.length(); ++i)
+                {
+                    grown.set(i, table.get(i));
+                }
+                table = grown;
+            }
+            table.set(id, handler);
+            this.byId = table;
+            this.members = this.members.with(id);
+        }
+        return id;
+    }
+
+    /**
+     * Releases the name and ID of a session. Does nothing if the session
+     * never registered.
+     *
+     * @param username Username the session registered with
+     * @param id ID assigned to the session by {@link #register}
+     * @param handler Session going away
+     * @return true if the session was registered
+     */
+    public boolean unregister(String username, int id, ClientHandler handler)
+    {
+        if (id < 0 || !this.byName.remove(username, handler))
+        {
+            return false;
+        }
+        synchronized (this)
+        {
+            this.byId.set(id, null);
+            this.usedIds.clear(id);
+            this.members = this.members.without(id);
+        }
+        return true;
+    }
+
+    /**
+     * Hands a registered name, ID and generation over to another session,
+     * e.g. the connection resuming it
+     *
+     * @param username Username the session registered with
+     * @param id ID assigned to the session
+     * @param previous Session holding the name
+     * @param next Session taking it over
+     * @return true if the previous session still held the name
+     */
+    boolean transfer(String username, int id, ClientHandler previous, ClientHandler next)
+    {
+        if (id < 0)
+        {
+            return false;
+        }
+        // Assigned before the name is handed over, as in register
+        next.setId(id, previous.getGeneration());
+        if (!this.byName.replace(username, previous, next))
+        {
+            next.setId(-1, 0);
+            return false;
+        }
+        synchronized (this)
+        {
+            this.byId.set(id, next);
+        }
+        return true;
+    }
+
+    /**
+     * Looks a session up by ID, without locking
+     *
+     * @param id Session ID
+     * @return The session, null if the ID is not in use
+     */
+    public ClientHandler get(int id)
+    {
+        AtomicReferenceArray<ClientHandler> table = this.byId;
+        return id >= 0 && id < table.length() ? table.get(id) : null;
+    }
+
+    /**
+     * Looks a session up by username
+     *
+     * @param username Username the session registered with
+     * @return The session, null if nobody is registered under the name
+     */
+    public ClientHandler get(String username)
+    {
+        return this.byName.get(username);
+    }
+
+    /**
+     * Upper bound (exclusive) of the IDs currently in use
+     *
+     * @return Length of the session table
+     */
+    public int capacity()
+    {
+        return this.byId.length();
+    }
+
+    /**
+     * Number of registered sessions
+     *
+     * @return Count of sessions holding a name
+     */
+    public int size()
+    {
+        return this.byName.size();
+    }
+
+    /**
+     * IDs of the registered sessions. The same instance is returned until the
+     * next registration or departure, so it doubles as a version of the
+     * registry.
+     *
+     * @return Immutable snapshot of the registered IDs
+     */
+    RecipientSet members()
+    {
+        return this.members;
+    }
+
+    /**
+     * Collects every registered session except one
+     *
+     * @param except Session to leave out, typically the sender; may be null
+     * @return Sessions in ID order
+     */
+    public List<ClientHandler> allExcept(ClientHandler except)
+    {
+        AtomicReferenceArray<ClientHandler> table = this.byId;
+        List<ClientHandler> handlers = new ArrayList<>(this.byName.size());
+        ClientHandler handler;
+        for (int i = 0; i < table.length(); ++i)
+        {
+            handler = table.get(i);
+            if (handler != null && handler != except)
+            {
+                handlers.add(handler);
+            }
+        }
+        return handlers;
+    }
+
+    /**
+     * Name keyed view of the registered sessions
+     *
+     * @return Live map of username to session
+     */
+    ConcurrentHashMap<String, ClientHandler> byName()
+    {
+        return this.byName;
+    }
+}
@@ -0,0 +1,188 @@
+package schat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import schat.io.CaptureFile;
+import schat.message.Message;
+
+/**
+ * Records every frame the server receives into a {@link CaptureFile}, to be
+ * played back against another build with {@code schat.bench.TrafficReplay}.
+ *
+ * Reader threads only encode the frame and take the time; the file is
+ * written on a capture thread of its own, so a slow disk does not hold up
+ * relays. At most {@value #QUEUE_CAPACITY} records wait for that thread;
+ * when the disk falls further behind, new records are dropped and counted
+ * rather than piling up in memory, and the count is reported when the
+ * capture closes. The file is flushed at least once a second and closed
+ * when the server drains.
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+class TrafficCapture
+{
+    private static final long FLUSH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final int QUEUE_CAPACITY = 8192;
+
+    private final File file;
+    private final CaptureFile.Writer writer;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ThreadPoolExecutor thread;
+    // Owned by the capture thread
+    private long lastFlush = System.nanoTime();
+    private boolean failed = false;
+
+    private TrafficCapture(File file) throws IOException
+    {
+        this.file = file;
+        this.writer = new CaptureFile.Writer(file);
+        this.thread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY), r ->
+            {
+                Thread t = new Thread(r, "schat-capture");
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    /**
+     * Starts the capture requested by the configuration, if any
+     *
+     * @param destination File the capture is written to, null for none
+     * @return The running capture, null if none was requested or the file
+     * could not be created
+     */
+    static TrafficCapture start(String destination)
+    {
+        if (destination == null)
+        {
+            return null;
+        }
+        try
+        {
+            return new TrafficCapture(new File(destination));
+        }
+        catch (IOException ex)
+        {
+            System.err.println("[ERROR] Could not start traffic capture: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return File the capture is written to
+     */
+    File getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * Numbers a new connection
+     *
+     * @return Connection number to record its frames under
+     */
+    int connect()
+    {
+        return this.connections.getAndIncrement();
+    }
+
+    /**
+     * Records a frame received on a connection
+     *
+     * @param connection Connection number from {@link #connect()}
+     * @param message Frame as read from the socket
+     */
+    void frame(int connection, Message message)
+    {
+        append(System.nanoTime(), connection, CaptureFile.FRAME, message.encode());
+    }
+
+    /**
+     * Records that a connection went away
+     *
+     * @param connection Connection number from {@link #connect()}
+     */
+    void close(int connection)
+    {
+        append(System.nanoTime(), connection, CaptureFile.CLOSE, null);
+    }
+
+    private void append(long nanos, int connection, byte kind, byte[] frame)
+    {
+        try
+        {
+            this.thread.execute(() -> write(nanos, connection, kind, frame));
+        }
+        catch (RejectedExecutionException ex)
+        {
+            if (!this.thread.isShutdown())
+            {
+                // The disk is falling behind
+                this.dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private void write(long nanos, int connection, byte kind, byte[] frame)
+    {
+        if (this.failed)
+        {
+            return;
+        }
+        try
+        {
+            this.writer.append(nanos, connection, kind, frame);
+            if (nanos - this.lastFlush >= FLUSH_NANOS)
+            {
+                this.writer.flush();
+                this.lastFlush = nanos;
+            }
+        }
+        catch (IOException ex)
+        {
+            // Carrying on would leave a hole in the capture
+            this.failed = true;
+            System.err.println("[ERROR] Traffic capture stopped: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes out what is queued and closes the file
+     */
+    void shutdown()
+    {
+        this.thread.shutdown();
+        long lost = this.dropped.get();
+        if (lost > 0)
+        {
+            System.err.println("[WARN] Traffic capture dropped " + lost
+                + " records while the disk fell behind, replays will miss them");
+        }
+        try
+        {
+            if (!this.thread.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+            {
+                System.err.println("[ERROR] Traffic capture did not finish writing in time");
+                return;
+            }
+            this.writer.close();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException ex)
+        {
+            System.err.println("[ERROR] " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package schat.stress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import schat.client.ChatSession;
+import schat.client.MessageListener;
+import schat.client.SessionGroup;
+import schat.io.MemoryTransport;
+import schat.io.TcpTransport;
+import schat.io.Transport;
+import schat.message.Message;
+import schat.message.MessageType;
+import schat.server.Server;
+import schat.server.ServerConfig;
+
+/**
+ * Multi-client torture run against an in-process server over loopback.
+ *
+ * 1. Introduction storm: every username is claimed by two clients at once;
+ *    exactly one of them may get it.
+ * 2. Relay storm: the surviving clients broadcast numbered messages and
+ *    send files to each other while churn clients keep connecting and
+ *    disconnecting. Every client must receive every other client's
+ *    messages exactly once and in order, every file must arrive intact, and
+ *    no stream may break with a corrupt frame.
+ * 3. Disconnect: once everybody leaves the registry must be empty.
+ *
+ * Server and client chatter is suppressed; only the verdict is printed. Exits
+ * with status 1 if any check fails. With --memory the clients connect through
+ * an in-memory transport instead of loopback sockets, which takes the kernel
+ * out of the picture.
+ *
+ * Usage: java schat.stress.LoopbackTorture [--memory] [<clients>] [<messages>] [<churners>]
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class LoopbackTorture
+{
+    private static final int DEFAULT_CLIENTS = 16;
+    private static final int DEFAULT_MESSAGES = 200;
+    private static final int DEFAULT_CHURNERS = 4;
+    // Every FILE_EVERY-th message a client also sends a file
+    private static final int FILE_EVERY = 50;
+    private static final int FILE_SIZE = 200000;
+    private static final long SETTLE_MILLIS = 30000;
+
+    private final PrintStream report;
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private final int port;
+    private final Transport transport;
+    private final Path work;
+
+    /**
+     * Inbound traffic seen by one stable client
+     */
+    private static final class Inbox implements MessageListener
+    {
+        private final Map<String, List<Integer>> texts = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> files = new ConcurrentHashMap<>();
+        private final AtomicInteger total = new AtomicInteger();
+        private final List<String> failures;
+
+        private Inbox(List<String> failures)
+        {
+            this.failures = failures;
+        }
+
+        @Override
+        public void onMessage(ChatSession session, Message message)
+        {
+            if (message.getType() == MessageType.CLIENT_TEXT_BROADCAST
+                && message.getBody().startsWith("seq "))
+            {
+                this.texts.computeIfAbsent(
+                    message.getFrom(), k -> Collections.synchronizedList(new ArrayList<>())
+                ).add(Integer.parseInt(message.getBody().substring(4)));
+                this.total.incrementAndGet();
+            }
+            else if (message.isFileMessage())
+            {
+                this.files.computeIfAbsent(message.getFrom(), k -> new AtomicInteger())
+                    .incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onClose(ChatSession session, Exception cause)
+        {
+            if (cause != null)
+            {
+                this.failures.add("stream of " + session.getUsername() + " broke: " + cause);
+            }
+        }
+    }
+
+    private LoopbackTorture(PrintStream report, int port, Transport transport, Path work)
+    {
+        this.report = report;
+        this.port = port;
+        this.transport = transport;
+        this.work = work;
+    }
+
+    private void check(boolean ok, String failure)
+    {
+        if (!ok)
+        {
+            this.failures.add(failure);
+        }
+    }
+
+    /**
+     * Phase 1: two clients per name introduce themselves at once
+     *
+     * @return Winning session of every name, in name order
+     */
+    private List<ChatSession> introductionStorm(int clients, List<SessionGroup> groups)
+        throws InterruptedException
+    {
+        List<CompletableFuture<ChatSession>> attempts = new ArrayList<>();
+        for (int i = 0; i < 2 * clients; ++i)
+        {
+            SessionGroup group = new SessionGroup(this.work + "/", this.transport);
+            groups.add(group);
+            attempts.add(group.connect("u" + (i % clients), this.port));
+        }
+        Map<String, List<ChatSession>> winners = new TreeMap<>();
+        for (CompletableFuture<ChatSession> attempt : attempts)
+        {
+            try
+            {
+                ChatSession session = attempt.get(10, TimeUnit.SECONDS);
+                winners.computeIfAbsent(session.getUsername(), k -> new ArrayList<>())
+                    .add(session);
+            }
+            catch (Exception ex)
+            {
+                // Expected for the loser of every name
+            }
+        }
+        List<ChatSession> stable = new ArrayList<>();
+        for (int i = 0; i < clients; ++i)
+        {
+            List<ChatSession> holders = winners.getOrDefault("u" + i, List.of());
+            check(holders.size() == 1,
+                "u" + i + " was registered " + holders.size() + " times");
+            if (!holders.isEmpty())
+            {
+                stable.add(holders.get(0));
+            }
+        }
+        check(Server.getRegistry().size() == clients,
+            "registry holds " + Server.getRegistry().size() + " sessions, expected " + clients);
+        return stable;
+    }
+
+    /**
+     * Phase 2: broadcasts and files between the stable clients under churn
+     */
+    private void relayStorm(List<ChatSession> stable, int messages, int churners)
+        throws Exception
+    {
+        int clients = stable.size();
+        List<Inbox> inboxes = new ArrayList<>();
+        for (ChatSession session : stable)
+        {
+            Inbox inbox = new Inbox(this.failures);
+            session.addListener(inbox);
+            inboxes.add(inbox);
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger churned = new AtomicInteger();
+        List<Thread> churn = new ArrayList<>();
+        for (int c = 0; c < churners; ++c)
+        {
+            final int churner = c;
+            Thread t = new Thread(() -> churn(churner, stop, churned), "churn-" + c);
+            t.start();
+            churn.add(t);
+        }
+
+        Random random = new Random(42);
+        byte[][] contents = new byte[clients][FILE_SIZE];
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < clients; ++i)
+        {
+            random.nextBytes(contents[i]);
+            Path file = this.work.resolve("f-" + stable.get(i).getUsername() + ".bin");
+            Files.write(file, contents[i]);
+            ChatSession session = stable.get(i);
+            String next = stable.get((i + 1) % clients).getUsername();
+            Thread t = new Thread(() ->
+            {
+                try
+                {
+                    for (int m = 0; m < messages; ++m)
+                    {
+                        session.send(new Message(
+                            MessageType.CLIENT_TEXT_BROADCAST, "seq " + m, ""
+                        ));
+                        if (m % FILE_EVERY == 0)
+                        {
+                            session.send("/file @" + next + " " + file);
+                        }
+                    }
+                    // Sends of a session run in order on its writer
+                    session.send(new Message(MessageType.CLIENT_TEXT_BROADCAST, "done", ""))
+                        .get(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                catch (Exception ex)
+                {
+                    this.failures.add(session.getUsername() + " could not send: " + ex);
+                }
+            }, "send-" + session.getUsername());
+            t.start();
+            senders.add(t);
+        }
+        for (Thread t : senders)
+        {
+            t.join();
+        }
+
+        long expected = (long) (clients - 1) * messages;
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        for (Inbox inbox : inboxes)
+        {
+            while (inbox.total.get() < expected && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+        }
+        stop.set(true);
+        for (Thread t : churn)
+        {
+            t.join();
+        }
+
+        int files = (messages + FILE_EVERY - 1) / FILE_EVERY;
+        for (int r = 0; r < clients; ++r)
+        {
+            String receiver = stable.get(r).getUsername();
+            Inbox inbox = inboxes.get(r);
+            for (int s = 0; s < clients; ++s)
+            {
+                if (s == r)
+                {
+                    continue;
+                }
+                String sender = stable.get(s).getUsername();
+                List<Integer> got = inbox.texts.getOrDefault(sender, List.of());
+                checkSequence(receiver, sender, got, messages);
+            }
+            String sender = stable.get((r + clients - 1) % clients).getUsername();
+            AtomicInteger received = inbox.files.get(sender);
+            check(received != null && received.get() == files,
+                receiver + " got " + received + " of " + files + " files from " + sender);
+            Path copy = this.work.resolve(receiver).resolve("f-" + sender + ".bin");
+            check(Files.exists(copy) && Arrays.equals(
+                    Files.readAllBytes(copy), contents[(r + clients - 1) % clients]),
+                receiver + " holds a corrupt copy of " + copy.getFileName());
+        }
+        this.report.format("relay storm: %d clients x %d messages, %d files each, "
+            + "%d churn sessions%n", clients, messages, files, churned.get());
+    }
+
+    private void checkSequence(String receiver, String sender, List<Integer> got, int messages)
+    {
+        synchronized (got)
+        {
+            if (got.size() != messages)
+            {
+                this.failures.add(String.format("%s got %d of %d messages from %s",
+                    receiver, got.size(), messages, sender));
+                return;
+            }
+            for (int i = 0; i < messages; ++i)
+            {
+                if (got.get(i) != i)
+                {
+                    this.failures.add(String.format(
+                        "%s got message %d from %s at position %d (lost, "
+                        + "duplicated or reordered)", receiver, got.get(i), sender, i));
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects and disconnects sessions until told to stop. Each must see
+     * nothing but well formed frames while it is connected.
+     */
+    private void churn(int churner, AtomicBoolean stop, AtomicInteger churned)
+    {
+        SessionGroup group = new SessionGroup(this.work + "/churn/", this.transport);
+        MessageListener watchdog = new MessageListener()
+        {
+            @Override
+            public void onMessage(ChatSession session, Message message)
+            {
+            }
+
+            @Override
+            public void onClose(ChatSession session, Exception cause)
+            {
+                if (cause != null)
+                {
+                    failures.add("churn stream of " + session.getUsername() + " broke: " + cause);
+                }
+            }
+        };
+        for (int n = 0; !stop.get(); ++n)
+        {
+            try
+            {
+                ChatSession session = group.connect("churn-" + churner + "-" + n, this.port)
+                    .get(10, TimeUnit.SECONDS);
+                session.addListener(watchdog);
+                Thread.sleep(n % 20);
+                session.close();
+                churned.incrementAndGet();
+            }
+            catch (Exception ex)
+            {
+                this.failures.add("churn session could not connect: " + ex);
+                break;
+            }
+        }
+        group.close();
+    }
+
+    /**
+     * Phase 3: everybody leaves
+     */
+    private void disconnect(List<ChatSession> stable, List<SessionGroup> groups)
+        throws InterruptedException
+    {
+        for (ChatSession session : stable)
+        {
+            session.close();
+        }
+        for (SessionGroup group : groups)
+        {
+            group.close();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Server.getRegistry().size() > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        check(Server.getRegistry().size() == 0,
+            Server.getRegistry().size() + " session(s) still registered after disconnect");
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        boolean memory = args.length > 0 && args[0].equals("--memory");
+        if (memory)
+        {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MESSAGES;
+        int churners = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CHURNERS;
+
+        PrintStream report = System.out;
+        // The server logs every message and every dropped connection, far
+        // too much at this volume
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        ServerConfig config = new ServerConfig(0);
+        Transport transport = new TcpTransport();
+        if (memory)
+        {
+            MemoryTransport pipes = new MemoryTransport();
+            config.setMemoryTransport(pipes);
+            transport = pipes;
+        }
+        Server server = Server.getInstance(config);
+        Thread listener = new Thread(() ->
+        {
+            try
+            {
+                server.listen();
+            }
+            catch (IOException ex)
+            {
+                report.println("[ERROR] " + ex.getMessage());
+            }
+        }, "torture-server");
+        listener.setDaemon(true);
+        listener.start();
+
+        Path work = Files.createTempDirectory("schat-torture");
+        LoopbackTorture torture = new LoopbackTorture(
+            report, Server.getLocalPort(), transport, work
+        );
+        List<SessionGroup> groups = new ArrayList<>();
+        long start = System.nanoTime();
+
+        List<ChatSession> stable = torture.introductionStorm(clients, groups);
+        report.format("introduction storm: %d names claimed twice each%n", clients);
+        torture.relayStorm(stable, messages, churners);
+        torture.disconnect(stable, groups);
+        server.drain(0);
+
+        report.format("finished in %.1f s%n", (System.nanoTime() - start) / 1e9);
+        for (String failure : torture.failures)
+        {
+            report.println("  " + failure);
+        }
+        report.println(torture.failures.isEmpty() ? "PASSED" : "FAILED");
+        System.exit(torture.failures.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,342 @@
+package schat.stress;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import schat.server.ClientHandler;
+import schat.server.SessionRegistry;
+
+/**
+ * Stress harness for {@link SessionRegistry} in the style of jcstress: each
+ * scenario starts a handful of actor threads on a barrier so that they hit
+ * the registry at the same instant, then classifies the end state as an
+ * acceptable or forbidden outcome. Scenarios run many thousands of rounds
+ * and the outcome histogram is printed at the end; any forbidden outcome
+ * makes the process exit with status 1.
+ *
+ * Usage: java schat.stress.RegistryStress [<rounds>] [<actors>]
+ *
+ * @author Vaibhav Yenamandra (vyenman@ufl.edu)
+ */
+public class RegistryStress
+{
+    private static final int DEFAULT_ROUNDS = 20000;
+    private static final int DEFAULT_ACTORS = 4;
+
+    private final Map<String, AtomicInteger> outcomes = new TreeMap<>();
+    private boolean failed = false;
+
+    /**
+     * Runs one scenario for the given number of rounds
+     *
+     * @param name Scenario name, prefixed to its outcomes
+     * @param rounds Number of rounds
+     * @param actors Threads racing in every round
+     * @param round Builds the state of one round from a fresh registry
+     */
+    private void run(String name, int rounds, int actors, IntFunction<Round> round)
+        throws InterruptedException
+    {
+        for (int r = 0; r < rounds; ++r)
+        {
+            Round state = round.apply(actors);
+            CyclicBarrier start = new CyclicBarrier(actors);
+            Thread[] threads = new Thread[actors];
+            for (int i = 0; i < actors; ++i)
+            {
+                final int actor = i;
+                threads[i] = new Thread(() ->
+                {
+                    try
+                    {
+                        start.await();
+                        state.act(actor);
+                    }
+                    catch (Exception ex)
+                    {
+                        state.error(ex);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads)
+            {
+                t.join();
+            }
+            String outcome = state.arbiter();
+            boolean forbidden = outcome.startsWith("FORBIDDEN");
+            this.failed |= forbidden;
+            this.outcomes.computeIfAbsent(name + ": " + outcome, k -> new AtomicInteger())
+                .incrementAndGet();
+        }
+    }
+
+    /**
+     * State shared by the actors of one round
+     */
+    private abstract static class Round
+    {
+        final SessionRegistry registry = new SessionRegistry();
+        final AtomicBoolean errored = new AtomicBoolean();
+        volatile Exception error;
+
+        abstract void act(int actor);
+
+        /**
+         * Classifies the state once all actors are done
+         *
+         * @return Outcome, starting with FORBIDDEN if an invariant is broken
+         */
+        abstract String arbiter();
+
+        void error(Exception ex)
+        {
+            if (this.errored.compareAndSet(false, true))
+            {
+                this.error = ex;
+            }
+        }
+    }
+
+    /**
+     * All actors claim the same name. Exactly one may win, and the winner
+     * must be reachable by both name and ID.
+     */
+    private static final class SameName extends Round
+    {
+        final ClientHandler[] handlers;
+        final int[] ids;
+
+        SameName(int actors)
+        {
+            this.handlers = new ClientHandler[actors];
+            this.ids = new int[actors];
+            for (int i = 0; i < actors; ++i)
+            {
+                this.handlers[i] = new ClientHandler(null);
+            }
+        }
+
+        @Override
+        void act(int actor)
+        {
+            this.ids[actor] = this.registry.register("alice", this.handlers[actor]);
+        }
+
+        @Override
+        String arbiter()
+        {
+            if (this.error != null)
+            {
+                return "FORBIDDEN exception " + this.error;
+            }
+            int winners = 0, winner = -1;
+            for (int i = 0; i < this.ids.length; ++i)
+            {
+                if (this.ids[i] >= 0)
+                {
+                    ++winners;
+                    winner = i;
+                }
+                else if (this.handlers[i].getId() != -1)
+                {
+                    return "FORBIDDEN loser kept an ID";
+                }
+            }
+            if (winners != 1)
+            {
+                return "FORBIDDEN " + winners + " registrations of one name";
+            }
+            if (this.registry.get("alice") != this.handlers[winner]
+                || this.registry.get(this.ids[winner]) != this.handlers[winner]
+                || this.registry.size() != 1)
+            {
+                return "FORBIDDEN winner not reachable by name and ID";
+            }
+            return "one winner, id " + this.ids[winner];
+        }
+    }
+
+    /**
+     * Actors register distinct names, then unregister them again while the
+     * others are still registering. IDs must never be shared by two live
+     * sessions and the registry must end empty.
+     */
+    private static final class Churn extends Round
+    {
+        final ClientHandler[] handlers;
+        final int[] ids;
+        final Set<String> overlaps = Collections.synchronizedSet(new HashSet<>());
+
+        Churn(int actors)
+        {
+            this.handlers = new ClientHandler[actors];
+            this.ids = new int[actors];
+            for (int i = 0; i < actors; ++i)
+            {
+                this.handlers[i] = new ClientHandler(null);
+            }
+        }
+
+        @Override
+        void act(int actor)
+        {
+            String name = "user" + actor;
+            int id = this.registry.register(name, this.handlers[actor]);
+            this.ids[actor] = id;
+            if (id < 0)
+            {
+                this.overlaps.add("rejected a free name");
+                return;
+            }
+            // Routing view while everyone else is churning: no duplicates,
+            // and every session found must hold the ID it is filed under
+            List<ClientHandler> seen = this.registry.allExcept(null);
+            if (new HashSet<>(seen).size() != seen.size())
+            {
+                this.overlaps.add("duplicate session in routing view");
+            }
+            if (this.registry.get(id) != this.handlers[actor])
+            {
+                this.overlaps.add("ID handed to two sessions");
+            }
+            if (!this.registry.unregister(name, id, this.handlers[actor]))
+            {
+                this.overlaps.add("registered session could not unregister");
+            }
+        }
+
+        @Override
+        String arbiter()
+        {
+            if (this.error != null)
+            {
+                return "FORBIDDEN exception " + this.error;
+            }
+            if (!this.overlaps.isEmpty())
+            {
+                return "FORBIDDEN " + this.overlaps;
+            }
+            if (this.registry.size() != 0 || !this.registry.allExcept(null).isEmpty())
+            {
+                return "FORBIDDEN sessions left behind";
+            }
+            Set<Integer> distinct = new HashSet<>();
+            for (int id : this.ids)
+            {
+                distinct.add(id);
+            }
+            return distinct.size() == this.ids.length
+                ? "all IDs distinct"
+                : "IDs reused after release";
+        }
+    }
+
+    /**
+     * Actors claim names that pairwise collide while one actor releases a
+     * name it held before the round. Every name must end up with at most one
+     * holder and the ID table must agree with the name table.
+     */
+    private static final class Handover extends Round
+    {
+        final ClientHandler previous = new ClientHandler(null);
+        final int previousId;
+        final ClientHandler[] handlers;
+        final int[] ids;
+        volatile boolean released;
+
+        Handover(int actors)
+        {
+            this.previousId = this.registry.register("user0", this.previous);
+            this.handlers = new ClientHandler[actors];
+            this.ids = new int[actors];
+            for (int i = 0; i < actors; ++i)
+            {
+                this.handlers[i] = new ClientHandler(null);
+            }
+        }
+
+        @Override
+        void act(int actor)
+        {
+            if (actor == 0)
+            {
+                this.released = this.registry.unregister(
+                    "user0", this.previousId, this.previous
+                );
+                return;
+            }
+            this.ids[actor] = this.registry.register(
+                "user" + (actor % 2), this.handlers[actor]
+            );
+        }
+
+        @Override
+        String arbiter()
+        {
+            if (this.error != null)
+            {
+                return "FORBIDDEN exception " + this.error;
+            }
+            if (!this.released)
+            {
+                return "FORBIDDEN previous holder could not unregister";
+            }
+            Map<String, Integer> holders = new TreeMap<>();
+            for (int i = 1; i < this.ids.length; ++i)
+            {
+                if (this.ids[i] >= 0)
+                {
+                    holders.merge("user" + (i % 2), 1, Integer::sum);
+                    if (this.registry.get(this.ids[i]) != this.handlers[i])
+                    {
+                        return "FORBIDDEN ID table disagrees with name table";
+                    }
+                }
+            }
+            for (int count : holders.values())
+            {
+                if (count > 1)
+                {
+                    return "FORBIDDEN name held twice " + holders;
+                }
+            }
+            if (this.registry.size() != holders.size()
+                || this.registry.allExcept(null).size() != holders.size())
+            {
+                return "FORBIDDEN tables out of step";
+            }
+            return "holders " + holders.keySet();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+        int actors = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ACTORS;
+        RegistryStress stress = new RegistryStress();
+
+        stress.run("same-name", rounds, actors, SameName::new);
+        stress.run("churn", rounds, actors, Churn::new);
+        stress.run("handover", rounds, Math.max(actors, 3), Handover::new);
+
+        List<String> lines = new ArrayList<>();
+        stress.outcomes.forEach((outcome, count) ->
+            lines.add(String.format("%10d  %s", count.get(), outcome))
+        );
+        lines.forEach(System.out::println);
+        System.out.println(stress.failed ? "FAILED" : "PASSED");
+        if (stress.failed)
+        {
+            System.exit(1);
+        }
+    }
+}